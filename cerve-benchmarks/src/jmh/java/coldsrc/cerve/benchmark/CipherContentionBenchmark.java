@@ -0,0 +1,54 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.security.StandardEncryption;
+import coldsrc.cerve.security.SymmetricEncryptionProfile;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting through one shared encryption profile from
+ * 32 threads at once, like 32 connections would. With the
+ * per thread cipher contexts the throughput should scale
+ * with the threads instead of serializing on one cipher.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedProfile {
+        SymmetricEncryptionProfile profile;
+
+        @Setup
+        public void setup() {
+            profile = StandardEncryption.newSymmetricEncryptionProfile().generateKeys();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        byte[] block = new byte[SymmetricEncryptionProfile.UNPADDED_BLOCK_SIZE];
+        byte[] out = new byte[SymmetricEncryptionProfile.PADDED_BLOCK_SIZE];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int singleConnection(SharedProfile shared, Connection connection) {
+        return encryptBlock(shared, connection);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public int concurrentConnections(SharedProfile shared, Connection connection) {
+        return encryptBlock(shared, connection);
+    }
+
+    private static int encryptBlock(SharedProfile shared, Connection connection) {
+        return shared.profile.encrypt(connection.block, 0, connection.block.length, connection.out, 0);
+    }
+
+}
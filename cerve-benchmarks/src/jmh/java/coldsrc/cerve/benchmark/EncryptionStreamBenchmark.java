@@ -0,0 +1,77 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.security.EncryptionProfile;
+import coldsrc.cerve.security.StandardEncryption;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the block encrypting streams per cipher,
+ * for payloads spanning one or many cipher blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionStreamBenchmark {
+
+    @Param({ "AES", "RSA" })
+    String cipher;
+
+    @Param({ "117", "4096", "65536" })
+    int payloadSize;
+
+    EncryptionProfile profile;
+    byte[] payload;
+    byte[] encrypted;
+
+    ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        profile = switch (cipher) {
+            case "AES" -> StandardEncryption.newSymmetricEncryptionProfile().generateKeys();
+            case "RSA" -> StandardEncryption.newAsymmetricEncryptionProfile().generateKeys();
+            default -> throw new IllegalArgumentException("unknown cipher " + cipher);
+        };
+
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+
+        out = new ByteArrayOutputStream(payloadSize * 2);
+        encrypted = encrypt();
+    }
+
+    private byte[] encrypt() throws IOException {
+        out.reset();
+        EncryptionProfile.EncryptingOutputStream stream = profile.encryptingOutputStream(out);
+        stream.write(payload);
+        // write the last partial block
+        if (payloadSize % profile.getUnpaddedBlockSize() != 0)
+            stream.flush();
+        stream.close();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encryptingOutputStream() throws IOException {
+        return encrypt();
+    }
+
+    @Benchmark
+    public int decryptingInputStream() throws IOException {
+        EncryptionProfile.DecryptingInputStream stream =
+                profile.decryptingInputStream(new ByteArrayInputStream(encrypted));
+        int read = stream.readNBytes(payload.length).length;
+        stream.close();
+        return read;
+    }
+
+}
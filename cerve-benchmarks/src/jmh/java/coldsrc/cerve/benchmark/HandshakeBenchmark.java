@@ -0,0 +1,84 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.security.AsymmetricEncryptionProfile;
+import coldsrc.cerve.security.KeyPairPool;
+import coldsrc.cerve.security.SessionCipher;
+import coldsrc.cerve.security.StandardEncryption;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work the server does per encryption handshake on one
+ * core, so the scores are handshakes per second per core. RSA
+ * decrypts the session key the client chose, key agreement derives
+ * it with X25519, with the ephemeral key pair taken from a pool filled
+ * in the background or generated during the handshake.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class HandshakeBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        AsymmetricEncryptionProfile rsa;
+        AsymmetricEncryptionProfile agreement;
+        KeyPairPool keyPool;
+
+        // what the client sends
+        byte[] encryptedSecretKey;
+        byte[] clientKey;
+
+        @Setup
+        public void setup() {
+            rsa = StandardEncryption.newAsymmetricEncryptionProfile().generateKeys();
+            encryptedSecretKey = rsa.encrypt(StandardEncryption.newSymmetricEncryptionProfile()
+                    .generateKeys().getSecretKey().getEncoded());
+
+            agreement = StandardEncryption.newKeyAgreementProfile();
+            keyPool = new KeyPairPool(agreement).start();
+            clientKey = agreement.generateKeyPair().getPublic().getEncoded();
+        }
+
+        @TearDown
+        public void tearDown() {
+            keyPool.close();
+        }
+    }
+
+    @Benchmark
+    public SessionCipher rsa(Server server) throws Exception {
+        byte[] encoded = server.rsa.decrypt(server.encryptedSecretKey);
+        return new SessionCipher(new SecretKeySpec(encoded, "AES"), false);
+    }
+
+    @Benchmark
+    public SessionCipher keyAgreementPooled(Server server) throws Exception {
+        return agree(server, server.keyPool.take());
+    }
+
+    @Benchmark
+    public SessionCipher keyAgreement(Server server) throws Exception {
+        return agree(server, server.agreement.generateKeyPair());
+    }
+
+    private static SessionCipher agree(Server server, KeyPair pair) throws Exception {
+        byte[] serverKey = pair.getPublic().getEncoded();
+        byte[] context = new byte[serverKey.length + server.clientKey.length];
+        System.arraycopy(serverKey, 0, context, 0, serverKey.length);
+        System.arraycopy(server.clientKey, 0, context, serverKey.length, server.clientKey.length);
+
+        SecretKey key = StandardEncryption.agreeSessionKey(server.agreement, pair.getPrivate(),
+                server.agreement.decodeKey(PublicKey.class, server.clientKey), context);
+        return new SessionCipher(key, false);
+    }
+
+}
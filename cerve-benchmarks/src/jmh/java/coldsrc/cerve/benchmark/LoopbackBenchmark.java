@@ -0,0 +1,110 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.network.*;
+import coldsrc.cerve.security.StandardEncryption;
+import coldsrc.cerve.security.SymmetricEncryptionProfile;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * End to end round trips over a loopback connection: the
+ * client sends a packet, the server echoes it back and the
+ * client waits for the echo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    static final PacketType<byte[]> PING = PacketType.byteArrayValue("benchmark/ping");
+
+    @Param({ "blocking", "eventLoop" })
+    String transportType;
+
+    @Param({ "false", "true" })
+    boolean encrypted;
+
+    @Param({ "64", "16384" })
+    int payloadSize;
+
+    NetworkTransport transport;
+    ServerSocketChannel serverSocket;
+    NetworkHandler server;
+    NetworkHandler client;
+
+    byte[] payload;
+
+    // released once for every echo the client received
+    final Semaphore echoes = new Semaphore(0);
+
+    @Setup
+    public void setup() throws Exception {
+        transport = switch (transportType) {
+            case "blocking" -> BlockingTransport.platformThreads();
+            case "eventLoop" -> new EventLoopTransport(1);
+            default -> throw new IllegalArgumentException("unknown transport " + transportType);
+        };
+
+        payload = new byte[payloadSize];
+
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel clientChannel = SocketChannel.open(serverSocket.getLocalAddress());
+        SocketChannel serverChannel = serverSocket.accept();
+
+        // the dispatchers run the packet callbacks inline, then
+        // echo the packet or signal the waiting benchmark thread
+        NetworkManager serverManager = new NetworkManager();
+        serverManager.register(PING);
+        serverManager.bindDispatcher(PING, PacketDispatcher.executor(task -> {
+            task.run();
+            server.send(PING, payload);
+        }));
+
+        NetworkManager clientManager = new NetworkManager();
+        clientManager.register(PING);
+        clientManager.bindDispatcher(PING, PacketDispatcher.executor(task -> {
+            task.run();
+            echoes.release();
+        }));
+
+        server = new NetworkHandler(serverManager, serverChannel.socket(), transport);
+        client = new NetworkHandler(clientManager, clientChannel.socket(), transport);
+
+        if (encrypted) {
+            SymmetricEncryptionProfile profile = StandardEncryption.newSymmetricEncryptionProfile().generateKeys();
+            server.setSessionCipher(profile.newSessionCipher(false));
+            client.setSessionCipher(profile.newSessionCipher(true));
+            server.enableEncryption(true);
+            client.enableEncryption(true);
+        }
+
+        server.startNetworkHandler();
+        client.startNetworkHandler();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.stopNetworkHandler();
+        server.stopNetworkHandler();
+        serverSocket.close();
+        transport.shutdown();
+    }
+
+    @Benchmark
+    public void roundTrip() throws Exception {
+        client.send(PING, payload);
+        if (!echoes.tryAcquire(5, TimeUnit.SECONDS))
+            throw new TimeoutException("no echo received");
+    }
+
+}
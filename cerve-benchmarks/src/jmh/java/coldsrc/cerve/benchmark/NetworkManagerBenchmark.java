@@ -0,0 +1,64 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.network.NetworkManager;
+import coldsrc.cerve.network.PacketType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up packet types on the receive path,
+ * by name hash and by dense network ID.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkManagerBenchmark {
+
+    @Param({ "8", "256" })
+    int packetTypes;
+
+    NetworkManager networkManager;
+    int[] hashes;
+    int[] ids;
+
+    // the index of the next lookup
+    int index;
+
+    @Setup
+    public void setup() {
+        networkManager = new NetworkManager();
+        for (int i = 0; i < packetTypes; i++)
+            networkManager.register(PacketType.byteArrayValue("benchmark/packet" + i));
+        networkManager.freeze();
+
+        int count = networkManager.getPacketTypeCount();
+        hashes = new int[count];
+        ids = new int[count];
+        for (int id = 0; id < count; id++) {
+            PacketType<?> type = networkManager.getPacketType(id);
+            hashes[id] = type.getID();
+            ids[id] = id;
+        }
+    }
+
+    private int next() {
+        int i = index + 1;
+        if (i == ids.length) i = 0;
+        return index = i;
+    }
+
+    @Benchmark
+    public PacketType<?> getPacketTypeByHash() {
+        return networkManager.getPacketTypeByHash(hashes[next()]);
+    }
+
+    @Benchmark
+    public PacketType<?> getPacketType() {
+        return networkManager.getPacketType(ids[next()]);
+    }
+
+}
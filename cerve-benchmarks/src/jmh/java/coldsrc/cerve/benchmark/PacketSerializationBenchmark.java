@@ -0,0 +1,94 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.network.PacketBuffer;
+import coldsrc.cerve.network.PacketType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and deserializing packet values, comparing
+ * buffer serialization to the object stream fallback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketSerializationBenchmark {
+
+    public record Message(String text, int code) implements Serializable { }
+
+    static final PacketType<Message> MESSAGE = PacketType.<Message>objectValue("benchmark/message")
+            .withBufferSerialization(buf -> new Message(buf.readUTF(), buf.readVarInt()),
+                    (buf, value) -> buf.writeUTF(value.text()).writeVarInt(value.code()));
+
+    // the same value without buffer serialization
+    static final PacketType<Message> MESSAGE_OBJECT = PacketType.objectValue("benchmark/messageObject");
+
+    static final PacketType<byte[]> BYTES = PacketType.byteArrayValue("benchmark/bytes");
+
+    @Param({ "16", "1024", "65536" })
+    int payloadSize;
+
+    Message message;
+    byte[] payload;
+
+    PacketBuffer buffer;
+    PacketBuffer encodedMessage;
+    PacketBuffer encodedMessageObject;
+    PacketBuffer encodedBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        message = new Message("benchmark", 42);
+        payload = new byte[payloadSize];
+        buffer = PacketBuffer.allocate(payloadSize + 64);
+
+        encodedMessage = PacketBuffer.allocate(64);
+        MESSAGE.write(encodedMessage, message);
+        encodedMessageObject = PacketBuffer.allocate(256);
+        MESSAGE_OBJECT.write(encodedMessageObject, message);
+        encodedBytes = PacketBuffer.allocate(payloadSize + 8);
+        BYTES.write(encodedBytes, payload);
+    }
+
+    @Benchmark
+    public int writeMessage() throws Exception {
+        MESSAGE.write(buffer.clear(), message);
+        return buffer.readableBytes();
+    }
+
+    @Benchmark
+    public int writeMessageObjectStream() throws Exception {
+        MESSAGE_OBJECT.write(buffer.clear(), message);
+        return buffer.readableBytes();
+    }
+
+    @Benchmark
+    public Message readMessage() throws Exception {
+        encodedMessage.readerIndex(0);
+        return MESSAGE.read(encodedMessage);
+    }
+
+    @Benchmark
+    public Message readMessageObjectStream() throws Exception {
+        encodedMessageObject.readerIndex(0);
+        return MESSAGE_OBJECT.read(encodedMessageObject);
+    }
+
+    @Benchmark
+    public int writeBytes() throws Exception {
+        BYTES.write(buffer.clear(), payload);
+        return buffer.readableBytes();
+    }
+
+    @Benchmark
+    public byte[] readBytes() throws Exception {
+        encodedBytes.readerIndex(0);
+        return BYTES.read(encodedBytes);
+    }
+
+}
@@ -0,0 +1,59 @@
+package coldsrc.cerve.benchmark;
+
+import coldsrc.cerve.permission.PermissionKey;
+import coldsrc.cerve.permission.PermissionNamespace;
+import coldsrc.cerve.permission.Permit;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Permission checks for a user with many set permissions,
+ * for allowed, denied and unset permissions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PermissionBenchmark {
+
+    static final String USER = "benchmark";
+
+    @Param({ "16", "1024" })
+    int permissions;
+
+    PermissionNamespace namespace;
+    PermissionKey allowed;
+    PermissionKey denied;
+    PermissionKey unset;
+
+    @Setup
+    public void setup() {
+        namespace = new PermissionNamespace();
+        for (int i = 0; i < permissions; i++)
+            namespace.setPermission(USER, PermissionKey.single("benchmark.permission" + i),
+                    i % 2 == 0 ? Permit.ALLOW : Permit.DENY);
+
+        allowed = PermissionKey.single("benchmark.permission0");
+        denied = PermissionKey.single("benchmark.permission1");
+        unset = PermissionKey.single("benchmark.unset");
+    }
+
+    @Benchmark
+    public boolean hasAllowedPermission() {
+        return namespace.hasPermission(USER, allowed);
+    }
+
+    @Benchmark
+    public boolean hasDeniedPermission() {
+        return namespace.hasPermission(USER, denied);
+    }
+
+    @Benchmark
+    public boolean hasUnsetPermission() {
+        return namespace.hasPermission(USER, unset);
+    }
+
+}
@@ -0,0 +1,365 @@
+package coldsrc.cerve.buffer;
+
+import coldsrc.cerve.util.Threads;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of reusable byte arrays and direct byte buffers.
+ *
+ * Buffers are grouped in power of two size classes. Every
+ * platform thread has a small cache per size class, which
+ * overflows into a bounded cache shared by all threads.
+ * Requests larger than the biggest size class are allocated
+ * and dropped without pooling.
+ *
+ * A buffer may only be released once, after which it
+ * must not be used by the releasing code anymore.
+ */
+public class BufferPool {
+
+    /**
+     * The default pool, configured by the system properties
+     * {@code cerve.buffers.direct} and {@code cerve.buffers.leakDetection}.
+     */
+    public static final BufferPool DEFAULT = new BufferPool(
+            Boolean.getBoolean("cerve.buffers.direct"),
+            6, 20, 16, 256
+    ).withLeakDetection(Boolean.getBoolean("cerve.buffers.leakDetection"));
+
+    /**
+     * A snapshot of the pool counters.
+     *
+     * @param hits The amount of acquisitions served from a cache.
+     * @param misses The amount of acquisitions which had to allocate.
+     * @param released The amount of buffers put back into a cache.
+     * @param dropped The amount of released buffers which did not fit into a cache.
+     * @param leaks The amount of buffers detected to be garbage collected without release.
+     */
+    public record Stats(long hits, long misses, long released, long dropped, long leaks) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /* -------------------------------------- */
+
+    // size class configuration
+    private final int minShift;
+    private final int maxShift;
+    private final int threadCacheSize;
+    private final int sharedCacheSize;
+
+    // if acquireBuffer should return direct buffers
+    private final boolean direct;
+
+    // the shared caches per size class
+    private final SharedCache<byte[]>[] sharedArrays;
+    private final SharedCache<ByteBuffer>[] sharedBuffers;
+
+    // the thread local caches
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    // the leak detector, only present in debug mode
+    private volatile LeakDetector leakDetector;
+
+    // counters
+    final LongAdder hits     = new LongAdder();
+    final LongAdder misses   = new LongAdder();
+    final LongAdder released = new LongAdder();
+    final LongAdder dropped  = new LongAdder();
+    final LongAdder leaks    = new LongAdder();
+
+    /**
+     * Create a new pool.
+     *
+     * @param direct If {@link #acquireBuffer(int)} should return direct buffers.
+     * @param minShift The log2 of the smallest size class.
+     * @param maxShift The log2 of the biggest size class.
+     * @param threadCacheSize The amount of buffers cached per thread and size class.
+     * @param sharedCacheSize The amount of buffers cached in the shared cache per size class.
+     */
+    public BufferPool(boolean direct, int minShift, int maxShift, int threadCacheSize, int sharedCacheSize) {
+        if (minShift < 0 || maxShift < minShift || maxShift > 30)
+            throw new IllegalArgumentException("invalid size classes " + minShift + ".." + maxShift);
+
+        this.direct = direct;
+        this.minShift = minShift;
+        this.maxShift = maxShift;
+        this.threadCacheSize = threadCacheSize;
+        this.sharedCacheSize = sharedCacheSize;
+
+        int classes = maxShift - minShift + 1;
+        @SuppressWarnings("unchecked")
+        SharedCache<byte[]>[] arrays = (SharedCache<byte[]>[]) new SharedCache<?>[classes];
+        @SuppressWarnings("unchecked")
+        SharedCache<ByteBuffer>[] buffers = (SharedCache<ByteBuffer>[]) new SharedCache<?>[classes];
+        for (int i = 0; i < classes; i++) {
+            arrays[i]  = new SharedCache<>();
+            buffers[i] = new SharedCache<>();
+        }
+
+        this.sharedArrays  = arrays;
+        this.sharedBuffers = buffers;
+
+        this.threadCache = ThreadLocal.withInitial(() -> {
+            // dont cache per virtual thread, there may be
+            // hundreds of thousands of them
+            if (threadCacheSize <= 0 || Threads.isVirtual(Thread.currentThread()))
+                return null;
+            return new ThreadCache(classes);
+        });
+    }
+
+    /**
+     * Enable or disable leak detection. When enabled, the
+     * acquisition site of every buffer is recorded and
+     * buffers which are garbage collected without having
+     * been released are reported. This is expensive.
+     *
+     * @param b If leak detection should be enabled.
+     * @return This.
+     */
+    public BufferPool withLeakDetection(boolean b) {
+        this.leakDetector = b ? new LeakDetector(this) : null;
+        return this;
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetector != null;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get the size of the biggest pooled size class.
+     */
+    public int getMaxPooledSize() {
+        return 1 << maxShift;
+    }
+
+    /**
+     * Get a snapshot of the pool counters.
+     *
+     * @return The stats.
+     */
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), released.sum(), dropped.sum(), leaks.sum());
+    }
+
+    // get the size class index for the given minimum size,
+    // or -1 if it is too big to be pooled
+    private int sizeClass(int size) {
+        if (size <= (1 << minShift))
+            return 0;
+        if (size > (1 << maxShift))
+            return -1;
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - minShift;
+    }
+
+    // get the size class index of a released buffer,
+    // or -1 if the capacity is not exactly a size class
+    private int exactSizeClass(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            return -1;
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < minShift || shift > maxShift)
+            return -1;
+        return shift - minShift;
+    }
+
+    /*
+        Arrays
+     */
+
+    /**
+     * Acquire a byte array of at least the given size. The
+     * contents of the array are undefined.
+     *
+     * @param minSize The minimum size.
+     * @return The array.
+     */
+    public byte[] acquireArray(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        byte[] arr = null;
+
+        if (sizeClass != -1) {
+            ThreadCache cache = threadCache.get();
+            if (cache != null)
+                arr = cache.arrays[sizeClass].poll();
+            if (arr == null)
+                arr = sharedArrays[sizeClass].poll();
+        }
+
+        if (arr != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            arr = new byte[sizeClass == -1 ? minSize : 1 << (sizeClass + minShift)];
+        }
+
+        LeakDetector detector = leakDetector;
+        if (detector != null)
+            detector.track(arr);
+        return arr;
+    }
+
+    /**
+     * Release the given array back into the pool.
+     *
+     * @param arr The array, may be null.
+     */
+    public void releaseArray(byte[] arr) {
+        if (arr == null)
+            return;
+
+        LeakDetector detector = leakDetector;
+        if (detector != null)
+            detector.untrack(arr);
+
+        int sizeClass = exactSizeClass(arr.length);
+        if (sizeClass == -1) {
+            dropped.increment();
+            return;
+        }
+
+        ThreadCache cache = threadCache.get();
+        if (cache != null && cache.arrays[sizeClass].size() < threadCacheSize) {
+            cache.arrays[sizeClass].add(arr);
+            released.increment();
+        } else if (sharedArrays[sizeClass].offer(arr, sharedCacheSize)) {
+            released.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /*
+        Buffers
+     */
+
+    /**
+     * Acquire a byte buffer of at least the given capacity,
+     * direct if this pool is configured to be direct. The buffer
+     * is cleared, so its limit is its capacity.
+     *
+     * @param minCapacity The minimum capacity.
+     * @return The buffer.
+     */
+    public ByteBuffer acquireBuffer(int minCapacity) {
+        if (!direct) {
+            return ByteBuffer.wrap(acquireArray(minCapacity));
+        }
+
+        int sizeClass = sizeClass(minCapacity);
+        ByteBuffer buf = null;
+
+        if (sizeClass != -1) {
+            ThreadCache cache = threadCache.get();
+            if (cache != null)
+                buf = cache.buffers[sizeClass].poll();
+            if (buf == null)
+                buf = sharedBuffers[sizeClass].poll();
+        }
+
+        if (buf != null) {
+            hits.increment();
+            buf.clear();
+        } else {
+            misses.increment();
+            buf = ByteBuffer.allocateDirect(sizeClass == -1 ? minCapacity : 1 << (sizeClass + minShift));
+        }
+
+        LeakDetector detector = leakDetector;
+        if (detector != null)
+            detector.track(buf);
+        return buf;
+    }
+
+    /**
+     * Release the given buffer back into the pool.
+     *
+     * @param buf The buffer, may be null.
+     */
+    public void releaseBuffer(ByteBuffer buf) {
+        if (buf == null)
+            return;
+
+        if (!buf.isDirect()) {
+            if (buf.hasArray() && buf.arrayOffset() == 0)
+                releaseArray(buf.array());
+            return;
+        }
+
+        LeakDetector detector = leakDetector;
+        if (detector != null)
+            detector.untrack(buf);
+
+        int sizeClass = exactSizeClass(buf.capacity());
+        if (sizeClass == -1) {
+            dropped.increment();
+            return;
+        }
+
+        ThreadCache cache = threadCache.get();
+        if (cache != null && cache.buffers[sizeClass].size() < threadCacheSize) {
+            cache.buffers[sizeClass].add(buf);
+            released.increment();
+        } else if (sharedBuffers[sizeClass].offer(buf, sharedCacheSize)) {
+            released.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * The caches of a single thread.
+     */
+    static class ThreadCache {
+        final ArrayDeque<byte[]>[] arrays;
+        final ArrayDeque<ByteBuffer>[] buffers;
+
+        @SuppressWarnings("unchecked")
+        ThreadCache(int classes) {
+            arrays  = (ArrayDeque<byte[]>[]) new ArrayDeque<?>[classes];
+            buffers = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[classes];
+            for (int i = 0; i < classes; i++) {
+                arrays[i]  = new ArrayDeque<>();
+                buffers[i] = new ArrayDeque<>();
+            }
+        }
+    }
+
+    /**
+     * A bounded cache shared by all threads.
+     */
+    static class SharedCache<T> {
+        final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T t = queue.poll();
+            if (t != null)
+                size.decrementAndGet();
+            return t;
+        }
+
+        boolean offer(T t, int max) {
+            if (size.incrementAndGet() > max) {
+                size.decrementAndGet();
+                return false;
+            }
+
+            queue.add(t);
+            return true;
+        }
+    }
+
+}
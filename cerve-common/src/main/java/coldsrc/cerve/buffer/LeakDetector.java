@@ -0,0 +1,95 @@
+package coldsrc.cerve.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records where pooled buffers were acquired and reports
+ * buffers which became unreachable without being released.
+ * Only used in debug mode, every operation takes a lock.
+ */
+final class LeakDetector {
+
+    /**
+     * Reference to a tracked buffer, holding
+     * the trace of where it was acquired.
+     */
+    static final class Tracked extends PhantomReference<Object> {
+        final int identity;
+        final Throwable acquiredAt;
+
+        Tracked(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.identity   = System.identityHashCode(referent);
+            this.acquiredAt = new Throwable("pooled buffer acquired here");
+        }
+    }
+
+    // the pool to report to
+    final BufferPool pool;
+
+    // queue of collected buffers
+    final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    // all tracked buffers by identity hash code
+    final Map<Integer, List<Tracked>> tracked = new HashMap<>();
+
+    LeakDetector(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    void track(Object buffer) {
+        reportLeaks();
+
+        Tracked ref = new Tracked(buffer, queue);
+        synchronized (tracked) {
+            tracked.computeIfAbsent(ref.identity, __ -> new ArrayList<>(1)).add(ref);
+        }
+    }
+
+    void untrack(Object buffer) {
+        int identity = System.identityHashCode(buffer);
+        synchronized (tracked) {
+            List<Tracked> list = tracked.get(identity);
+            if (list != null) {
+                for (int i = 0; i < list.size(); i++) {
+                    Tracked ref = list.get(i);
+                    if (ref.refersTo(buffer)) {
+                        ref.clear();
+                        list.remove(i);
+                        if (list.isEmpty())
+                            tracked.remove(identity);
+                        return;
+                    }
+                }
+            }
+        }
+
+        // the buffer was not acquired from the pool
+        // while tracking, or was released twice
+        new IllegalStateException("released untracked buffer, double release?").printStackTrace();
+    }
+
+    void reportLeaks() {
+        Tracked ref;
+        while ((ref = (Tracked) queue.poll()) != null) {
+            synchronized (tracked) {
+                List<Tracked> list = tracked.get(ref.identity);
+                if (list != null) {
+                    list.remove(ref);
+                    if (list.isEmpty())
+                        tracked.remove(ref.identity);
+                }
+            }
+
+            pool.leaks.increment();
+            new IllegalStateException("pooled buffer was garbage collected without being released",
+                    ref.acquiredAt).printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package coldsrc.cerve.compression;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * A compression algorithm frames can be compressed with,
+ * identified on the network by its name.
+ *
+ * Compressors and decompressors hold the reusable state of the
+ * algorithm, like buffers and hash tables, and are not thread safe.
+ * A connection keeps them for its lifetime instead of creating
+ * them for every frame.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Get the name negotiated between peers.
+     */
+    String getName();
+
+    /**
+     * Get the largest amount of bytes the given amount
+     * of bytes can be compressed to.
+     *
+     * @param length The uncompressed length.
+     * @return The maximum compressed length.
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Get the largest factor the algorithm can expand data by when
+     * decompressing, used to reject bodies declaring a larger length.
+     */
+    int maxRatio();
+
+    Compressor newCompressor();
+
+    Decompressor newDecompressor();
+
+    interface Compressor {
+
+        /**
+         * Compress the given bytes.
+         *
+         * @param src The source array.
+         * @param off The offset of the bytes.
+         * @param len The amount of bytes.
+         * @param dst The destination array.
+         * @param dstOff The offset to write at.
+         * @param maxLength The maximum amount of bytes to write.
+         * @return The compressed length, or -1 if it would exceed the maximum length.
+         */
+        int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int maxLength);
+
+        /**
+         * Release any native resources.
+         */
+        default void close() { }
+
+    }
+
+    interface Decompressor {
+
+        /**
+         * Decompress the given bytes.
+         *
+         * @param src The source array.
+         * @param off The offset of the compressed bytes.
+         * @param len The amount of compressed bytes.
+         * @param dst The destination array.
+         * @param dstOff The offset to write at.
+         * @param length The exact uncompressed length.
+         * @throws DataFormatException If the data is corrupt or does not have the given length.
+         */
+        void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int length) throws DataFormatException;
+
+        /**
+         * Release any native resources.
+         */
+        default void close() { }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+package coldsrc.cerve.compression;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * The compression codecs known by name.
+ */
+public final class CompressionCodecs {
+
+    /**
+     * The in-tree LZ codec.
+     */
+    public static final CompressionCodec LZ = new LZCodec();
+
+    /**
+     * Deflate at the fastest level.
+     */
+    public static final CompressionCodec DEFLATE = new DeflateCodec(Deflater.BEST_SPEED);
+
+    // all codecs by name
+    private static final Map<String, CompressionCodec> byName = new ConcurrentHashMap<>();
+
+    static {
+        register(LZ);
+        register(DEFLATE);
+    }
+
+    /**
+     * Register a codec, replacing any codec with the same name.
+     */
+    public static void register(CompressionCodec codec) {
+        byName.put(codec.getName(), codec);
+    }
+
+    /**
+     * Get a codec by name.
+     *
+     * @param name The name.
+     * @return The codec or null if unknown.
+     */
+    public static CompressionCodec get(String name) {
+        return byName.get(name);
+    }
+
+}
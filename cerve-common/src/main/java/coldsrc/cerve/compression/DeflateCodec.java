@@ -0,0 +1,103 @@
+package coldsrc.cerve.compression;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate, compressing better than {@link LZCodec}
+ * at a considerably higher CPU cost.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    /**
+     * The compression level.
+     */
+    private final int level;
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // the bound zlib guarantees
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public int maxRatio() {
+        // a match of 258 bytes takes at least 2 bits
+        return 1032;
+    }
+
+    @Override
+    public Compressor newCompressor() {
+        Deflater deflater = new Deflater(level, true);
+        return new Compressor() {
+            @Override
+            public int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int maxLength) {
+                deflater.reset();
+                deflater.setInput(src, off, len);
+                deflater.finish();
+                int written = 0;
+                while (!deflater.finished()) {
+                    if (written == maxLength)
+                        return -1;
+                    written += deflater.deflate(dst, dstOff + written, maxLength - written);
+                }
+
+                return written;
+            }
+
+            @Override
+            public void close() {
+                deflater.end();
+            }
+        };
+    }
+
+    @Override
+    public Decompressor newDecompressor() {
+        Inflater inflater = new Inflater(true);
+        byte[] probe = new byte[1];
+        return new Decompressor() {
+            @Override
+            public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int length) throws DataFormatException {
+                inflater.reset();
+                inflater.setInput(src, off, len);
+                int read = 0;
+                while (read < length) {
+                    int n = inflater.inflate(dst, dstOff + read, length - read);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+
+                // the end of the stream produces no output, so it is not
+                // reached by the loop when the output is already full, like
+                // for empty data, any further byte makes it too long
+                if (read == length && !inflater.finished() && inflater.inflate(probe) != 0)
+                    read++;
+
+                if (read != length || !inflater.finished())
+                    throw new DataFormatException("decompressed " + read + " bytes, expected " + length);
+            }
+
+            @Override
+            public void close() {
+                inflater.end();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,221 @@
+package coldsrc.cerve.compression;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A fast LZ77 codec in the style of LZ4, trading compression ratio
+ * for speed, cheap enough to compress every large frame.
+ *
+ * The data is a sequence of tokens. Each token holds the amount of
+ * literal bytes in the high and the match length minus
+ * {@link #MIN_MATCH} in the low 4 bits, a value of 15 continues in
+ * following bytes which are added until one is below 255. The
+ * literals follow, then the 2 byte little endian distance of the
+ * match. The last token has only literals.
+ */
+public class LZCodec implements CompressionCodec {
+
+    /**
+     * The shortest match.
+     */
+    static final int MIN_MATCH = 4;
+
+    /**
+     * The farthest a match can be back.
+     */
+    static final int MAX_DISTANCE = 0xFFFF;
+
+    /**
+     * The amount of bytes at the end which are always literals,
+     * so matches can be found with unchecked 4 byte reads.
+     */
+    static final int END_LITERALS = 5;
+
+    // the hash table size bounds
+    static final int MIN_HASH_BITS = 8;
+    static final int MAX_HASH_BITS = 14;
+
+    @Override
+    public String getName() {
+        return "lz";
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int maxRatio() {
+        // every length byte of 255 adds at most 255 bytes
+        return 255;
+    }
+
+    @Override
+    public Compressor newCompressor() {
+        return new LZCompressor();
+    }
+
+    @Override
+    public Decompressor newDecompressor() {
+        return LZCodec::decompress;
+    }
+
+    static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    static final class LZCompressor implements Compressor {
+
+        // the last position + 1 of every hashed 4 byte sequence
+        final int[] table = new int[1 << MAX_HASH_BITS];
+
+        // the output state of the current call
+        byte[] dst;
+        int dstPos;
+        int dstEnd;
+
+        @Override
+        public int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int maxLength) {
+            this.dst = dst;
+            this.dstPos = dstOff;
+            this.dstEnd = dstOff + maxLength;
+
+            // only clear the part of the table used for this input
+            int hashBits = Math.max(MIN_HASH_BITS, Math.min(MAX_HASH_BITS, 32 - Integer.numberOfLeadingZeros(len)));
+            int hashShift = 32 - hashBits;
+            Arrays.fill(table, 0, 1 << hashBits, 0);
+
+            int end = off + len;
+            int matchLimit = end - END_LITERALS;
+            int anchor = off;
+            int pos = off;
+            try {
+                while (pos < matchLimit - MIN_MATCH) {
+                    int sequence = readInt(src, pos);
+                    int hash = (sequence * 0x9E3779B1) >>> hashShift;
+                    int ref = table[hash] - 1 + off;
+                    table[hash] = pos - off + 1;
+
+                    if (ref < off || pos - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                        // skip faster through incompressible data
+                        pos += 1 + ((pos - anchor) >>> 6);
+                        continue;
+                    }
+
+                    int matchLength = MIN_MATCH;
+                    while (pos + matchLength < matchLimit && src[ref + matchLength] == src[pos + matchLength])
+                        matchLength++;
+
+                    if (!writeSequence(src, anchor, pos - anchor, pos - ref, matchLength))
+                        return -1;
+                    pos += matchLength;
+                    anchor = pos;
+                }
+
+                if (!writeSequence(src, anchor, end - anchor, 0, 0))
+                    return -1;
+                return dstPos - dstOff;
+            } finally {
+                this.dst = null;
+            }
+        }
+
+        private boolean writeSequence(byte[] src, int literalStart, int literalLength, int distance, int matchLength) {
+            // token, lengths, literals and distance
+            if (dstEnd - dstPos < 1 + literalLength + literalLength / 255 + 1 + 2 + matchLength / 255 + 1)
+                return false;
+
+            int literalBits = Math.min(literalLength, 15);
+            int matchBits = matchLength == 0 ? 0 : Math.min(matchLength - MIN_MATCH, 15);
+            dst[dstPos++] = (byte) (literalBits << 4 | matchBits);
+            if (literalLength >= 15)
+                writeLength(literalLength - 15);
+
+            System.arraycopy(src, literalStart, dst, dstPos, literalLength);
+            dstPos += literalLength;
+
+            if (matchLength != 0) {
+                dst[dstPos++] = (byte) distance;
+                dst[dstPos++] = (byte) (distance >>> 8);
+                if (matchLength - MIN_MATCH >= 15)
+                    writeLength(matchLength - MIN_MATCH - 15);
+            }
+
+            return true;
+        }
+
+        private void writeLength(int length) {
+            while (length >= 255) {
+                dst[dstPos++] = (byte) 255;
+                length -= 255;
+            }
+
+            dst[dstPos++] = (byte) length;
+        }
+
+    }
+
+    static void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int length) throws DataFormatException {
+        int end = off + len;
+        int dstEnd = dstOff + length;
+        int pos = off;
+        int dstPos = dstOff;
+        try {
+            while (true) {
+                int token = src[pos++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[pos++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+
+                if (literalLength > end - pos || literalLength > dstEnd - dstPos)
+                    throw new DataFormatException("literals exceed the data");
+                System.arraycopy(src, pos, dst, dstPos, literalLength);
+                pos += literalLength;
+                dstPos += literalLength;
+
+                // the last token has no match
+                if (pos == end)
+                    break;
+
+                int distance = (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8;
+                pos += 2;
+                int matchLength = (token & 0xF) + MIN_MATCH;
+                if ((token & 0xF) == 15) {
+                    int b;
+                    do {
+                        b = src[pos++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+
+                int from = dstPos - distance;
+                if (distance == 0 || from < dstOff || matchLength > dstEnd - dstPos)
+                    throw new DataFormatException("invalid match");
+
+                // matches may overlap themselves
+                if (distance >= matchLength) {
+                    System.arraycopy(dst, from, dst, dstPos, matchLength);
+                } else {
+                    for (int i = 0; i < matchLength; i++)
+                        dst[dstPos + i] = dst[from + i];
+                }
+
+                dstPos += matchLength;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new DataFormatException("truncated data");
+        }
+
+        if (dstPos != dstEnd)
+            throw new DataFormatException("decompressed " + (dstPos - dstOff) + " bytes, expected " + length);
+    }
+
+}
@@ -0,0 +1,318 @@
+package coldsrc.cerve.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs the messages of wrapped loggers on a background thread.
+ *
+ * Logging threads only claim a slot in a bounded ring buffer with a
+ * single compare and set and store the unformatted message parts in it,
+ * formatting and writing happen on the background thread which drains
+ * the ring. Arguments are formatted after the call returned, so they
+ * should not be mutated afterwards. If the ring is full the message is
+ * dropped and counted instead of blocking the logging thread, which may
+ * be a network thread.
+ */
+public class AsyncLogging implements AutoCloseable {
+
+    /**
+     * The default amount of messages the ring holds.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    // the longest time the drain thread parks without being woken
+    static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The shared instance, used by {@link LoggerProvider#javaLogging(boolean)}.
+     */
+    private static volatile AsyncLogging shared;
+
+    /**
+     * Get the shared instance, creating and starting it if needed. It
+     * drains the remaining messages when the runtime shuts down.
+     *
+     * @return The shared instance.
+     */
+    public static AsyncLogging shared() {
+        AsyncLogging instance = shared;
+        if (instance == null) {
+            synchronized (AsyncLogging.class) {
+                instance = shared;
+                if (instance == null) {
+                    shared = instance = new AsyncLogging(DEFAULT_CAPACITY).start();
+                    final AsyncLogging ref = instance;
+                    Runtime.getRuntime().addShutdownHook(new Thread(ref::close, "CerveLoggingShutdown"));
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    /**
+     * A slot of the ring. The sequence tells whose turn it is, a slot
+     * at ring position p is free to claim at sequence p and holds a
+     * message to drain at sequence p + 1.
+     */
+    static final class Slot {
+        volatile long sequence;
+
+        LoggerProxy sink;
+        LoggerProxy.Level level;
+        String text;
+        Object[] message;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A snapshot of the counters.
+     *
+     * @param logged The amount of messages logged.
+     * @param dropped The amount of messages dropped because the ring was full.
+     * @param pending The amount of messages waiting in the ring.
+     */
+    public record Stats(long logged, long dropped, long pending) { }
+
+    /* -------------------------------------- */
+
+    // the ring
+    private final Slot[] ring;
+    private final int mask;
+
+    // the next position to claim, and to drain
+    // which is only written by the drain thread
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    // the drain thread, and if it is parked
+    private volatile Thread thread;
+    private volatile boolean parked;
+    private volatile boolean closed;
+
+    // the counters
+    final LongAdder logged  = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+
+    public AsyncLogging(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        this.ring = new Slot[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+            ring[i] = new Slot(i);
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public Stats getStats() {
+        return new Stats(logged.sum(), dropped.sum(), tail.get() - head);
+    }
+
+    /**
+     * Start the drain thread, does nothing if it is already running.
+     *
+     * @return This.
+     */
+    public synchronized AsyncLogging start() {
+        if (thread != null)
+            return this;
+        if (closed)
+            throw new IllegalStateException("async logging is closed");
+
+        Thread t = new Thread(this::drainLoop, "CerveLogging");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+        return this;
+    }
+
+    /**
+     * Drain the remaining messages and stop the drain thread,
+     * messages logged afterwards are dropped.
+     */
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            closed = true;
+        }
+
+        if (t == null)
+            return;
+        LockSupport.unpark(t);
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until all messages logged before this call were written.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return If all were written in time.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = tail.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (head < target) {
+            if (thread == null || System.nanoTime() - deadline >= 0)
+                return false;
+            wake();
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+
+    /**
+     * Wrap the given logger, logging its messages on the drain thread.
+     * The level checks are answered by the given logger right away.
+     *
+     * @param sink The logger writing the messages.
+     * @return The asynchronous logger.
+     */
+    public LoggerProxy wrap(LoggerProxy sink) {
+        return new LoggerProxy() {
+            @Override public void debug0(String msg) { enqueue(sink, Level.DEBUG, msg, null); }
+            @Override public void info(String msg) { enqueue(sink, Level.INFO, msg, null); }
+            @Override public void warn(String msg) { enqueue(sink, Level.WARN, msg, null); }
+            @Override public void error(String msg) { enqueue(sink, Level.ERROR, msg, null); }
+
+            @Override
+            public boolean isEnabled(Level level) {
+                return sink.isEnabled(level);
+            }
+
+            @Override
+            public void log(Level level, Object[] message) {
+                enqueue(sink, level, null, message);
+            }
+        };
+    }
+
+    // claim a slot and publish the message
+    private void enqueue(LoggerProxy sink, LoggerProxy.Level level, String text, Object[] message) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+
+        Slot slot;
+        long pos = tail.get();
+        while (true) {
+            slot = ring[(int) (pos & mask)];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the drain thread did not free the slot yet
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        slot.sink = sink;
+        slot.level = level;
+        slot.text = text;
+        slot.message = message;
+        slot.sequence = pos + 1;
+
+        if (parked)
+            wake();
+    }
+
+    private void wake() {
+        Thread t = thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    private void drainLoop() {
+        while (true) {
+            if (drain())
+                continue;
+
+            if (closed) {
+                // a message may have been published just before closing
+                drain();
+                break;
+            }
+
+            // recheck after announcing the park,
+            // so a concurrent enqueue always wakes us
+            parked = true;
+            if (!isReady())
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            parked = false;
+        }
+
+        synchronized (this) {
+            thread = null;
+        }
+    }
+
+    private boolean isReady() {
+        long pos = head;
+        return ring[(int) (pos & mask)].sequence == pos + 1;
+    }
+
+    // write all published messages, returns if there were any
+    private boolean drain() {
+        long pos = head;
+        boolean any = false;
+        while (true) {
+            Slot slot = ring[(int) (pos & mask)];
+            if (slot.sequence != pos + 1)
+                break;
+
+            try {
+                write(slot);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+
+            slot.sink = null;
+            slot.text = null;
+            slot.message = null;
+            slot.sequence = pos + ring.length;
+            head = ++pos;
+            any = true;
+        }
+
+        return any;
+    }
+
+    private void write(Slot slot) {
+        LoggerProxy sink = slot.sink;
+        if (slot.message != null) {
+            sink.log(slot.level, slot.message);
+        } else {
+            switch (slot.level) {
+                case DEBUG -> sink.debug0(slot.text);
+                case INFO  -> sink.info(slot.text);
+                case WARN  -> sink.warn(slot.text);
+                case ERROR -> sink.error(slot.text);
+            }
+        }
+
+        logged.increment();
+    }
+
+}
@@ -0,0 +1,55 @@
+package coldsrc.cerve.logging;
+
+/**
+ * Formats the messages of {@link LoggerProxy}s.
+ */
+public final class LogMessages {
+
+    // the builders are reused per thread, but
+    // dropped if a huge message blew them up
+    static final int MAX_RETAINED_CAPACITY = 4096;
+    private static final ThreadLocal<StringBuilder> BUILDER =
+            ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private LogMessages() { }
+
+    /**
+     * Format the given message parts. If the first part is a string, each
+     * {@code {}} in it is replaced by the next part. Parts left over are
+     * appended, so messages without placeholders are simply concatenated.
+     *
+     * @param message The message parts.
+     * @return The message.
+     */
+    public static String format(Object[] message) {
+        if (message == null || message.length == 0)
+            return "";
+        if (message.length == 1)
+            return String.valueOf(message[0]);
+
+        StringBuilder b = BUILDER.get();
+        b.setLength(0);
+
+        int next = 0;
+        if (message[0] instanceof String format) {
+            next = 1;
+            int start = 0;
+            int placeholder;
+            while (next < message.length && (placeholder = format.indexOf("{}", start)) != -1) {
+                b.append(format, start, placeholder).append(message[next++]);
+                start = placeholder + 2;
+            }
+
+            b.append(format, start, format.length());
+        }
+
+        for (; next < message.length; next++)
+            b.append(message[next]);
+
+        String msg = b.toString();
+        if (b.capacity() > MAX_RETAINED_CAPACITY)
+            BUILDER.remove();
+        return msg;
+    }
+
+}
@@ -7,15 +7,48 @@ import java.util.logging.Logger;
 
 public class LoggerProvider {
 
+    /**
+     * Create a provider logging through {@code java.util.logging}
+     * on the background thread of the shared {@link AsyncLogging}.
+     *
+     * @param enableDebug If debug messages should be logged.
+     * @return The provider.
+     */
     public static LoggerProvider javaLogging(boolean enableDebug) {
-        return new LoggerProvider(s -> new LoggerProxy() {
-            // the java logger instance
-            final Logger logger = Logger.getLogger(s);
-
-            @Override public void debug0(String msg) { logger.info("[DEBUG] " + msg); }
-            @Override public void info(String msg) { logger.info(msg); }
-            @Override public void warn(String msg) { logger.warning(msg); }
-            @Override public void error(String msg) { logger.severe(msg); }
+        return javaLogging(enableDebug, true);
+    }
+
+    /**
+     * Create a provider logging through {@code java.util.logging}.
+     *
+     * @param enableDebug If debug messages should be logged.
+     * @param async If messages should be logged on the background thread
+     *              of the shared {@link AsyncLogging} instead of the calling thread.
+     * @return The provider.
+     */
+    public static LoggerProvider javaLogging(boolean enableDebug, boolean async) {
+        return new LoggerProvider(s -> {
+            LoggerProxy proxy = new LoggerProxy() {
+                // the java logger instance
+                final Logger logger = Logger.getLogger(s);
+
+                @Override public void debug0(String msg) { logger.info("[DEBUG] " + msg); }
+                @Override public void info(String msg) { logger.info(msg); }
+                @Override public void warn(String msg) { logger.warning(msg); }
+                @Override public void error(String msg) { logger.severe(msg); }
+
+                @Override
+                public boolean isEnabled(Level level) {
+                    return switch (level) {
+                        case DEBUG -> false;
+                        case INFO  -> logger.isLoggable(java.util.logging.Level.INFO);
+                        case WARN  -> logger.isLoggable(java.util.logging.Level.WARNING);
+                        case ERROR -> logger.isLoggable(java.util.logging.Level.SEVERE);
+                    };
+                }
+            };
+
+            return async ? AsyncLogging.shared().wrap(proxy) : proxy;
         }, enableDebug);
     }
 
@@ -1,30 +1,50 @@
 package coldsrc.cerve.logging;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-
 /**
  * Wraps a logger instance from any provider.
+ *
+ * Implementations only have to provide the methods logging a finished
+ * message. The other methods check the level before anything is
+ * formatted and pass the message parts to {@link #log(Level, Object[])},
+ * so a disabled log call costs a level check and nothing else. Messages
+ * are formatted by {@link LogMessages#format(Object[])}, replacing each
+ * {@code {}} in the first part with the following parts.
  */
 public interface LoggerProxy {
 
+    /**
+     * The log levels.
+     */
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /**
+     * Wrap the given logger to also log debug messages.
+     *
+     * @param in The logger.
+     * @return The debug enabled logger.
+     */
     static LoggerProxy debugEnabled(LoggerProxy in) {
-        try {
-            Method debug0 = LoggerProxy.class.getMethod("debug0", Object[].class);
-            Method debug = LoggerProxy.class.getMethod("debug", Object[].class);
-            return (LoggerProxy) Proxy.newProxyInstance(ClassLoader.getSystemClassLoader(), new Class[]{ LoggerProxy.class },
-                    ((proxy, method, args) -> {
-                        if (method != debug) {
-                            return InvocationHandler.invokeDefault(proxy, method, args);
-                        }
-
-                        return debug0.invoke(proxy, args);
-                    }));
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return new LoggerProxy() {
+            @Override public void debug0(String msg) { in.debug0(msg); }
+            @Override public void info(String msg) { in.info(msg); }
+            @Override public void warn(String msg) { in.warn(msg); }
+            @Override public void error(String msg) { in.error(msg); }
+
+            @Override
+            public boolean isEnabled(Level level) {
+                return level == Level.DEBUG || in.isEnabled(level);
+            }
+
+            @Override
+            public void log(Level level, Object[] message) {
+                in.log(level, message);
+            }
+        };
     }
 
     static LoggerProxy voiding() {
@@ -33,6 +53,7 @@ public interface LoggerProxy {
             @Override public void info(String msg) { }
             @Override public void warn(String msg) { }
             @Override public void error(String msg) { }
+            @Override public boolean isEnabled(Level level) { return false; }
         };
     }
 
@@ -42,20 +63,56 @@ public interface LoggerProxy {
     void warn(String msg);
     void error(String msg);
 
+    /**
+     * Check if messages of the given level are logged,
+     * by default everything but debug messages.
+     *
+     * @param level The level.
+     * @return If enabled.
+     */
+    default boolean isEnabled(Level level) {
+        return level != Level.DEBUG;
+    }
+
+    default boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     * Format and log the given message, only called if the
+     * level is enabled. Overridden to defer the formatting, like
+     * the loggers of {@link AsyncLogging} do.
+     *
+     * @param level The level.
+     * @param message The message parts, the format followed by the arguments.
+     */
+    default void log(Level level, Object[] message) {
+        String msg = LogMessages.format(message);
+        switch (level) {
+            case DEBUG -> debug0(msg);
+            case INFO  -> info(msg);
+            case WARN  -> warn(msg);
+            case ERROR -> error(msg);
+        }
+    }
+
     default void debug0(Object... msg) {
-        debug0(buildMessage(msg));
+        log(Level.DEBUG, msg);
     }
 
     default void info(Object... msg) {
-        info(buildMessage(msg));
+        if (isEnabled(Level.INFO))
+            log(Level.INFO, msg);
     }
 
     default void warn(Object... msg) {
-        warn(buildMessage(msg));
+        if (isEnabled(Level.WARN))
+            log(Level.WARN, msg);
     }
 
     default void error(Object... msg) {
-        error(buildMessage(msg));
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, msg);
     }
 
     /**
@@ -64,13 +121,55 @@ public interface LoggerProxy {
      *
      * @param msg The message.
      */
-    default void debug(Object... msg) { }
+    default void debug(Object... msg) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, msg);
+    }
+
+    /* Parameterized, without the varargs array while disabled */
+
+    default void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, new Object[] { format, arg });
+    }
+
+    default void debug(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.DEBUG))
+            log(Level.DEBUG, new Object[] { format, arg0, arg1 });
+    }
+
+    default void info(String format, Object arg) {
+        if (isEnabled(Level.INFO))
+            log(Level.INFO, new Object[] { format, arg });
+    }
+
+    default void info(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.INFO))
+            log(Level.INFO, new Object[] { format, arg0, arg1 });
+    }
+
+    default void warn(String format, Object arg) {
+        if (isEnabled(Level.WARN))
+            log(Level.WARN, new Object[] { format, arg });
+    }
+
+    default void warn(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.WARN))
+            log(Level.WARN, new Object[] { format, arg0, arg1 });
+    }
+
+    default void error(String format, Object arg) {
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, new Object[] { format, arg });
+    }
+
+    default void error(String format, Object arg0, Object arg1) {
+        if (isEnabled(Level.ERROR))
+            log(Level.ERROR, new Object[] { format, arg0, arg1 });
+    }
 
     default String buildMessage(Object... msg) {
-        StringBuilder b = new StringBuilder();
-        for (Object o : msg)
-            b.append(o);
-        return b.toString();
+        return LogMessages.format(msg);
     }
 
 }
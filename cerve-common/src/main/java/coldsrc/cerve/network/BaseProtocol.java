@@ -1,10 +1,30 @@
 package coldsrc.cerve.network;
 
+import java.io.IOException;
+
 /**
  * Base/general-purpose protocol specification.
  */
 public class BaseProtocol {
 
+    /*
+        Protocol Check
+     */
+
+    /**
+     * Both ways: The first frame sent by each end, carrying the
+     * {@link NetworkManager#getProtocolHash() protocol hash}. It always has
+     * network ID 0, so it can be read by peers which disagree on all others.
+     */
+    public static final PacketType<Integer> PROTOCOL_HELLO = new PacketType<Integer>(
+            "protocol_hello",
+            stream -> stream.readInt(),
+            (stream, value) -> stream.writeInt(value)
+    ).withBufferSerialization(
+            buf -> buf.readInt(),
+            (buf, value) -> buf.writeInt(value)
+    );
+
     /*
         Encryption Handshake
      */
@@ -25,11 +45,143 @@ public class BaseProtocol {
      */
     public static final PacketType<byte[]> SERVERBOUND_SECRET_KEY = PacketType.byteArrayValue("serverbound_secret_key");
 
+    /**
+     * Clientbound: Sends an ephemeral X25519 public key of the server, initiating
+     * the encryption handshake with a key agreement instead of {@link #CLIENTBOUND_PUBLIC_KEY}.
+     */
+    public static final PacketType<byte[]> CLIENTBOUND_KEY_AGREEMENT = PacketType.byteArrayValue("clientbound_key_agreement");
+
+    /**
+     * Serverbound: Sends the ephemeral X25519 public key of the client, both
+     * ends derive the session key from their private and the others public key.
+     */
+    public static final PacketType<byte[]> SERVERBOUND_KEY_AGREEMENT = PacketType.byteArrayValue("serverbound_key_agreement");
+
     /**
      * Clientbound: Signals to the client that the handshake was successful.
      */
     public static final PacketType<Void> CLIENTBOUND_HANDSHAKE_OK = PacketType.noValue("clientbound_handshake_ok");
 
+    /*
+        Session Resumption
+     */
+
+    /**
+     * A resumption attempt of a client.
+     *
+     * @param ticket The ticket issued in an earlier session.
+     * @param random The fresh random of the client.
+     */
+    public static record Resume(byte[] ticket, byte[] random) { }
+
+    /**
+     * Clientbound: Sends a resumption ticket, encrypted, after the handshake.
+     */
+    public static final PacketType<byte[]> CLIENTBOUND_SESSION_TICKET = PacketType.byteArrayValue("clientbound_session_ticket");
+
+    /**
+     * Serverbound: Answers the packet initiating the encryption handshake
+     * with a ticket instead, asking to resume the session it was issued in.
+     */
+    public static final PacketType<Resume> SERVERBOUND_RESUME = new PacketType<Resume>(
+            "serverbound_resume",
+            stream -> {
+                byte[] ticket = new byte[stream.readInt()];
+                stream.readFully(ticket);
+                byte[] random = new byte[stream.readInt()];
+                stream.readFully(random);
+                return new Resume(ticket, random);
+            },
+            (stream, value) -> {
+                stream.writeInt(value.ticket().length);
+                stream.write(value.ticket());
+                stream.writeInt(value.random().length);
+                stream.write(value.random());
+            }
+    ).withBufferSerialization(
+            buf -> new Resume(buf.readByteArray(), buf.readByteArray()),
+            (buf, value) -> buf.writeByteArray(value.ticket()).writeByteArray(value.random())
+    );
+
+    /**
+     * Clientbound: Accepts the resumption with the fresh random of
+     * the server, every frame after it is encrypted with the resumed key.
+     */
+    public static final PacketType<byte[]> CLIENTBOUND_RESUME_OK = PacketType.byteArrayValue("clientbound_resume_ok");
+
+    /**
+     * Clientbound: Rejects the resumption, the client continues
+     * with the full handshake the server initiated.
+     */
+    public static final PacketType<Void> CLIENTBOUND_RESUME_REJECTED = PacketType.noValue("clientbound_resume_rejected");
+
+    /*
+        Compression Handshake
+     */
+
+    /**
+     * The most codecs accepted in a compression offer.
+     */
+    public static final int MAX_OFFERED_CODECS = 16;
+
+    /**
+     * Serverbound: Offers the names of the compression codecs
+     * the client supports, in the order it prefers them.
+     */
+    public static final PacketType<String[]> SERVERBOUND_COMPRESSION_OFFER = new PacketType<String[]>(
+            "serverbound_compression_offer",
+            stream -> {
+                int count = stream.readInt();
+                if (count < 0 || count > MAX_OFFERED_CODECS)
+                    throw new IOException("invalid codec count " + count);
+                String[] codecs = new String[count];
+                for (int i = 0; i < codecs.length; i++)
+                    codecs[i] = stream.readUTF();
+                return codecs;
+            },
+            (stream, value) -> {
+                stream.writeInt(value.length);
+                for (String codec : value)
+                    stream.writeUTF(codec);
+            }
+    ).withBufferSerialization(
+            buf -> {
+                // each name takes at least its length prefix
+                int count = buf.readVarInt();
+                if (count < 0 || count > MAX_OFFERED_CODECS || count > buf.readableBytes())
+                    throw new IllegalArgumentException("invalid codec count " + count);
+                String[] codecs = new String[count];
+                for (int i = 0; i < codecs.length; i++)
+                    codecs[i] = buf.readUTF();
+                return codecs;
+            },
+            (buf, value) -> {
+                buf.writeVarInt(value.length);
+                for (String codec : value)
+                    buf.writeUTF(codec);
+            }
+    );
+
+    /**
+     * Both ways: Signals that all following frames sent by this peer carry
+     * a compression marker and may be compressed with the named codec.
+     * The server sends it in response to the offer, naming {@link #NO_COMPRESSION}
+     * if it supports none of the offered codecs, the client replies with the same codec.
+     */
+    public static final PacketType<String> COMPRESSION_START = new PacketType<String>(
+            "compression_start",
+            stream -> stream.readUTF(),
+            (stream, value) -> stream.writeUTF(value)
+    ).withBufferSerialization(
+            buf -> buf.readUTF(),
+            (buf, value) -> buf.writeUTF(value)
+    );
+
+    /**
+     * The codec name selecting no compression.
+     */
+    public static final String NO_COMPRESSION = "none";
+
     /*
         Disconnect
      */
@@ -39,10 +191,13 @@ public class BaseProtocol {
      */
     public static record Disconnect(String reason) { }
 
-    public static final PacketType<Disconnect> DISCONNECT = new PacketType<>(
+    public static final PacketType<Disconnect> DISCONNECT = new PacketType<Disconnect>(
             "disconnect",
             stream -> new Disconnect(stream.readUTF()),
             (stream, value) -> stream.writeUTF(value.reason())
+    ).withBufferSerialization(
+            buf -> new Disconnect(buf.readUTF()),
+            (buf, value) -> buf.writeUTF(value.reason())
     );
 
 }
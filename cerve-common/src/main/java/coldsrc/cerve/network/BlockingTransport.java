@@ -0,0 +1,450 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.util.Threads;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transport which runs one blocking read thread
+ * per network handler. Packet callbacks are called
+ * on the read thread.
+ *
+ * Outbound frames are queued per connection, whichever thread
+ * flushes writes all queued frames through one aggregation buffer,
+ * while threads flushing meanwhile leave their frames to it. The
+ * thread writing blocks while the socket buffer is full.
+ *
+ * The threads are created by a configurable thread factory,
+ * which allows running the read loops on virtual threads
+ * with {@link #virtualThreads()}.
+ */
+public class BlockingTransport implements NetworkTransport {
+
+    /**
+     * The shared instance using platform threads.
+     */
+    public static final BlockingTransport INSTANCE = new BlockingTransport();
+
+    /**
+     * Create a blocking transport which runs every
+     * read loop on a new virtual thread.
+     *
+     * @return The transport.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static BlockingTransport virtualThreads() {
+        return new BlockingTransport(Threads.virtualThreadFactory("CerveClientNetworkHandler"));
+    }
+
+    /**
+     * Create a blocking transport which runs every
+     * read loop on a new platform thread.
+     *
+     * @return The transport.
+     */
+    public static BlockingTransport platformThreads() {
+        return new BlockingTransport(Threads.platformThreadFactory("CerveClientNetworkHandler", false));
+    }
+
+    /**
+     * The size of the per connection write aggregation buffer.
+     */
+    static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The size of the per connection read buffer, which only
+     * grows while reading a larger frame.
+     */
+    static final int INITIAL_READ_BUFFER_SIZE = 1024;
+
+    /**
+     * The timer for delayed flushes, created when first needed.
+     */
+    private static volatile ScheduledExecutorService flushTimer;
+
+    static ScheduledExecutorService flushTimer() {
+        ScheduledExecutorService timer = flushTimer;
+        if (timer == null) {
+            synchronized (BlockingTransport.class) {
+                timer = flushTimer;
+                if (timer == null) {
+                    flushTimer = timer = Executors.newSingleThreadScheduledExecutor(
+                            Threads.platformThreadFactory("CerveFlushTimer", true));
+                }
+            }
+        }
+
+        return timer;
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The factory for the read threads.
+     */
+    private final ThreadFactory threadFactory;
+
+    public BlockingTransport() {
+        this(Threads.platformThreadFactory("CerveClientNetworkHandler", false));
+    }
+
+    public BlockingTransport(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    @Override
+    public boolean open(NetworkHandler handler) {
+        final Socket socket = handler.getSocket();
+        if (socket.isClosed())
+            return false;
+
+        Connection connection = new Connection();
+        connection.thread = threadFactory.newThread(() -> {
+            NetworkHandler.DisconnectReason disconnectReason;
+            byte[] buf = BufferPool.DEFAULT.acquireArray(INITIAL_READ_BUFFER_SIZE);
+
+            try {
+                final DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+
+                while (true) {
+                    if (!handler.isNetworkHandlerRunning()) {
+                        disconnectReason = NetworkHandler.DisconnectReason.ISSUED;
+                        break;
+                    }
+
+                    if (socket.isClosed()) {
+                        disconnectReason = NetworkHandler.DisconnectReason.SOCKET_CLOSED;
+                        break;
+                    }
+
+                    // read frame
+                    int length = readVarInt(inputStream);
+                    if (length < 0 || length > handler.getMaxFrameSize())
+                        throw new IOException("invalid frame length " + length);
+
+                    // grow in steps as the bytes arrive, so
+                    // a declared length alone allocates nothing
+                    int read = Math.min(length, buf.length);
+                    inputStream.readFully(buf, 0, read);
+                    while (read < length) {
+                        byte[] grown = BufferPool.DEFAULT.acquireArray(Math.min(length, buf.length * 2));
+                        System.arraycopy(buf, 0, grown, 0, read);
+                        BufferPool.DEFAULT.releaseArray(buf);
+                        buf = grown;
+
+                        int step = Math.min(length, buf.length) - read;
+                        inputStream.readFully(buf, read, step);
+                        read += step;
+                    }
+
+                    handler.receiveFrame(buf, 0, length);
+
+                    // do not keep the buffer of an oversized frame
+                    if (buf.length > INITIAL_READ_BUFFER_SIZE) {
+                        BufferPool.DEFAULT.releaseArray(buf);
+                        buf = BufferPool.DEFAULT.acquireArray(INITIAL_READ_BUFFER_SIZE);
+                    }
+
+                    // flush what was sent while handling the frame,
+                    // including bulk pulled by the flush itself
+                    while (connection.dirty) {
+                        connection.dirty = false;
+                        flush(handler);
+                    }
+                }
+            } catch (EOFException e) {
+                disconnectReason = NetworkHandler.DisconnectReason.DISCONNECT;
+            } catch (IOException e) {
+                disconnectReason = handler.isNetworkHandlerRunning() ?
+                        NetworkHandler.DisconnectReason.SOCKET_CLOSED :
+                        NetworkHandler.DisconnectReason.ISSUED;
+            } catch (Throwable t) {
+                // still clean up and report the disconnect
+                disconnectReason = NetworkHandler.DisconnectReason.FATAL_ERROR;
+                t.printStackTrace();
+            }
+
+            // the loop also ends on invalid frames,
+            // which leave the socket open
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            BufferPool.DEFAULT.releaseArray(buf);
+            connection.writeLock.lock();
+            try {
+                Object entry;
+                while ((entry = connection.pendingWrites.poll()) != null)
+                    release(entry);
+                connection.pendingBytes.set(0);
+                BufferPool.DEFAULT.releaseArray(connection.writeBuffer);
+                connection.writeBuffer = null;
+            } finally {
+                connection.writeLock.unlock();
+            }
+
+            handler.disconnected(disconnectReason);
+        });
+
+        handler.transportContext = connection;
+        handler.opened();
+        connection.thread.start();
+        return true;
+    }
+
+    @Override
+    public void close(NetworkHandler handler) {
+        try {
+            // closing the socket unblocks the read thread
+            handler.getSocket().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void write(NetworkHandler handler, ByteBuffer frame) throws IOException {
+        if (!(handler.transportContext instanceof Connection connection))
+            throw new IOException("network handler is not open on this transport");
+        enqueue(handler, connection, frame, frame.remaining());
+    }
+
+    @Override
+    public void writeRegion(NetworkHandler handler, FileRegion region) throws IOException {
+        if (!(handler.transportContext instanceof Connection connection)) {
+            region.release();
+            throw new IOException("network handler is not open on this transport");
+        }
+
+        enqueue(handler, connection, region, region.remaining());
+    }
+
+    // queue a frame or file region and flush according to the policy
+    private void enqueue(NetworkHandler handler, Connection connection, Object entry, long size) throws IOException {
+        connection.pendingWrites.add(entry);
+        long pending = connection.pendingBytes.addAndGet(size);
+        FlushPolicy policy = handler.getFlushPolicy();
+        switch (policy.mode()) {
+            case IMMEDIATE -> flush(handler);
+            case END_OF_TICK -> {
+                if (Thread.currentThread() == connection.thread) connection.dirty = true;
+                else flush(handler);
+            }
+            case THRESHOLD -> {
+                if (pending >= policy.maxBytes()) {
+                    flush(handler);
+                } else if (connection.flushTimerArmed.compareAndSet(false, true)) {
+                    flushTimer().schedule(() -> {
+                        connection.flushTimerArmed.set(false);
+                        try {
+                            flush(handler);
+                        } catch (IOException e) {
+                            // the read thread notices the broken socket
+                        }
+                    }, policy.maxDelayNanos(), TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush(NetworkHandler handler) throws IOException {
+        if (!(handler.transportContext instanceof Connection connection))
+            return;
+
+        // a lock instead of synchronized so virtual threads do not pin
+        // their carrier while writing. if another thread is writing it
+        // picks up the queued frames, so senders do not block behind a
+        // slow peer and the queue can grow to the watermarks
+        while (!connection.pendingWrites.isEmpty()) {
+            if (!connection.writeLock.tryLock())
+                return;
+            try {
+                writeQueued(handler, connection);
+            } finally {
+                connection.writeLock.unlock();
+            }
+        }
+
+        handler.onFlushed();
+    }
+
+    // write all queued frames, must hold the write lock
+    private void writeQueued(NetworkHandler handler, Connection connection) throws IOException {
+        OutputStream stream = handler.getSocket().getOutputStream();
+        if (connection.writeBuffer == null)
+            connection.writeBuffer = BufferPool.DEFAULT.acquireArray(WRITE_BUFFER_SIZE);
+        byte[] writeBuffer = connection.writeBuffer;
+        int pos = 0;
+
+        // bytes stay pending until they were written
+        // to the socket, so blocked writes count as well
+        Object entry;
+        try {
+            while ((entry = connection.pendingWrites.poll()) != null) {
+                if (entry instanceof FileRegion region) {
+                    // write what was aggregated before the region
+                    if (pos > 0) {
+                        stream.write(writeBuffer, 0, pos);
+                        connection.pendingBytes.addAndGet(-pos);
+                        pos = 0;
+                    }
+
+                    long size = region.remaining();
+                    try {
+                        writeRegion(handler.getSocket(), stream, region);
+                    } finally {
+                        region.release();
+                        connection.pendingBytes.addAndGet(-size);
+                    }
+
+                    continue;
+                }
+
+                ByteBuffer frame = (ByteBuffer) entry;
+                int len = frame.remaining();
+
+                if (pos + len > writeBuffer.length && pos > 0) {
+                    stream.write(writeBuffer, 0, pos);
+                    connection.pendingBytes.addAndGet(-pos);
+                    pos = 0;
+                }
+
+                if (len > writeBuffer.length) {
+                    // too big to aggregate
+                    try {
+                        writeDirect(stream, frame);
+                    } finally {
+                        connection.pendingBytes.addAndGet(-len);
+                        BufferPool.DEFAULT.releaseBuffer(frame);
+                    }
+                } else {
+                    frame.get(writeBuffer, pos, len);
+                    pos += len;
+                    BufferPool.DEFAULT.releaseBuffer(frame);
+                }
+            }
+
+            if (pos > 0) {
+                stream.write(writeBuffer, 0, pos);
+                connection.pendingBytes.addAndGet(-pos);
+            }
+            stream.flush();
+        } catch (IOException e) {
+            // drop the rest of the frames
+            while ((entry = connection.pendingWrites.poll()) != null)
+                release(entry);
+            connection.pendingBytes.set(0);
+            throw e;
+        }
+    }
+
+    @Override
+    public long getPendingBytes(NetworkHandler handler) {
+        if (handler.transportContext instanceof Connection connection)
+            return connection.pendingBytes.get();
+        return 0;
+    }
+
+    static void writeDirect(OutputStream stream, ByteBuffer frame) throws IOException {
+        if (frame.hasArray()) {
+            stream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            stream.write(bytes);
+        }
+    }
+
+    /**
+     * Write a file region to the socket, with {@link java.nio.channels.FileChannel#transferTo}
+     * if the socket has a channel or by copying otherwise.
+     */
+    static void writeRegion(Socket socket, OutputStream stream, FileRegion region) throws IOException {
+        writeDirect(stream, region.header);
+        region.header.position(region.header.limit());
+
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || !channel.isBlocking()) {
+            region.copyTo(stream);
+            return;
+        }
+
+        while (region.remaining > 0) {
+            if (region.transferTo(channel) == 0 && region.position >= region.file.size())
+                throw new IOException("file ended before the region");
+        }
+    }
+
+    static void release(Object entry) {
+        if (entry instanceof FileRegion region) region.release();
+        else BufferPool.DEFAULT.releaseBuffer((ByteBuffer) entry);
+    }
+
+    // get the bytes of a queued frame or file region not yet written
+    static long remaining(Object entry) {
+        if (entry instanceof FileRegion region) return region.remaining();
+        else return ((ByteBuffer) entry).remaining();
+    }
+
+    /**
+     * Read a frame length var int from the given stream.
+     */
+    static int readVarInt(DataInputStream stream) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = stream.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("frame length var int is too long");
+    }
+
+    /**
+     * The per connection state.
+     */
+    static class Connection {
+        // the read thread
+        Thread thread;
+
+        // guards socket writes
+        final ReentrantLock writeLock = new ReentrantLock();
+        // the aggregation buffer, guarded by the write lock
+        byte[] writeBuffer;
+
+        // frames and file regions queued by any thread
+        final Queue<Object> pendingWrites = new ConcurrentLinkedQueue<>();
+        // the amount of queued bytes not yet written
+        final AtomicLong pendingBytes = new AtomicLong();
+
+        // flush scheduling state
+        final AtomicBoolean flushTimerArmed = new AtomicBoolean();
+        // if frames were sent from the read thread during this tick
+        volatile boolean dirty;
+    }
+
+}
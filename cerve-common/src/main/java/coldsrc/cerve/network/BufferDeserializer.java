@@ -0,0 +1,12 @@
+package coldsrc.cerve.network;
+
+/**
+ * Variant of {@link ValueDeserializer} reading the
+ * value directly from a packet frame.
+ */
+@FunctionalInterface
+public interface BufferDeserializer<T> {
+
+    T deserialize(PacketBuffer buf) throws Exception;
+
+}
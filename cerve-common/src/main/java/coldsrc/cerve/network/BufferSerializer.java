@@ -0,0 +1,12 @@
+package coldsrc.cerve.network;
+
+/**
+ * Variant of {@link ValueSerializer} writing the
+ * value directly into a packet frame.
+ */
+@FunctionalInterface
+public interface BufferSerializer<T> {
+
+    void serialize(PacketBuffer buf, T value) throws Exception;
+
+}
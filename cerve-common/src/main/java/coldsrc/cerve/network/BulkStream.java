@@ -0,0 +1,36 @@
+package coldsrc.cerve.network;
+
+/**
+ * A logical stream of bulk packets multiplexed over the connection
+ * of a {@link NetworkHandler}, like a package transfer.
+ *
+ * Bulk streams do not queue their packets themselves. Once scheduled
+ * with {@link NetworkHandler#schedule(BulkStream)}, the handler pulls
+ * one packet at a time from all ready streams round robin, and only
+ * while less than the bulk budget is queued on the socket. Packets sent
+ * with {@link NetworkHandler#send(PacketType, Object)} are never held
+ * back, so control packets overtake all but the budget of bulk data and
+ * no stream can starve the others. Flow control is up to the stream,
+ * it simply reports that it has nothing to send until its window opens
+ * and schedules itself again.
+ */
+public interface BulkStream {
+
+    /**
+     * Send the next packet of this stream.
+     *
+     * @return If the stream has more packets ready to send.
+     */
+    boolean sendNext() throws Exception;
+
+    /**
+     * Called if sending the next packet failed, the
+     * stream is not pulled again until it is rescheduled.
+     *
+     * @param e The error.
+     */
+    default void failed(Exception e) {
+        e.printStackTrace();
+    }
+
+}
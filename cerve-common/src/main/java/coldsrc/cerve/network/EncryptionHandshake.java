@@ -0,0 +1,451 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.security.AsymmetricEncryptionProfile;
+import coldsrc.cerve.security.KeyPairPool;
+import coldsrc.cerve.security.SessionCipher;
+import coldsrc.cerve.security.SessionTicket;
+import coldsrc.cerve.security.SessionTickets;
+import coldsrc.cerve.security.StandardEncryption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the encryption handshake of one connection, establishing
+ * the {@link SessionCipher} both ends encrypt their frames with.
+ *
+ * The server initiates the handshake in one of two ways. With
+ * {@link BaseProtocol#CLIENTBOUND_PUBLIC_KEY} it sends its RSA public key
+ * and the client answers with a fresh AES key encrypted with it. With
+ * {@link BaseProtocol#CLIENTBOUND_KEY_AGREEMENT} it sends an ephemeral
+ * X25519 public key taken from a {@link KeyPairPool} and the client answers
+ * with its own, both ends derive the session key from the key agreement.
+ * The server confirms with {@link BaseProtocol#CLIENTBOUND_HANDSHAKE_OK},
+ * every frame after it is encrypted.
+ *
+ * If the server has {@link SessionTickets} it follows up with a resumption
+ * ticket. A client reconnecting with a ticket answers the packet initiating
+ * the handshake with {@link BaseProtocol#SERVERBOUND_RESUME} instead, and if
+ * the server accepts the ticket both ends derive a fresh session key from it
+ * without any asymmetric crypto. If it is rejected the client continues with
+ * the full handshake, costing one more round trip. The server only accepts
+ * the resumption as the first answer, and the ticket issued in a resumed
+ * session expires with the ticket resumed from.
+ *
+ * The RSA decryption and the key agreement are the expensive parts of
+ * the handshake, bind the serverbound packets to a worker dispatcher to
+ * keep them off the network threads. No other packets may be sent on the
+ * connection while the handshake is running.
+ */
+public class EncryptionHandshake {
+
+    /**
+     * Create the server end of a handshake.
+     *
+     * @param handler The network handler of the client.
+     * @param serverEncryption The RSA profile of the server, used if no key pool is given.
+     * @param keyPool The pool of ephemeral key pairs to agree with, or null to use RSA.
+     * @return The handshake.
+     */
+    public static EncryptionHandshake server(NetworkHandler handler, AsymmetricEncryptionProfile serverEncryption,
+                                             KeyPairPool keyPool) {
+        return new EncryptionHandshake(handler, false, serverEncryption, keyPool);
+    }
+
+    /**
+     * Create the client end of a handshake, which
+     * answers whichever way the server initiates it.
+     *
+     * @param handler The network handler of the connection.
+     * @return The handshake.
+     */
+    public static EncryptionHandshake client(NetworkHandler handler) {
+        return new EncryptionHandshake(handler, true, null, null);
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The network handler.
+     */
+    private final NetworkHandler handler;
+
+    /**
+     * If this is the client end.
+     */
+    private final boolean clientSide;
+
+    // the server settings
+    private final AsymmetricEncryptionProfile serverEncryption;
+    private final KeyPairPool keyPool;
+    private volatile SessionTickets tickets;
+
+    // the ticket the client resumes with, and
+    // the one issued by the server in this session
+    private volatile SessionTicket resumeTicket;
+    private volatile SessionTicket issuedTicket;
+
+    // the random of the client while resuming and the full
+    // handshake to continue with if the resumption is rejected
+    private volatile byte[] clientRandom;
+    private volatile Step fullHandshake;
+
+    // if the session was resumed
+    private volatile boolean resumed;
+
+    // if the server initiated the handshake
+    private volatile boolean started;
+
+    // the amount of handshake packets of the client handled by the
+    // server, and if a packet finished the handshake, the packets are
+    // handled on different threads, so only one may finish it
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    // the expiry of the ticket the session was resumed from
+    private volatile long resumedExpiresAt;
+
+    // the ephemeral key pair of the key agreement
+    private volatile KeyPair keyPair;
+
+    // the session cipher of the client,
+    // installed once the server confirms
+    private volatile SessionCipher pendingCipher;
+
+    // completed with true once encrypted, or
+    // false if the client denied encryption
+    private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+    private EncryptionHandshake(NetworkHandler handler, boolean clientSide,
+                                AsymmetricEncryptionProfile serverEncryption, KeyPairPool keyPool) {
+        this.handler = handler;
+        this.clientSide = clientSide;
+        this.serverEncryption = serverEncryption;
+        this.keyPool = keyPool;
+
+        if (clientSide) {
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_PUBLIC_KEY, packet -> run(() -> resumeOr(() -> onPublicKey(packet.value()))));
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_KEY_AGREEMENT, packet -> run(() -> resumeOr(() -> onClientKeyAgreement(packet.value()))));
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_HANDSHAKE_OK, packet -> run(this::onHandshakeOk));
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_RESUME_OK, packet -> run(() -> onResumeOk(packet.value())));
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_RESUME_REJECTED, packet -> run(this::onResumeRejected));
+            handler.setPacketHandler(BaseProtocol.CLIENTBOUND_SESSION_TICKET, packet -> run(() -> onSessionTicket(packet.value())));
+        } else {
+            // only answers to the way the handshake is initiated
+            // are accepted, the other one fails the handshake
+            if (keyPool != null) {
+                handler.setPacketHandler(BaseProtocol.SERVERBOUND_KEY_AGREEMENT, packet -> runServer(() -> onServerKeyAgreement(packet.value())));
+                handler.setPacketHandler(BaseProtocol.SERVERBOUND_SECRET_KEY, packet -> runServer(() -> unexpected(BaseProtocol.SERVERBOUND_SECRET_KEY)));
+            } else {
+                handler.setPacketHandler(BaseProtocol.SERVERBOUND_SECRET_KEY, packet -> runServer(() -> onSecretKey(packet.value())));
+                handler.setPacketHandler(BaseProtocol.SERVERBOUND_KEY_AGREEMENT, packet -> runServer(() -> unexpected(BaseProtocol.SERVERBOUND_KEY_AGREEMENT)));
+            }
+
+            handler.setPacketHandler(BaseProtocol.SERVERBOUND_RESUME, packet -> runServer(() -> onResume(packet.value())));
+            handler.setPacketHandler(BaseProtocol.SERVERBOUND_DENY_ENCRYPTION, packet -> runServer(() -> complete(false)));
+        }
+
+        handler.addDisconnectHandler(reason -> {
+            if (!future.isDone())
+                future.completeExceptionally(new IOException("connection closed during handshake: " + reason));
+        });
+    }
+
+    public NetworkHandler getHandler() {
+        return handler;
+    }
+
+    public boolean isClientSide() {
+        return clientSide;
+    }
+
+    /**
+     * Set the tickets the server issues after the handshake
+     * and accepts to resume sessions, on the server end.
+     *
+     * @param tickets The tickets, or null to not support resumption.
+     * @return This.
+     */
+    public EncryptionHandshake withTickets(SessionTickets tickets) {
+        this.tickets = tickets;
+        return this;
+    }
+
+    /**
+     * Set the ticket to try resuming with, on the client end.
+     *
+     * @param ticket The ticket from an earlier session, or null for a full handshake.
+     * @return This.
+     */
+    public EncryptionHandshake withTicket(SessionTicket ticket) {
+        this.resumeTicket = ticket;
+        return this;
+    }
+
+    /**
+     * Get the ticket the server issued in this session, on the client
+     * end. It arrives right after the handshake, keep it to resume with.
+     *
+     * @return The ticket or null if none was issued yet.
+     */
+    public SessionTicket getIssuedTicket() {
+        return issuedTicket;
+    }
+
+    /**
+     * Check if the session was resumed from a ticket.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Get the future completed once the handshake finished.
+     *
+     * @return The future, completed with if the connection is encrypted.
+     */
+    public CompletableFuture<Boolean> future() {
+        return future;
+    }
+
+    /**
+     * Initiate the handshake, the client end waits for the server.
+     *
+     * @return This.
+     */
+    public EncryptionHandshake start() {
+        if (clientSide)
+            return this;
+
+        started = true;
+        if (keyPool != null) {
+            KeyPair pair = keyPool.take();
+            keyPair = pair;
+            handler.send(BaseProtocol.CLIENTBOUND_KEY_AGREEMENT, pair.getPublic().getEncoded());
+        } else {
+            handler.send(BaseProtocol.CLIENTBOUND_PUBLIC_KEY, serverEncryption.getPublicKey().getEncoded());
+        }
+
+        return this;
+    }
+
+    /*
+        Client
+     */
+
+    // answer with the ticket if there is one, keeping
+    // the full handshake in case it is rejected
+    private void resumeOr(Step full) throws Exception {
+        SessionTicket ticket = resumeTicket;
+        if (ticket == null) {
+            full.run();
+            return;
+        }
+
+        byte[] random = SessionTickets.newRandom();
+        clientRandom = random;
+        fullHandshake = full;
+        handler.send(BaseProtocol.SERVERBOUND_RESUME, new BaseProtocol.Resume(ticket.ticket(), random));
+    }
+
+    // called on the reading thread, all
+    // following frames are encrypted
+    private void onResumeOk(byte[] serverRandom) throws GeneralSecurityException {
+        SessionTicket ticket = resumeTicket;
+        byte[] random = clientRandom;
+        if (ticket == null || random == null)
+            throw new GeneralSecurityException("resumption accepted without a ticket");
+        if (serverRandom.length != SessionTickets.RANDOM_LENGTH)
+            throw new GeneralSecurityException("invalid server random");
+        resumeTicket = null;
+        clientRandom = null;
+        fullHandshake = null;
+
+        SecretKey key = SessionTickets.resumedSessionKey(ticket.secret(), random, serverRandom);
+        handler.setSessionCipher(new SessionCipher(key, true));
+        handler.enableEncryption(true);
+        resumed = true;
+        complete(true);
+    }
+
+    private void onResumeRejected() throws Exception {
+        Step full = fullHandshake;
+        if (full == null)
+            throw new GeneralSecurityException("resumption rejected without an attempt");
+        resumeTicket = null;
+        clientRandom = null;
+        fullHandshake = null;
+        full.run();
+    }
+
+    // derive the secret of the ticket from the session key
+    private void onSessionTicket(byte[] ticket) throws GeneralSecurityException {
+        SessionCipher cipher = handler.getSessionCipher();
+        if (cipher == null)
+            throw new GeneralSecurityException("session ticket received before encrypting");
+        issuedTicket = new SessionTicket(ticket, SessionTickets.resumptionSecret(cipher.getKey()));
+    }
+
+    // encrypt a fresh session key with the public key of the server
+    private void onPublicKey(byte[] encoded) throws GeneralSecurityException {
+        AsymmetricEncryptionProfile profile = StandardEncryption.newAsymmetricEncryptionProfile();
+        PublicKey serverKey = profile.decodeKey(PublicKey.class, encoded);
+        if (serverKey == null)
+            throw new GeneralSecurityException("invalid server public key");
+        profile.withPublicKey(serverKey);
+
+        SecretKey key = StandardEncryption.newSymmetricEncryptionProfile().generateKeys().getSecretKey();
+        pendingCipher = new SessionCipher(key, true);
+        handler.send(BaseProtocol.SERVERBOUND_SECRET_KEY, profile.encrypt(key.getEncoded()));
+    }
+
+    // answer with our own ephemeral key and derive the session key
+    private void onClientKeyAgreement(byte[] encoded) throws GeneralSecurityException {
+        AsymmetricEncryptionProfile profile = StandardEncryption.newKeyAgreementProfile();
+        PublicKey serverKey = profile.decodeKey(PublicKey.class, encoded);
+        if (serverKey == null)
+            throw new GeneralSecurityException("invalid server key agreement key");
+
+        KeyPair pair = profile.generateKeyPair();
+        byte[] clientKey = pair.getPublic().getEncoded();
+        SecretKey key = StandardEncryption.agreeSessionKey(profile, pair.getPrivate(), serverKey,
+                agreementContext(encoded, clientKey));
+        pendingCipher = new SessionCipher(key, true);
+        handler.send(BaseProtocol.SERVERBOUND_KEY_AGREEMENT, clientKey);
+    }
+
+    // called on the reading thread, all
+    // following frames are encrypted
+    private void onHandshakeOk() throws GeneralSecurityException {
+        SessionCipher cipher = pendingCipher;
+        if (cipher == null)
+            throw new GeneralSecurityException("handshake confirmed before a session key was sent");
+        pendingCipher = null;
+        handler.setSessionCipher(cipher);
+        handler.enableEncryption(true);
+        complete(true);
+    }
+
+    /*
+        Server
+     */
+
+    // decrypt the session key chosen by the client
+    private void onSecretKey(byte[] encrypted) throws GeneralSecurityException {
+        byte[] encoded = serverEncryption.decrypt(encrypted);
+        if (encoded == null || encoded.length != StandardEncryption.AES_KEY_LENGTH / 8)
+            throw new GeneralSecurityException("invalid session key");
+        finish(BaseProtocol.CLIENTBOUND_HANDSHAKE_OK, null, new SessionCipher(new SecretKeySpec(encoded, "AES"), false));
+    }
+
+    // derive the session key from the key of the client
+    private void onServerKeyAgreement(byte[] clientKey) throws GeneralSecurityException {
+        KeyPair pair = keyPair;
+        if (pair == null)
+            throw new GeneralSecurityException("no key agreement was initiated");
+        keyPair = null;
+
+        AsymmetricEncryptionProfile profile = keyPool.getProfile();
+        PublicKey peerKey = profile.decodeKey(PublicKey.class, clientKey);
+        if (peerKey == null)
+            throw new GeneralSecurityException("invalid client key agreement key");
+
+        SecretKey key = StandardEncryption.agreeSessionKey(profile, pair.getPrivate(), peerKey,
+                agreementContext(pair.getPublic().getEncoded(), clientKey));
+        finish(BaseProtocol.CLIENTBOUND_HANDSHAKE_OK, null, new SessionCipher(key, false));
+    }
+
+    // resume from the ticket of the client, without asymmetric crypto
+    private void onResume(BaseProtocol.Resume resume) throws GeneralSecurityException {
+        if (received.get() != 1)
+            throw new GeneralSecurityException("resumption is only accepted as the first answer");
+
+        SessionTickets t = tickets;
+        SessionTickets.Opened opened = t != null ? t.open(resume.ticket()) : null;
+        if (opened == null || resume.random().length != SessionTickets.RANDOM_LENGTH) {
+            handler.send(BaseProtocol.CLIENTBOUND_RESUME_REJECTED, null);
+            return;
+        }
+
+        // the ephemeral key pair is not needed anymore
+        keyPair = null;
+
+        byte[] serverRandom = SessionTickets.newRandom();
+        SecretKey key = SessionTickets.resumedSessionKey(opened.secret(), resume.random(), serverRandom);
+        resumedExpiresAt = opened.expiresAt();
+        resumed = true;
+        finish(BaseProtocol.CLIENTBOUND_RESUME_OK, serverRandom, new SessionCipher(key, false));
+    }
+
+    // confirm, encrypt everything after
+    // and issue a ticket for the next session
+    private <T> void finish(PacketType<T> type, T value, SessionCipher cipher) throws GeneralSecurityException {
+        if (!finished.compareAndSet(false, true))
+            throw new GeneralSecurityException("handshake finished twice");
+        handler.sendThenEncrypt(type, value, cipher);
+
+        // a resumed session does not extend the ticket lifetime
+        SessionTickets t = tickets;
+        if (t != null) {
+            SecretKey secret = SessionTickets.resumptionSecret(cipher.getKey());
+            handler.send(BaseProtocol.CLIENTBOUND_SESSION_TICKET, resumed ? t.issue(secret, resumedExpiresAt) : t.issue(secret));
+        }
+
+        complete(true);
+    }
+
+    /*
+        Util
+     */
+
+    // both public keys in a fixed order, binding
+    // the session key to this exchange
+    private static byte[] agreementContext(byte[] serverKey, byte[] clientKey) {
+        byte[] context = new byte[serverKey.length + clientKey.length];
+        System.arraycopy(serverKey, 0, context, 0, serverKey.length);
+        System.arraycopy(clientKey, 0, context, serverKey.length, clientKey.length);
+        return context;
+    }
+
+    private static void unexpected(PacketType<?> type) throws GeneralSecurityException {
+        throw new GeneralSecurityException("unexpected " + type.getName() + " in this handshake mode");
+    }
+
+    private void complete(boolean encrypted) {
+        future.complete(encrypted);
+    }
+
+    interface Step {
+        void run() throws Exception;
+    }
+
+    // the server only accepts handshake packets after initiating the
+    // handshake and until it finished, anything else is a client making
+    // it repeat the expensive parts or re-key an established session
+    private void runServer(Step step) {
+        run(() -> {
+            if (!started || future.isDone())
+                throw new GeneralSecurityException("handshake packet outside of the handshake");
+            received.incrementAndGet();
+            step.run();
+        });
+    }
+
+    // a failed handshake must not continue unencrypted
+    private void run(Step step) {
+        try {
+            step.run();
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            handler.stopNetworkHandler(NetworkHandler.DisconnectReason.FATAL_ERROR);
+        }
+    }
+
+}
@@ -0,0 +1,561 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport which multiplexes all network handlers over a small
+ * fixed pool of selector threads. Only works with sockets which
+ * were created from a {@link SocketChannel}.
+ *
+ * Outbound frames are queued per connection and written with
+ * gathering writes according to the {@link FlushPolicy} of the handler,
+ * file regions are written with {@link java.nio.channels.FileChannel#transferTo}.
+ */
+public class EventLoopTransport implements NetworkTransport {
+
+    /**
+     * The initial read buffer size per connection.
+     */
+    static final int INITIAL_READ_BUFFER_SIZE = 1024;
+
+    /**
+     * The maximum amount of frames per gathering write.
+     */
+    static final int GATHER_LIMIT = 64;
+
+    /**
+     * All event loops.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * The index of the next loop to assign a connection to.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public EventLoopTransport() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public EventLoopTransport(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("at least one I/O thread is required");
+
+        try {
+            loops = new EventLoop[threads];
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].thread.start();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open selector", e);
+        }
+    }
+
+    /**
+     * Get the amount of I/O threads.
+     *
+     * @return The thread count.
+     */
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    @Override
+    public boolean open(NetworkHandler handler) {
+        SocketChannel channel = handler.getSocket().getChannel();
+        if (channel == null || !channel.isOpen())
+            return false;
+
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Connection connection = new Connection(loop, handler, channel);
+        handler.transportContext = connection;
+        handler.opened();
+        loop.execute(connection::register);
+        return true;
+    }
+
+    @Override
+    public void close(NetworkHandler handler) {
+        if (!(handler.transportContext instanceof Connection connection)) {
+            return;
+        }
+
+        connection.loop.execute(() -> connection.close(NetworkHandler.DisconnectReason.ISSUED));
+    }
+
+    @Override
+    public void write(NetworkHandler handler, ByteBuffer frame) throws IOException {
+        if (!(handler.transportContext instanceof Connection connection))
+            throw new IOException("network handler is not open on this transport");
+        enqueue(handler, connection, frame, frame.remaining());
+    }
+
+    @Override
+    public void writeRegion(NetworkHandler handler, FileRegion region) throws IOException {
+        if (!(handler.transportContext instanceof Connection connection)) {
+            region.release();
+            throw new IOException("network handler is not open on this transport");
+        }
+
+        enqueue(handler, connection, region, region.remaining());
+    }
+
+    // queue a frame or file region and flush according to the policy
+    private void enqueue(NetworkHandler handler, Connection connection, Object entry, long size) {
+        connection.pendingWrites.add(entry);
+        long pending = connection.pendingBytes.addAndGet(size);
+
+        FlushPolicy policy = handler.getFlushPolicy();
+        switch (policy.mode()) {
+            case IMMEDIATE -> connection.requestFlush();
+            case END_OF_TICK -> {
+                if (connection.loop.inLoop()) connection.loop.markDirty(connection);
+                else connection.requestFlush();
+            }
+            case THRESHOLD -> {
+                if (pending >= policy.maxBytes()) connection.requestFlush();
+                else connection.armFlushTimer(policy.maxDelayNanos());
+            }
+        }
+    }
+
+    @Override
+    public void flush(NetworkHandler handler) {
+        if (handler.transportContext instanceof Connection connection) {
+            connection.requestFlush();
+        }
+    }
+
+    @Override
+    public long getPendingBytes(NetworkHandler handler) {
+        if (handler.transportContext instanceof Connection connection)
+            return connection.pendingBytes.get();
+        return 0;
+    }
+
+    @Override
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Decode the var int at the position of the given buffer
+     * without moving it.
+     *
+     * @return The value, -1 if incomplete or -2 if malformed.
+     */
+    static int peekVarInt(ByteBuffer buf) {
+        int value = 0;
+        int index = buf.position();
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (index >= buf.limit())
+                return -1;
+            byte b = buf.get(index++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value < 0 ? -2 : value;
+        }
+
+        return -2;
+    }
+
+    /**
+     * The per connection state.
+     */
+    static class Connection {
+        final EventLoop loop;
+        final NetworkHandler handler;
+        final SocketChannel channel;
+
+        // the selection key, only accessed on the loop
+        SelectionKey key;
+
+        // the read buffer, in write mode between reads
+        ByteBuffer readBuffer = ByteBuffer.wrap(BufferPool.DEFAULT.acquireArray(INITIAL_READ_BUFFER_SIZE));
+
+        // frames and file regions queued by any thread
+        final Queue<Object> pendingWrites = new ConcurrentLinkedQueue<>();
+        // the amount of queued bytes not yet written
+        final AtomicLong pendingBytes = new AtomicLong();
+        // frames and file regions being written, only accessed on the loop
+        final ArrayDeque<Object> writeQueue = new ArrayDeque<>();
+        // the reused array for gathering writes
+        final ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+        // flush scheduling state
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        final AtomicBoolean flushTimerArmed = new AtomicBoolean();
+        // if this connection is queued to flush at the end of the tick
+        boolean dirty;
+
+        boolean closed;
+
+        Connection(EventLoop loop, NetworkHandler handler, SocketChannel channel) {
+            this.loop = loop;
+            this.handler = handler;
+            this.channel = channel;
+        }
+
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+
+                // write frames queued before registration
+                if (!pendingWrites.isEmpty())
+                    flushWrites();
+            } catch (ClosedChannelException e) {
+                close(NetworkHandler.DisconnectReason.SOCKET_CLOSED);
+            }
+        }
+
+        void read() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read == -1) {
+                    close(NetworkHandler.DisconnectReason.DISCONNECT);
+                    return;
+                }
+
+                // dispatch all complete frames
+                int incomplete = 0;
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    int start  = readBuffer.position();
+                    int length = peekVarInt(readBuffer);
+                    if (length == -1)
+                        break; // length not complete yet
+                    if (length < 0 || length > handler.getMaxFrameSize())
+                        throw new IOException("invalid frame length " + length);
+                    int frameStart = start + PacketBuffer.varIntSize(length);
+                    int frameSize  = frameStart - start + length;
+
+                    if (readBuffer.remaining() < frameSize) {
+                        incomplete = frameSize;
+                        break;
+                    }
+
+                    handler.receiveFrame(readBuffer.array(), frameStart, length);
+
+                    // the handler may have closed the connection,
+                    // which released the read buffer
+                    if (closed)
+                        return;
+                    readBuffer.position(start + frameSize);
+                }
+
+                readBuffer.compact();
+                if (!readBuffer.hasRemaining() && incomplete > readBuffer.capacity()) {
+                    // grow in steps as the bytes arrive, so
+                    // a declared length alone allocates nothing
+                    resizeReadBuffer(Math.min(incomplete, readBuffer.capacity() * 2));
+                } else if (readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE && incomplete <= INITIAL_READ_BUFFER_SIZE
+                        && readBuffer.position() <= INITIAL_READ_BUFFER_SIZE) {
+                    // do not keep the buffer of an oversized frame
+                    resizeReadBuffer(INITIAL_READ_BUFFER_SIZE);
+                }
+            } catch (IOException e) {
+                close(NetworkHandler.DisconnectReason.SOCKET_CLOSED);
+            } catch (Throwable t) {
+                // only this connection is closed, even on
+                // errors, the loop serves all others
+                t.printStackTrace();
+                close(NetworkHandler.DisconnectReason.FATAL_ERROR);
+            }
+        }
+
+        // move the read bytes into a buffer of the given size
+        private void resizeReadBuffer(int size) {
+            ByteBuffer resized = ByteBuffer.wrap(BufferPool.DEFAULT.acquireArray(size));
+            readBuffer.flip();
+            resized.put(readBuffer);
+            BufferPool.DEFAULT.releaseBuffer(readBuffer);
+            readBuffer = resized;
+        }
+
+        /**
+         * Flush on the loop as soon as possible, coalescing
+         * with other flush requests made before it runs.
+         */
+        void requestFlush() {
+            if (flushScheduled.compareAndSet(false, true))
+                loop.execute(this::flushWrites);
+        }
+
+        /**
+         * Flush after the given delay, unless a timer is already armed.
+         */
+        void armFlushTimer(long delayNanos) {
+            if (flushTimerArmed.compareAndSet(false, true))
+                loop.execute(() -> loop.schedule(delayNanos, () -> {
+                    flushTimerArmed.set(false);
+                    flushWrites();
+                }));
+        }
+
+        void flushWrites() {
+            flushScheduled.set(false);
+
+            Object entry;
+            if (closed) {
+                // drop frames written after closing, they
+                // were counted as pending when queued
+                while ((entry = pendingWrites.poll()) != null) {
+                    pendingBytes.addAndGet(-BlockingTransport.remaining(entry));
+                    BlockingTransport.release(entry);
+                }
+                return;
+            }
+
+            if (key == null)
+                return;
+
+            while ((entry = pendingWrites.poll()) != null)
+                writeQueue.add(entry);
+
+            try {
+                while (!writeQueue.isEmpty()) {
+                    // transfer the file bytes of a region
+                    // once its header has been written
+                    if (writeQueue.peek() instanceof FileRegion region && !region.header.hasRemaining()) {
+                        long transferred = region.transferTo(channel);
+                        if (transferred == 0 && region.position >= region.file.size())
+                            throw new IOException("file ended before the region");
+                        pendingBytes.addAndGet(-transferred);
+                        if (region.remaining > 0)
+                            break; // the socket buffer is full
+                        writeQueue.poll();
+                        region.release();
+                        continue;
+                    }
+
+                    // gather as many frames as possible into one write,
+                    // up to and including the header of the next region
+                    int count = 0;
+                    long total = 0;
+                    Iterator<Object> iterator = writeQueue.iterator();
+                    while (count < GATHER_LIMIT && iterator.hasNext()) {
+                        Object next = iterator.next();
+                        ByteBuffer buf = next instanceof FileRegion region ? region.header : (ByteBuffer) next;
+                        gather[count++] = buf;
+                        total += buf.remaining();
+                        if (next instanceof FileRegion)
+                            break;
+                    }
+
+                    long written = channel.write(gather, 0, count);
+                    pendingBytes.addAndGet(-written);
+                    for (int i = 0; i < count; i++)
+                        gather[i] = null;
+
+                    // release completely written frames
+                    while (writeQueue.peek() instanceof ByteBuffer buf && !buf.hasRemaining())
+                        BufferPool.DEFAULT.releaseBuffer((ByteBuffer) writeQueue.poll());
+
+                    // the socket buffer is full
+                    if (written < total)
+                        break;
+                }
+
+                // wait for the socket to become writable
+                // if not everything could be written
+                key.interestOps(writeQueue.isEmpty() ?
+                        SelectionKey.OP_READ :
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException | CancelledKeyException e) {
+                close(NetworkHandler.DisconnectReason.SOCKET_CLOSED);
+                return;
+            }
+
+            handler.onFlushed();
+        }
+
+        void close(NetworkHandler.DisconnectReason reason) {
+            if (closed)
+                return;
+            closed = true;
+
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // release all buffers
+            BufferPool.DEFAULT.releaseBuffer(readBuffer);
+            readBuffer = null;
+            Object entry;
+            while ((entry = pendingWrites.poll()) != null)
+                writeQueue.add(entry);
+            while ((entry = writeQueue.poll()) != null)
+                BlockingTransport.release(entry);
+            pendingBytes.set(0);
+
+            handler.disconnected(reason);
+        }
+    }
+
+    /**
+     * A task scheduled on an event loop.
+     */
+    record Timer(long deadline, Runnable task) implements Comparable<Timer> {
+        @Override
+        public int compareTo(Timer o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    /**
+     * A single selector thread.
+     */
+    static class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+
+        // tasks submitted from other threads
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // timers and connections to flush at the end
+        // of the tick, only accessed on the loop
+        final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        final ArrayDeque<Connection> dirty = new ArrayDeque<>();
+
+        volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "CerveEventLoop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Run the given task on this loop, immediately
+         * if called from the loop thread.
+         */
+        void execute(Runnable task) {
+            if (inLoop()) {
+                task.run();
+                return;
+            }
+
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Run the given task on this loop after the given
+         * delay, must be called on the loop.
+         */
+        void schedule(long delayNanos, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        /**
+         * Flush the given connection at the end of
+         * this tick, must be called on the loop.
+         */
+        void markDirty(Connection connection) {
+            if (!connection.dirty) {
+                connection.dirty = true;
+                dirty.add(connection);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // wait for events or the next timer
+                    Timer next = timers.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long millis = (next.deadline() - System.nanoTime() + 999_999) / 1_000_000;
+                        if (millis <= 0) selector.selectNow();
+                        else selector.select(millis);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flushWrites();
+                    }
+
+                    // run due timers
+                    long now = System.nanoTime();
+                    while ((next = timers.peek()) != null && next.deadline() - now <= 0) {
+                        timers.poll();
+                        next.task().run();
+                    }
+
+                    // flush everything written during this tick
+                    Connection connection;
+                    while ((connection = dirty.poll()) != null) {
+                        connection.dirty = false;
+                        connection.flushWrites();
+                    }
+                } catch (Throwable t) {
+                    // the loop must survive anything
+                    t.printStackTrace();
+                }
+            }
+
+            // close all remaining connections
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection)
+                    connection.close(NetworkHandler.DisconnectReason.ISSUED);
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
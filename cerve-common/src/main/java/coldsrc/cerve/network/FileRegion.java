@@ -0,0 +1,101 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A frame whose payload ends with a region of a file. The header,
+ * everything up to the file bytes, is written like a normal frame,
+ * the file bytes are written with {@link FileChannel#transferTo}
+ * so they never enter the heap.
+ *
+ * Regions are queued and written by the transports, see
+ * {@link NetworkTransport#writeRegion(NetworkHandler, FileRegion)}.
+ */
+public final class FileRegion {
+
+    // the frame header, pooled
+    final ByteBuffer header;
+
+    // the file region
+    final FileChannel file;
+    long position;
+    long remaining;
+
+    FileRegion(ByteBuffer header, FileChannel file, long position, long count) {
+        this.header = header;
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Get the amount of bytes not yet written,
+     * including the header.
+     */
+    public long remaining() {
+        return header.remaining() + remaining;
+    }
+
+    /**
+     * Check if the whole region has been written.
+     */
+    public boolean isDone() {
+        return !header.hasRemaining() && remaining == 0;
+    }
+
+    /**
+     * Transfer as much of the file bytes as the channel accepts,
+     * the header must have been written before.
+     *
+     * @param channel The channel.
+     * @return The amount of bytes transferred.
+     */
+    long transferTo(WritableByteChannel channel) throws IOException {
+        long transferred = file.transferTo(position, remaining, channel);
+        position += transferred;
+        remaining -= transferred;
+        return transferred;
+    }
+
+    /**
+     * Write the rest of the file bytes to the given stream,
+     * copying through a pooled buffer. Used where the
+     * destination is not a channel.
+     *
+     * @param stream The stream.
+     * @return The amount of bytes written.
+     */
+    long copyTo(OutputStream stream) throws IOException {
+        byte[] buf = BufferPool.DEFAULT.acquireArray((int) Math.min(remaining, 64 * 1024));
+        try {
+            long written = 0;
+            while (remaining > 0) {
+                int read = file.read(ByteBuffer.wrap(buf, 0, (int) Math.min(remaining, buf.length)), position);
+                if (read == -1)
+                    throw new IOException("file ended before the region");
+                stream.write(buf, 0, read);
+                position += read;
+                remaining -= read;
+                written += read;
+            }
+
+            return written;
+        } finally {
+            BufferPool.DEFAULT.releaseArray(buf);
+        }
+    }
+
+    /**
+     * Release the header buffer.
+     */
+    void release() {
+        BufferPool.DEFAULT.releaseBuffer(header);
+    }
+
+}
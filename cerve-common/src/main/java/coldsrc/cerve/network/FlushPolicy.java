@@ -0,0 +1,64 @@
+package coldsrc.cerve.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when frames queued on a connection are
+ * written to the socket. Frames queued before a flush
+ * are coalesced into as few socket writes as possible.
+ *
+ * @param mode The flush mode.
+ * @param maxBytes For {@link Mode#THRESHOLD}, the amount of queued bytes which triggers a flush.
+ * @param maxDelayNanos For {@link Mode#THRESHOLD}, the longest time a frame may stay queued.
+ */
+public record FlushPolicy(Mode mode, int maxBytes, long maxDelayNanos) {
+
+    public enum Mode {
+
+        /**
+         * Every frame is flushed as soon as it is sent.
+         */
+        IMMEDIATE,
+
+        /**
+         * Frames sent from the I/O thread of the connection, like
+         * responses sent from inline packet callbacks, are flushed once
+         * the I/O thread finished handling the current batch of reads.
+         * Frames sent from other threads are flushed immediately.
+         */
+        END_OF_TICK,
+
+        /**
+         * Frames are flushed once the queued bytes reach a
+         * threshold or the oldest frame reaches a maximum delay.
+         */
+        THRESHOLD
+
+    }
+
+    /**
+     * Flush every frame immediately.
+     */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(Mode.IMMEDIATE, 0, 0);
+
+    /**
+     * Flush at the end of every I/O tick.
+     */
+    public static final FlushPolicy END_OF_TICK = new FlushPolicy(Mode.END_OF_TICK, 0, 0);
+
+    /**
+     * Flush once the given amount of bytes is queued or
+     * the given delay has passed since the first queued frame.
+     *
+     * @param maxBytes The byte threshold.
+     * @param maxDelay The maximum delay.
+     * @param unit The unit of the delay.
+     * @return The policy.
+     */
+    public static FlushPolicy thresholds(int maxBytes, long maxDelay, TimeUnit unit) {
+        if (maxBytes <= 0 || maxDelay <= 0)
+            throw new IllegalArgumentException("thresholds must be positive");
+        return new FlushPolicy(Mode.THRESHOLD, maxBytes, unit.toNanos(maxDelay));
+    }
+
+}
@@ -0,0 +1,132 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.compression.CompressionCodec;
+import coldsrc.cerve.security.SessionCipher;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+/**
+ * The compression state of one direction of a connection.
+ *
+ * Compressed frames carry a var int after the length, the length
+ * of the uncompressed body or 0 if the body is not compressed.
+ * Bodies below the threshold, and bodies which would not get
+ * smaller, are sent uncompressed. Compressors are pooled, as
+ * frames are encoded on the threads sending them.
+ */
+final class FrameCompression {
+
+    /**
+     * The most compressors kept per connection.
+     */
+    static final int MAX_POOLED_COMPRESSORS = 4;
+
+    /**
+     * The codec.
+     */
+    final CompressionCodec codec;
+
+    /**
+     * The smallest body to compress.
+     */
+    final int threshold;
+
+    // the idle compressors
+    private final Queue<CompressionCodec.Compressor> compressors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCompressors = new AtomicInteger();
+
+    // the decompressor, only used by the reading thread
+    private CompressionCodec.Decompressor decompressor;
+
+    FrameCompression(CompressionCodec codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Compress the body of the given frame into a new
+     * frame, starting at {@link NetworkHandler#MAX_HEADER_SIZE}.
+     *
+     * @param buf The frame buffer.
+     * @param bodyStart The offset of the body.
+     * @return The compressed frame, or null if the body should be sent uncompressed.
+     */
+    PacketBuffer compress(PacketBuffer buf, int bodyStart) {
+        int bodyLength = buf.writerIndex() - bodyStart;
+        if (bodyLength < threshold)
+            return null;
+
+        int markerSize = PacketBuffer.varIntSize(bodyLength);
+        PacketBuffer out = PacketBuffer.allocate(BufferPool.DEFAULT, NetworkHandler.MAX_HEADER_SIZE + markerSize +
+                codec.maxCompressedLength(bodyLength) + SessionCipher.TAG_LENGTH);
+        out.writerIndex(NetworkHandler.MAX_HEADER_SIZE);
+        out.writeVarInt(bodyLength);
+
+        CompressionCodec.Compressor compressor = compressors.poll();
+        if (compressor == null) compressor = codec.newCompressor();
+        else pooledCompressors.decrementAndGet();
+
+        int length;
+        try {
+            // only worth it if smaller than the uncompressed body
+            length = compressor.compress(buf.array(), bodyStart, bodyLength,
+                    out.array(), out.writerIndex(), bodyLength - markerSize);
+        } finally {
+            if (pooledCompressors.incrementAndGet() <= MAX_POOLED_COMPRESSORS) {
+                compressors.offer(compressor);
+            } else {
+                pooledCompressors.decrementAndGet();
+                compressor.close();
+            }
+        }
+
+        if (length < 0) {
+            out.release();
+            return null;
+        }
+
+        out.writerIndex(out.writerIndex() + length);
+        return out;
+    }
+
+    /**
+     * Decompress a body into an array from the pool.
+     *
+     * @param bytes The array.
+     * @param off The offset of the compressed body.
+     * @param len The length of the compressed body.
+     * @param length The length of the uncompressed body.
+     * @return The array holding the body at offset 0, to be released to {@link BufferPool#DEFAULT}.
+     */
+    byte[] decompress(byte[] bytes, int off, int len, int length) throws DataFormatException {
+        if (length < 0 || length > NetworkTransport.MAX_FRAME_SIZE || length > (long) len * codec.maxRatio())
+            throw new DataFormatException("invalid uncompressed length " + length);
+        if (decompressor == null)
+            decompressor = codec.newDecompressor();
+
+        byte[] out = BufferPool.DEFAULT.acquireArray(length);
+        try {
+            decompressor.decompress(bytes, off, len, out, 0, length);
+            return out;
+        } catch (Exception e) {
+            BufferPool.DEFAULT.releaseArray(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Release the codec state.
+     */
+    void close() {
+        CompressionCodec.Compressor compressor;
+        while ((compressor = compressors.poll()) != null)
+            compressor.close();
+        if (decompressor != null)
+            decompressor.close();
+    }
+
+}
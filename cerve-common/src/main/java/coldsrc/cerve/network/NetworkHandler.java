@@ -1,17 +1,33 @@
 package coldsrc.cerve.network;
 
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.compression.CompressionCodec;
 import coldsrc.cerve.security.EncryptionProfile;
+import coldsrc.cerve.security.SessionCipher;
 import coldsrc.cerve.util.Throwables;
 import coldsrc.coldlib.util.functional.Callback;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class NetworkHandler {
@@ -36,7 +52,43 @@ public class NetworkHandler {
         /**
          * A fatal error occurred.
          */
-        FATAL_ERROR
+        FATAL_ERROR,
+
+        /**
+         * The peer did not read fast enough, see {@link SlowConsumerPolicy}.
+         */
+        SLOW_CONSUMER,
+
+        /**
+         * The peer registered other packet types, see {@link BaseProtocol#PROTOCOL_HELLO}.
+         */
+        PROTOCOL_MISMATCH
+
+    }
+
+    /**
+     * What happens once more than the high watermark of
+     * outbound bytes is queued because the peer reads too slowly.
+     * Exceeding the maximum amount of pending bytes always disconnects.
+     */
+    public enum SlowConsumerPolicy {
+
+        /**
+         * Only signal that the connection is not writable, producers
+         * pause until it is, see {@link #awaitWritable(long, TimeUnit)}.
+         */
+        PAUSE,
+
+        /**
+         * Drop {@link PacketType#isDroppable() droppable} packets
+         * while the connection is not writable.
+         */
+        DROP,
+
+        /**
+         * Disconnect with {@link DisconnectReason#SLOW_CONSUMER}.
+         */
+        DISCONNECT
 
     }
 
@@ -55,14 +107,157 @@ public class NetworkHandler {
      */
     private EncryptionProfile encryptionProfile;
 
+    /**
+     * The session cipher used to encrypt frames, if established.
+     */
+    private volatile SessionCipher sessionCipher;
+
+    /**
+     * Guards encrypting and queueing a frame, so frames are
+     * queued in the order of their session cipher nonces and
+     * no frame without a marker follows the compression start.
+     */
+    private final ReentrantLock encryptedSendLock = new ReentrantLock();
+
     /**
      * If encryption should be enabled.
      */
     private final AtomicBoolean enableEncryption = new AtomicBoolean();
 
-    /** The network handler thread. */
-    private Thread networkHandlerThread;
-    private AtomicBoolean networkHandlerRunning;
+    /**
+     * The transport moving frames to and from the socket.
+     */
+    private final NetworkTransport transport;
+
+    /**
+     * Per connection state owned by the transport.
+     */
+    volatile Object transportContext;
+
+    /**
+     * The default size of the smallest frame body to compress,
+     * smaller bodies gain little and cost latency.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * The compression codecs supported by this end, by preference.
+     */
+    private volatile CompressionCodec[] supportedCompression = new CompressionCodec[0];
+
+    /**
+     * The smallest frame body this end compresses.
+     */
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * The compression of sent and received frames, null until
+     * the peer or this end started compression.
+     */
+    private volatile FrameCompression outboundCompression;
+    private volatile FrameCompression inboundCompression;
+
+    /**
+     * If the hello of the peer was received,
+     * only used by the reading thread.
+     */
+    private boolean protocolChecked;
+
+    /**
+     * The default size of the largest frame body read before the session
+     * is encrypted. It fits a package chunk, but keeps peers which did not
+     * finish a handshake from declaring frames of the maximum size.
+     */
+    public static final int DEFAULT_MAX_UNENCRYPTED_FRAME_SIZE = 128 * 1024;
+
+    /**
+     * The size of the largest frame body read before the session is encrypted.
+     */
+    private volatile int maxUnencryptedFrameSize = DEFAULT_MAX_UNENCRYPTED_FRAME_SIZE;
+
+    /**
+     * The flush policy for outbound frames.
+     */
+    private volatile FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+
+    /**
+     * The default amount of queued bytes up to
+     * which bulk streams are pulled.
+     */
+    public static final int DEFAULT_BULK_BUDGET = 128 * 1024;
+
+    /**
+     * The amount of queued bytes up to which bulk streams are pulled,
+     * bounding how long a control packet waits behind bulk data.
+     */
+    private volatile int bulkBudget = DEFAULT_BULK_BUDGET;
+
+    /**
+     * The bulk streams with packets ready to send, pulled round robin.
+     */
+    private final ConcurrentLinkedQueue<BulkStream> readyStreams = new ConcurrentLinkedQueue<>();
+    private final Set<BulkStream> readyStreamSet = ConcurrentHashMap.newKeySet();
+
+    /**
+     * If a thread is pulling bulk streams.
+     */
+    private final AtomicBoolean pullingStreams = new AtomicBoolean();
+
+    /**
+     * The default amount of queued bytes above which
+     * the connection is not writable.
+     */
+    public static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+    /**
+     * The default amount of queued bytes at which the
+     * connection is writable again.
+     */
+    public static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+
+    /**
+     * The default amount of queued bytes above
+     * which the connection is closed.
+     */
+    public static final long DEFAULT_MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    // the outbound limits
+    private volatile long lowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile long highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.PAUSE;
+
+    /**
+     * If less than the high watermark is queued, or
+     * the low watermark since it was exceeded.
+     */
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+
+    /**
+     * Signalled once the connection becomes writable or closes.
+     */
+    private final ReentrantLock writabilityLock = new ReentrantLock();
+    private final Condition writableCondition = writabilityLock.newCondition();
+
+    /**
+     * The writability last reported, guarded by the writability lock.
+     */
+    private boolean notifiedWritable = true;
+
+    /**
+     * The amount of packets dropped because the connection was not writable.
+     */
+    private final LongAdder droppedPackets = new LongAdder();
+
+    /**
+     * The reason to report once the transport closed the
+     * connection, if it was closed for a specific reason.
+     */
+    private volatile DisconnectReason issuedReason;
+
+    /** The network handler state. */
+    private final AtomicBoolean networkHandlerRunning = new AtomicBoolean();
+    private final AtomicBoolean networkHandlerDisconnected = new AtomicBoolean();
 
     /* General Network Events */
     private final Callback<Void> onNetworkHandlerStart = Callback.multi();
@@ -72,25 +267,86 @@ public class NetworkHandler {
     public Callback<DisconnectReason> onNetworkHandlerDisconnect() { return onNetworkHandlerDisconnect; }
     public Callback<Throwable> onPacketReadError() { return onPacketReadError; }
 
+    /* Called with the new writability on every change */
+    private final Callback<Boolean> onWritabilityChanged = Callback.multi();
+    public Callback<Boolean> onWritabilityChanged() { return onWritabilityChanged; }
+
     /* Packet Events */
     private final Callback<ReceivedPacket<?>> onAnyPacketReceived = Callback.multi();
     public Callback<ReceivedPacket<?>> onAnyPacketReceived() { return onAnyPacketReceived; }
     private final Map<PacketType, Callback<ReceivedPacket>> packetReceivedEvents =
-            new HashMap<>();
+            new ConcurrentHashMap<>();
+
+    /**
+     * The protocol handlers by packet type.
+     */
+    private final Map<PacketType, Consumer<ReceivedPacket>> packetHandlers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The protocol handlers called once the connection closed.
+     */
+    private final List<Consumer<DisconnectReason>> disconnectHandlers = new CopyOnWriteArrayList<>();
+
+    /**
+     * The per connection queues of serial dispatchers.
+     */
+    private final Map<PacketDispatcher, PacketDispatcher.SerialQueue> serialQueues =
+            new ConcurrentHashMap<>();
 
     public <T> Callback<ReceivedPacket<T>> onPacketReceived(PacketType<T> type) {
         return (Callback<ReceivedPacket<T>>) (Object) packetReceivedEvents.computeIfAbsent(type, __ -> Callback.multi());
     }
 
+    /**
+     * Set the protocol handler for the given packet type. The handler is
+     * called for every received packet of the type before the callbacks,
+     * there is at most one per type, owned by whatever implements the
+     * protocol the packet type belongs to.
+     *
+     * @param type The packet type.
+     * @param handler The handler or null to remove it.
+     */
+    public <T> void setPacketHandler(PacketType<T> type, Consumer<ReceivedPacket<T>> handler) {
+        if (handler == null) packetHandlers.remove(type);
+        else packetHandlers.put(type, (Consumer<ReceivedPacket>) (Object) handler);
+    }
+
+    /**
+     * Add a protocol handler called once the connection closed,
+     * after {@link #handleDisconnect(DisconnectReason)} and before
+     * the disconnect callbacks.
+     *
+     * @param handler The handler.
+     */
+    public void addDisconnectHandler(Consumer<DisconnectReason> handler) {
+        disconnectHandlers.add(handler);
+    }
+
     public NetworkHandler(NetworkManager networkManager, Socket socket) {
+        this(networkManager, socket, BlockingTransport.INSTANCE);
+    }
+
+    public NetworkHandler(NetworkManager networkManager, Socket socket, NetworkTransport transport) {
         this.networkManager = networkManager;
         this.socket = socket;
+        this.transport = transport;
+
+        setPacketHandler(BaseProtocol.SERVERBOUND_COMPRESSION_OFFER, packet -> onCompressionOffer(packet.value()));
     }
 
     public Socket getSocket() {
         return socket;
     }
 
+    public NetworkTransport getTransport() {
+        return transport;
+    }
+
+    public NetworkManager getNetworkManager() {
+        return networkManager;
+    }
+
     public boolean isClosed() {
         return socket.isClosed();
     }
@@ -113,14 +369,158 @@ public class NetworkHandler {
      * currently be encrypted.
      */
     public boolean isCurrentlyEncrypted() {
-        return encryptionProfile != EncryptionProfile.NOT_ENCRYPTING && enableEncryption.get();
+        if (!enableEncryption.get())
+            return false;
+        return sessionCipher != null ||
+                (encryptionProfile != null && encryptionProfile != EncryptionProfile.NOT_ENCRYPTING);
     }
 
     /**
      * Check if this client has an encryption profile established.
      */
     public boolean canEncrypt() {
-        return encryptionProfile != null;
+        return encryptionProfile != null || sessionCipher != null;
+    }
+
+    /**
+     * Set the session cipher used to encrypt frames once
+     * encryption is enabled, established by the handshake.
+     *
+     * @param sessionCipher The session cipher.
+     */
+    public void setSessionCipher(SessionCipher sessionCipher) {
+        this.sessionCipher = sessionCipher;
+    }
+
+    public SessionCipher getSessionCipher() {
+        return sessionCipher;
+    }
+
+    /**
+     * Send the given packet unencrypted and encrypt everything
+     * after it in both directions with the given session cipher,
+     * used by the end finishing the encryption handshake. Frames
+     * of the peer are decrypted before the packet is written, so
+     * the peer may answer encrypted right away.
+     *
+     * @param type The packet type.
+     * @param value The packet value.
+     * @param sessionCipher The session cipher.
+     */
+    public <T> void sendThenEncrypt(PacketType<T> type, T value, SessionCipher sessionCipher) {
+        encryptedSendLock.lock();
+        try {
+            ByteBuffer frame = encodeFrame(type, value, null);
+            this.sessionCipher = sessionCipher;
+            enableEncryption.set(true);
+            transport.write(this, frame);
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+        } finally {
+            encryptedSendLock.unlock();
+        }
+
+        checkWritability();
+    }
+
+    // get the session cipher if frames should currently be encrypted
+    private SessionCipher activeSessionCipher() {
+        return enableEncryption.get() ? sessionCipher : null;
+    }
+
+    /**
+     * Set the compression codecs this end supports, in the order
+     * it prefers them, used when negotiating compression.
+     *
+     * @param threshold The smallest frame body to compress.
+     * @param codecs The codecs, none to never compress.
+     */
+    public void setSupportedCompression(int threshold, CompressionCodec... codecs) {
+        if (codecs.length > BaseProtocol.MAX_OFFERED_CODECS)
+            throw new IllegalArgumentException("at most " + BaseProtocol.MAX_OFFERED_CODECS + " codecs can be offered");
+        this.compressionThreshold = threshold;
+        this.supportedCompression = codecs.clone();
+    }
+
+    /**
+     * Offer the supported codecs to the server, which picks one and
+     * starts compression on both ends. Like enabling encryption this
+     * should be part of the handshake, frames sent concurrently from
+     * other threads while compression starts may be corrupted.
+     */
+    public void offerCompression() {
+        CompressionCodec[] codecs = supportedCompression;
+        String[] names = new String[codecs.length];
+        for (int i = 0; i < codecs.length; i++)
+            names[i] = codecs[i].getName();
+        send(BaseProtocol.SERVERBOUND_COMPRESSION_OFFER, names);
+    }
+
+    /**
+     * Get the codec frames sent by this end are compressed with.
+     *
+     * @return The codec or null if not compressing.
+     */
+    public CompressionCodec getOutboundCompression() {
+        FrameCompression compression = outboundCompression;
+        return compression != null ? compression.codec : null;
+    }
+
+    /**
+     * Get the codec frames received from the peer are compressed with.
+     *
+     * @return The codec or null if not compressing.
+     */
+    public CompressionCodec getInboundCompression() {
+        FrameCompression compression = inboundCompression;
+        return compression != null ? compression.codec : null;
+    }
+
+    // pick the first codec of ours the client offered
+    private void onCompressionOffer(String[] offered) {
+        for (CompressionCodec codec : supportedCompression) {
+            for (String name : offered) {
+                if (codec.getName().equals(name)) {
+                    startCompression(codec);
+                    return;
+                }
+            }
+        }
+
+        send(BaseProtocol.COMPRESSION_START, BaseProtocol.NO_COMPRESSION);
+    }
+
+    // send the start signal and mark all following frames
+    private void startCompression(CompressionCodec codec) {
+        encryptedSendLock.lock();
+        try {
+            if (outboundCompression != null)
+                return;
+            send(BaseProtocol.COMPRESSION_START, codec.getName());
+            outboundCompression = new FrameCompression(codec, compressionThreshold);
+        } finally {
+            encryptedSendLock.unlock();
+        }
+    }
+
+    // called on the reading thread, all following
+    // frames of the peer carry a compression marker
+    private void onCompressionStart(String name) {
+        if (BaseProtocol.NO_COMPRESSION.equals(name))
+            return;
+
+        CompressionCodec codec = null;
+        for (CompressionCodec supported : supportedCompression)
+            if (supported.getName().equals(name))
+                codec = supported;
+        if (codec == null)
+            throw new IllegalStateException("peer started unsupported compression " + name);
+
+        inboundCompression = new FrameCompression(codec, compressionThreshold);
+
+        // answer with the same codec
+        if (outboundCompression == null)
+            startCompression(codec);
     }
 
     /**
@@ -167,6 +567,13 @@ public class NetworkHandler {
         }
     }
 
+    /**
+     * Check if the network handler is currently running.
+     */
+    public boolean isNetworkHandlerRunning() {
+        return networkHandlerRunning.get();
+    }
+
     /**
      * Start the network handler.
      *
@@ -175,58 +582,732 @@ public class NetworkHandler {
     public boolean startNetworkHandler() {
         if (socket.isClosed())
             return false;
+        if (!networkHandlerRunning.compareAndSet(false, true))
+            return false;
+
+        // no packet types can be registered
+        // once packets are being sent
+        networkManager.freeze();
 
-        networkHandlerThread = new Thread(() -> {
-            final ObjectInputStream inputStream = getInputStream();
-            DisconnectReason disconnectReason;
+        if (!transport.open(this)) {
+            networkHandlerRunning.set(false);
+            return false;
+        }
+
+        onNetworkHandlerStart.call();
+
+        // streams scheduled before starting
+        pullStreams();
+        return true;
+    }
 
+    /**
+     * Called by the transport once frames can be written, before
+     * the first frame is read, so nothing can be sent before the hello.
+     */
+    void opened() {
+        send(BaseProtocol.PROTOCOL_HELLO, networkManager.getProtocolHash());
+    }
+
+    /**
+     * Reject a connection without starting a network handler for it,
+     * writing the hello and a {@link BaseProtocol#DISCONNECT} with the
+     * given reason straight to the socket and closing it. Meant for
+     * turning away connections before anything is allocated for them.
+     *
+     * @param networkManager The network manager to encode the frames with.
+     * @param socket The socket of the connection.
+     * @param reason The reason.
+     */
+    public static void reject(NetworkManager networkManager, Socket socket, String reason) {
+        ByteBuffer hello = null;
+        ByteBuffer frame = null;
+        try {
+            networkManager.freeze();
+            hello = encodeFrame(networkManager, null, BaseProtocol.PROTOCOL_HELLO, networkManager.getProtocolHash(), null);
+            frame = encodeFrame(networkManager, null, BaseProtocol.DISCONNECT, new BaseProtocol.Disconnect(reason), null);
+            BlockingTransport.writeDirect(socket.getOutputStream(), hello);
+            BlockingTransport.writeDirect(socket.getOutputStream(), frame);
+            socket.shutdownOutput();
+        } catch (Exception e) {
+            // the peer is gone already
+        } finally {
+            if (hello != null)
+                BufferPool.DEFAULT.releaseBuffer(hello);
+            if (frame != null)
+                BufferPool.DEFAULT.releaseBuffer(frame);
             try {
-                while (true) {
-                    if (!networkHandlerRunning.get()) {
-                        disconnectReason = DisconnectReason.ISSUED;
-                        break;
-                    }
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                    if (socket.isClosed()) {
-                        disconnectReason = DisconnectReason.SOCKET_CLOSED;
-                        break;
-                    }
+    /**
+     * Stop the network handler and close the connection.
+     */
+    public void stopNetworkHandler() {
+        if (networkHandlerRunning.compareAndSet(true, false)) {
+            transport.close(this);
+        }
+    }
+
+    /**
+     * Stop the network handler and close the connection,
+     * reporting the given disconnect reason.
+     *
+     * @param reason The reason.
+     */
+    public void stopNetworkHandler(DisconnectReason reason) {
+        if (networkHandlerRunning.get() && issuedReason == null)
+            issuedReason = reason;
+        stopNetworkHandler();
+    }
+
+    /**
+     * Get the flush policy for outbound frames.
+     *
+     * @return The flush policy.
+     */
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Set the flush policy for outbound frames.
+     *
+     * @param flushPolicy The flush policy.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = Objects.requireNonNull(flushPolicy, "flushPolicy cannot be null");
+    }
+
+    /**
+     * Serializes and queues the given packet, it is written
+     * according to the current {@link FlushPolicy}.
+     *
+     * @param type The packet type.
+     * @param value The packet value.
+     */
+    public <T> void send(PacketType<T> type, T value) {
+        if (!writable.get() && type.isDroppable() && slowConsumerPolicy == SlowConsumerPolicy.DROP) {
+            droppedPackets.increment();
+            return;
+        }
 
+        try {
+            // frames are queued in encoding order while they are encrypted
+            // or compression may start, as both change the following frames
+            SessionCipher cipher = activeSessionCipher();
+            if (cipher == null && (outboundCompression != null || supportedCompression.length == 0)) {
+                transport.write(this, encodeFrame(type, value, null));
+            } else {
+                encryptedSendLock.lock();
+                try {
+                    transport.write(this, encodeFrame(type, value, cipher));
+                } finally {
+                    encryptedSendLock.unlock();
+                }
+            }
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+        }
+
+        checkWritability();
+    }
+
+    /**
+     * Set the amounts of queued bytes between which the connection
+     * turns not writable and writable again.
+     *
+     * @param low The low watermark, the connection is writable again at or below it.
+     * @param high The high watermark, the connection is not writable above it.
+     */
+    public void setWriteWatermarks(long low, long high) {
+        if (low < 0 || high < low)
+            throw new IllegalArgumentException("invalid watermarks " + low + " and " + high);
+        this.lowWatermark = low;
+        this.highWatermark = high;
+        checkWritability();
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Set the amount of queued bytes above which the connection
+     * is closed no matter the slow consumer policy.
+     *
+     * @param maxPendingBytes The limit.
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        if (maxPendingBytes <= 0)
+            throw new IllegalArgumentException("pending byte limit must be positive");
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    /**
+     * Set what happens once the peer reads too slowly.
+     *
+     * @param slowConsumerPolicy The policy.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = Objects.requireNonNull(slowConsumerPolicy, "slowConsumerPolicy cannot be null");
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Set the size of the largest frame body read while the session is
+     * not encrypted, for connections which stay unencrypted and receive
+     * large packets. Encrypted frames may always be up to
+     * {@link NetworkTransport#MAX_FRAME_SIZE}.
+     *
+     * @param maxUnencryptedFrameSize The limit.
+     */
+    public void setMaxUnencryptedFrameSize(int maxUnencryptedFrameSize) {
+        if (maxUnencryptedFrameSize <= 0 || maxUnencryptedFrameSize > NetworkTransport.MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("unencrypted frame size limit must be positive and at most the maximum frame size");
+        this.maxUnencryptedFrameSize = maxUnencryptedFrameSize;
+    }
+
+    public int getMaxUnencryptedFrameSize() {
+        return maxUnencryptedFrameSize;
+    }
+
+    /**
+     * Get the size of the largest frame body currently read,
+     * checked by the transport against every declared length.
+     */
+    int getMaxFrameSize() {
+        return activeSessionCipher() != null ? NetworkTransport.MAX_FRAME_SIZE : maxUnencryptedFrameSize;
+    }
+
+    /**
+     * Check if packets can be sent without queueing more than the high
+     * watermark. Turns false once more is queued and true again once
+     * the queue drained to the low watermark, see {@link #onWritabilityChanged()}.
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * Wait until the connection is writable or closed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return If the connection is writable.
+     */
+    public boolean awaitWritable(long timeout, TimeUnit unit) throws InterruptedException {
+        if (writable.get())
+            return true;
+
+        long nanos = unit.toNanos(timeout);
+        writabilityLock.lock();
+        try {
+            while (!writable.get() && !networkHandlerDisconnected.get()) {
+                if (nanos <= 0)
+                    return false;
+                nanos = writableCondition.awaitNanos(nanos);
+            }
+
+            return writable.get() && !networkHandlerDisconnected.get();
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    /**
+     * Get the amount of packets dropped because the
+     * connection was not writable, see {@link SlowConsumerPolicy#DROP}.
+     */
+    public long getDroppedPacketCount() {
+        return droppedPackets.sum();
+    }
+
+    // update the writability after bytes were queued or written
+    // and close the connection if the peer fell too far behind
+    private void checkWritability() {
+        long pending = transport.getPendingBytes(this);
+        if (pending > maxPendingBytes ||
+                (pending > highWatermark && slowConsumerPolicy == SlowConsumerPolicy.DISCONNECT)) {
+            stopNetworkHandler(DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+
+        if (pending > highWatermark) {
+            if (writable.compareAndSet(true, false))
+                notifyWritability();
+        } else if (pending <= lowWatermark && !writable.get()) {
+            if (writable.compareAndSet(false, true))
+                notifyWritability();
+        }
+    }
+
+    // report the current writability if it changed since the last
+    // report, serialized so listeners never end on a stale value
+    private void notifyWritability() {
+        writabilityLock.lock();
+        try {
+            boolean now = writable.get();
+            if (now == notifiedWritable)
+                return;
+            notifiedWritable = now;
+
+            if (now)
+                writableCondition.signalAll();
+            onWritabilityChanged.call(now);
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    // wake up the producers waiting for the connection
+    private void signalWritable() {
+        writabilityLock.lock();
+        try {
+            writableCondition.signalAll();
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    /**
+     * Get the amount of queued bytes up to which bulk streams are pulled.
+     */
+    public int getBulkBudget() {
+        return bulkBudget;
+    }
+
+    /**
+     * Set the amount of queued bytes up to which bulk streams are pulled,
+     * lower values let control packets overtake bulk data sooner.
+     *
+     * @param bulkBudget The budget in bytes.
+     */
+    public void setBulkBudget(int bulkBudget) {
+        if (bulkBudget <= 0)
+            throw new IllegalArgumentException("bulk budget must be positive");
+        this.bulkBudget = bulkBudget;
+        pullStreams();
+    }
+
+    /**
+     * Schedule the given bulk stream to be pulled until it has no
+     * more packets ready, see {@link BulkStream}. Does nothing if
+     * it is already scheduled.
+     *
+     * @param stream The stream.
+     */
+    public void schedule(BulkStream stream) {
+        if (networkHandlerDisconnected.get())
+            return;
+        if (readyStreamSet.add(stream))
+            readyStreams.add(stream);
+        pullStreams();
+    }
+
+    /**
+     * Get the amount of bulk streams with packets ready to send.
+     */
+    public int getReadyStreamCount() {
+        return readyStreamSet.size();
+    }
+
+    // pull one packet at a time from the ready streams while
+    // under the budget, one thread at a time so streams never
+    // send concurrently and calls from sends return right away
+    private void pullStreams() {
+        while (!readyStreams.isEmpty() && transport.getPendingBytes(this) < bulkBudget) {
+            if (!pullingStreams.compareAndSet(false, true))
+                return;
+
+            try {
+                BulkStream stream;
+                while (networkHandlerRunning.get() && transport.getPendingBytes(this) < bulkBudget &&
+                        (stream = readyStreams.poll()) != null) {
+                    readyStreamSet.remove(stream);
+
+                    boolean more;
                     try {
-                        // get packet id
-                        int packetId = inputStream.readInt();
-                        PacketType<?> packetType = networkManager.getPacketTypeByHash(packetId);
-
-                        if (packetType == null) {
-                            throw new NoSuchPacketException(packetId);
-                        }
-
-                        // deserialize value
-                        Object value = packetType.deserialize(inputStream);
-                        ReceivedPacket packet = new ReceivedPacket(this, packetType, value);
-
-                        // call packet event
-                        onAnyPacketReceived.call(packet);
-                        Callback callback = packetReceivedEvents.get(packetType);
-                        if (callback != null) {
-                            callback.call(packet);
-                        }
+                        more = stream.sendNext();
                     } catch (Exception e) {
-                        onPacketReadError.call(e);
+                        stream.failed(e);
+                        continue;
                     }
+
+                    if (more && readyStreamSet.add(stream))
+                        readyStreams.add(stream);
                 }
+
+                // bulk held back by the budget should not
+                // also wait for the delay of the flush policy
+                if (!readyStreams.isEmpty())
+                    transport.flush(this);
             } catch (Exception e) {
-                disconnectReason = DisconnectReason.FATAL_ERROR;
-                e.printStackTrace();
+                Throwables.sneakyThrow(e);
+            } finally {
+                pullingStreams.set(false);
             }
 
-            onNetworkHandlerDisconnect.call(disconnectReason);
-        }, "CerveClientNetworkHandler");
+            // streams scheduled while the transport was closing are dropped
+            if (!networkHandlerRunning.get())
+                return;
+        }
+    }
 
-        networkHandlerRunning.set(true);
-        networkHandlerThread.start();
-        onNetworkHandlerStart.call();
+    /**
+     * Called by the transport after queued bytes were
+     * written, updates the writability and pulls the bulk streams.
+     */
+    void onFlushed() {
+        checkWritability();
+        if (!readyStreams.isEmpty())
+            pullStreams();
+    }
+
+    /**
+     * Sends a packet whose serialized value ends with a region of a
+     * file, written without copying the file bytes through the heap.
+     * Only possible if the connection is not encrypted, as frames
+     * are encrypted as a whole.
+     *
+     * @param type The packet type.
+     * @param prefix Writes the serialized value up to the file bytes.
+     * @param file The file.
+     * @param position The position of the region in the file.
+     * @param count The length of the region.
+     * @return If the packet was sent, false if the connection is encrypted.
+     */
+    public boolean sendFileRegion(PacketType<?> type, BufferSerializer<Void> prefix,
+                                  FileChannel file, long position, int count) {
+        if (isCurrentlyEncrypted())
+            return false;
+
+        int networkId = networkManager.getNetworkID(type);
+        if (networkId == -1)
+            throw new IllegalArgumentException("packet type " + type.getName() + " is not registered");
+
+        ByteBuffer header;
+        PacketBuffer buf = PacketBuffer.allocate(BufferPool.DEFAULT, 64);
+        try {
+            buf.writerIndex(MAX_HEADER_SIZE);
+
+            // file regions are never compressed
+            if (outboundCompression != null)
+                buf.writeVarInt(0);
+            buf.writeVarInt(networkId);
+            prefix.serialize(buf, null);
+
+            // the length covers the file bytes following the header
+            long length = (long) buf.writerIndex() - MAX_HEADER_SIZE + count;
+            if (length > NetworkTransport.MAX_FRAME_SIZE)
+                throw new IllegalArgumentException("frame of " + length + " bytes exceeds the maximum frame size");
+            int start = MAX_HEADER_SIZE - PacketBuffer.varIntSize((int) length);
+            buf.setVarInt(start, (int) length);
+            header = ByteBuffer.wrap(buf.array(), start, buf.writerIndex() - start);
+        } catch (Exception e) {
+            buf.release();
+            Throwables.sneakyThrow(e);
+            return false;
+        }
+
+        try {
+            // the transport owns the header from here on
+            transport.writeRegion(this, new FileRegion(header, file, position, count));
+            checkWritability();
+            return true;
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes all queued packets to the socket.
+     */
+    public void flush() {
+        try {
+            transport.flush(this);
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+        }
+    }
+
+    /**
+     * Get the amount of bytes queued for this
+     * connection which have not been written yet.
+     */
+    public long getPendingBytes() {
+        return transport.getPendingBytes(this);
+    }
+
+    /**
+     * The maximum size of a frame length prefix.
+     */
+    static final int MAX_HEADER_SIZE = 5;
+
+    /**
+     * Encode the given packet into a frame, including
+     * the var int length prefix.
+     *
+     * A frame is laid out as {@code [length: varint] [marker: varint] [network id: varint] [payload]},
+     * where the marker is only present once compression started and everything after
+     * the length is encrypted in place if a cipher is given. A marker of 0 means the
+     * body is not compressed, otherwise it is the length of the uncompressed body.
+     *
+     * @param type The packet type.
+     * @param value The packet value.
+     * @param cipher The session cipher to encrypt with, or null.
+     * @return The frame, ready to be written.
+     */
+    <T> ByteBuffer encodeFrame(PacketType<T> type, T value, SessionCipher cipher) throws Exception {
+        return encodeFrame(networkManager, outboundCompression, type, value, cipher);
+    }
+
+    // encodes a frame without needing a handler, see above
+    static <T> ByteBuffer encodeFrame(NetworkManager networkManager, FrameCompression compression,
+                                      PacketType<T> type, T value, SessionCipher cipher) throws Exception {
+        int networkId = networkManager.getNetworkID(type);
+        if (networkId == -1)
+            throw new IllegalArgumentException("packet type " + type.getName() + " is not registered");
+
+        // serialize body after space reserved for the length
+        // and the compression marker
+        int bodyStart = compression != null ? MAX_HEADER_SIZE + 1 : MAX_HEADER_SIZE;
+        PacketBuffer buf = PacketBuffer.allocate(BufferPool.DEFAULT, 64);
+        try {
+            buf.writerIndex(bodyStart);
+            buf.writeVarInt(networkId);
+            type.write(buf, value);
+
+            // compress before encrypting, encrypted
+            // bytes do not compress
+            if (compression != null) {
+                PacketBuffer compressed = compression.compress(buf, bodyStart);
+                if (compressed != null) {
+                    buf.release();
+                    buf = compressed;
+                } else {
+                    buf.array()[MAX_HEADER_SIZE] = 0;
+                }
+            }
+
+            if (cipher != null) {
+                int bodyLength = buf.writerIndex() - MAX_HEADER_SIZE;
+                buf.ensureCapacity(buf.writerIndex() + SessionCipher.TAG_LENGTH);
+                buf.writerIndex(MAX_HEADER_SIZE + cipher.encrypt(buf.array(), MAX_HEADER_SIZE, bodyLength));
+            }
+
+            // prefix length right before the body
+            int length = buf.writerIndex() - MAX_HEADER_SIZE;
+            if (length > NetworkTransport.MAX_FRAME_SIZE)
+                throw new IllegalArgumentException("frame of " + length + " bytes exceeds the maximum frame size");
+            int start = MAX_HEADER_SIZE - PacketBuffer.varIntSize(length);
+            buf.setVarInt(start, length);
+            return ByteBuffer.wrap(buf.array(), start, buf.writerIndex() - start);
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes and dispatches a received frame body, called
+     * by the transport on the thread which read it.
+     *
+     * @param bytes The buffer.
+     * @param off The offset of the frame body.
+     * @param len The length of the frame body.
+     */
+    void receiveFrame(byte[] bytes, int off, int len) {
+        try {
+            SessionCipher cipher = activeSessionCipher();
+            if (cipher != null) {
+                // decrypt in place in the read buffer
+                try {
+                    len = cipher.decrypt(bytes, off, len);
+                } catch (GeneralSecurityException e) {
+                    // the frame was forged or dropped, the counter
+                    // nonces can not be trusted for any later frame
+                    onPacketReadError.call(e);
+                    stopNetworkHandler(DisconnectReason.FATAL_ERROR);
+                    return;
+                }
+            }
+
+            PacketBuffer buf = PacketBuffer.wrap(bytes, off, len);
+
+            // decompress into a pooled array
+            byte[] decompressed = null;
+            FrameCompression compression = inboundCompression;
+            if (compression != null) {
+                int length = buf.readVarInt();
+                if (length != 0) {
+                    decompressed = compression.decompress(bytes, buf.readerIndex(), buf.readableBytes(), length);
+                    buf = PacketBuffer.wrap(decompressed, 0, length);
+                }
+            }
+
+            Object value;
+            PacketType<?> packetType;
+            try {
+                // get packet id, the first
+                // frame of the peer is its hello
+                int packetId = buf.readVarInt();
+                if (!protocolChecked && packetId != 0) {
+                    protocolMismatch("the first frame of the peer has packet ID " + packetId);
+                    return;
+                }
+
+                packetType = networkManager.getPacketType(packetId);
+
+                if (packetType == null) {
+                    throw new NoSuchPacketException(packetId);
+                }
+
+                // deserialize value, the frame
+                // has to be consumed completely
+                value = packetType.read(buf);
+                if (buf.isReadable()) {
+                    throw new IllegalStateException(buf.readableBytes() + " trailing bytes in frame of packet " + packetType.getName());
+                }
+            } finally {
+                // values never reference the frame
+                if (decompressed != null)
+                    BufferPool.DEFAULT.releaseArray(decompressed);
+            }
+
+            if (packetType == BaseProtocol.PROTOCOL_HELLO && !onProtocolHello((Integer) value)) {
+                return;
+            }
+
+            // the following frames of the peer are marked
+            if (packetType == BaseProtocol.COMPRESSION_START) {
+                onCompressionStart((String) value);
+            }
+
+            ReceivedPacket packet = new ReceivedPacket(this, packetType, value);
+
+            // call packet events through the bound dispatcher
+            PacketDispatcher dispatcher = networkManager.getDispatcher(packetType);
+            dispatcher.submit(this, () -> callPacketEvents(packet));
+        } catch (Exception e) {
+            onPacketReadError.call(e);
+        }
+    }
+
+    // compare the protocol hash of the peer to ours
+    private boolean onProtocolHello(int hash) {
+        int expected = networkManager.getProtocolHash();
+        if (hash != expected) {
+            protocolMismatch("protocol hash " + hash + " of the peer does not match " + expected);
+            return false;
+        }
+
+        protocolChecked = true;
         return true;
     }
 
+    private void protocolMismatch(String message) {
+        onPacketReadError.call(new IOException(message));
+        stopNetworkHandler(DisconnectReason.PROTOCOL_MISMATCH);
+    }
+
+    /**
+     * Calls the callbacks for the given received packet.
+     *
+     * @param packet The packet.
+     */
+    void callPacketEvents(ReceivedPacket packet) {
+        try {
+            Consumer<ReceivedPacket> handler = packetHandlers.get(packet.type());
+            if (handler != null) {
+                handler.accept(packet);
+            }
+
+            onAnyPacketReceived.call(packet);
+            Callback callback = packetReceivedEvents.get(packet.type());
+            if (callback != null) {
+                callback.call(packet);
+            }
+        } catch (Exception e) {
+            onPacketReadError.call(e);
+        }
+    }
+
+    /**
+     * Get the serial queue of this connection for the given dispatcher.
+     */
+    PacketDispatcher.SerialQueue getSerialQueue(PacketDispatcher dispatcher, Executor executor) {
+        return serialQueues.computeIfAbsent(dispatcher, __ -> new PacketDispatcher.SerialQueue(executor));
+    }
+
+    /**
+     * Get the amount of packets of this connection waiting in
+     * the queue of the given serial dispatcher.
+     *
+     * @param dispatcher The dispatcher.
+     * @return The queue depth, 0 if the dispatcher has no queue for this connection.
+     */
+    public int getDispatchQueueDepth(PacketDispatcher dispatcher) {
+        PacketDispatcher.SerialQueue queue = serialQueues.get(dispatcher);
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * Called by the transport once the connection
+     * has been closed, calls the disconnect event once.
+     *
+     * @param reason The disconnect reason.
+     */
+    void disconnected(DisconnectReason reason) {
+        networkHandlerRunning.set(false);
+        if (reason == DisconnectReason.ISSUED && issuedReason != null)
+            reason = issuedReason;
+        if (networkHandlerDisconnected.compareAndSet(false, true)) {
+            signalWritable();
+
+            FrameCompression compression;
+            if ((compression = outboundCompression) != null) compression.close();
+            if ((compression = inboundCompression) != null) compression.close();
+            readyStreams.clear();
+            readyStreamSet.clear();
+
+            handleDisconnect(reason);
+            for (Consumer<DisconnectReason> handler : disconnectHandlers) {
+                try {
+                    handler.accept(reason);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            onNetworkHandlerDisconnect.call(reason);
+        }
+    }
+
+    /**
+     * Called once when the connection has been closed, before
+     * the disconnect callbacks, for subclasses to clean up.
+     *
+     * @param reason The disconnect reason.
+     */
+    protected void handleDisconnect(DisconnectReason reason) {
+
+    }
+
 }
@@ -4,9 +4,25 @@ import coldsrc.cerve.util.Throwables;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Registry of all packet types known to a connection.
+ *
+ * Packet types are registered by name hash during startup, after
+ * which the manager is frozen. Freezing assigns every packet type a
+ * dense network ID in the order of their names, so two managers with
+ * the same packet types agree on the IDs, and builds a flat array
+ * which can be read from any thread without locking. The IDs belong
+ * to the manager, the same packet type may have another ID in another
+ * manager. Peers compare their {@link #getProtocolHash() protocol hash}
+ * with {@link BaseProtocol#PROTOCOL_HELLO}, which always has ID 0.
+ */
 public class NetworkManager {
 
     /**
@@ -14,6 +30,33 @@ public class NetworkManager {
      */
     private final Map<Integer, PacketType<?>> packetTypesByHash = new HashMap<>();
 
+    /**
+     * All registered packet types by network ID,
+     * null until this manager is frozen.
+     */
+    private volatile PacketType<?>[] packetTypesById;
+
+    /**
+     * The network IDs by packet type, null until frozen.
+     */
+    private volatile Map<PacketType<?>, Integer> networkIds;
+
+    /**
+     * The dispatchers bound to packet types.
+     */
+    private final Map<PacketType<?>, PacketDispatcher> dispatchers = new HashMap<>();
+
+    /**
+     * The dispatchers by network ID, null until frozen.
+     */
+    private volatile PacketDispatcher[] dispatchersById;
+
+    /**
+     * The hash of all registered packet type names
+     * in network ID order, set when frozen.
+     */
+    private int protocolHash;
+
     {
         registerAll(BaseProtocol.class);
     }
@@ -22,19 +65,39 @@ public class NetworkManager {
      * Registers the given packet type.
      *
      * @param type The type.
+     * @throws IllegalStateException If this manager is frozen or another
+     *                               packet type with the same hash is registered.
      */
-    public void register(PacketType<?> type) {
+    public synchronized void register(PacketType<?> type) {
+        if (packetTypesById != null)
+            throw new IllegalStateException("can not register packet type " + type.getName() + ", network manager is frozen");
+
+        PacketType<?> present = packetTypesByHash.get(type.getID());
+        if (present == type)
+            return;
+        if (present != null)
+            throw new IllegalStateException("packet type " + type.getName() + " collides with " +
+                    present.getName() + " (hash " + type.getID() + ")");
+
         packetTypesByHash.put(type.getID(), type);
     }
 
     /**
      * Registers all statically defined packet types
-     * in the given class.
+     * and packet type groups in the given class.
      */
     public void registerAll(Class<?> spec) {
         try {
             for (Field field : spec.getDeclaredFields()) {
                 if (!Modifier.isStatic(field.getModifiers())) continue;
+
+                if (PacketTypeGroup.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    for (PacketType<?> type : ((PacketTypeGroup) field.get(null)).getPacketTypes())
+                        register(type);
+                    continue;
+                }
+
                 if (!PacketType.class.isAssignableFrom(field.getType())) continue;
 
                 field.setAccessible(true);
@@ -47,6 +110,101 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Freezes this manager, assigning the network IDs. Does
+     * nothing if it is already frozen.
+     *
+     * @return This.
+     */
+    public synchronized NetworkManager freeze() {
+        if (packetTypesById != null)
+            return this;
+
+        // the hello comes first, so peers can always read it
+        List<PacketType<?>> types = new ArrayList<>(packetTypesByHash.values());
+        types.remove(BaseProtocol.PROTOCOL_HELLO);
+        types.sort(Comparator.comparing(PacketType::getName));
+        types.add(0, BaseProtocol.PROTOCOL_HELLO);
+
+        PacketType<?>[] byId = new PacketType<?>[types.size()];
+        Map<PacketType<?>, Integer> ids = new IdentityHashMap<>(byId.length);
+        int hash = 1;
+        for (int id = 0; id < byId.length; id++) {
+            PacketType<?> type = types.get(id);
+            ids.put(type, id);
+            byId[id] = type;
+            hash = 31 * hash + type.getName().hashCode();
+        }
+
+        protocolHash = hash;
+        networkIds = ids;
+        dispatchersById = buildDispatchers(byId);
+        packetTypesById = byId;
+        return this;
+    }
+
+    private PacketDispatcher[] buildDispatchers(PacketType<?>[] byId) {
+        PacketDispatcher[] arr = new PacketDispatcher[byId.length];
+        for (int id = 0; id < byId.length; id++)
+            arr[id] = dispatchers.getOrDefault(byId[id], PacketDispatcher.INLINE);
+        return arr;
+    }
+
+    /**
+     * Bind the given dispatcher to the given packet type, deciding
+     * where its callbacks are called. May be called at any time.
+     *
+     * @param type The packet type.
+     * @param dispatcher The dispatcher, or null to reset to {@link PacketDispatcher#INLINE}.
+     */
+    public synchronized void bindDispatcher(PacketType<?> type, PacketDispatcher dispatcher) {
+        if (dispatcher == null) dispatchers.remove(type);
+        else dispatchers.put(type, dispatcher);
+
+        // republish the lookup array
+        PacketType<?>[] byId = packetTypesById;
+        if (byId != null)
+            dispatchersById = buildDispatchers(byId);
+    }
+
+    /**
+     * Get the dispatcher bound to the given packet type.
+     *
+     * @param type The packet type.
+     * @return The dispatcher, {@link PacketDispatcher#INLINE} if none is bound.
+     */
+    public PacketDispatcher getDispatcher(PacketType<?> type) {
+        // the IDs are published before the dispatchers
+        PacketDispatcher[] byId = dispatchersById;
+        Integer id = byId != null ? networkIds.get(type) : null;
+        if (id != null)
+            return byId[id];
+
+        synchronized (this) {
+            return dispatchers.getOrDefault(type, PacketDispatcher.INLINE);
+        }
+    }
+
+    /**
+     * Check if this manager is frozen.
+     */
+    public boolean isFrozen() {
+        return packetTypesById != null;
+    }
+
+    /**
+     * Get the hash of all registered packet types, peers
+     * with the same protocol hash agree on all network IDs.
+     *
+     * @return The protocol hash.
+     * @throws IllegalStateException If this manager is not frozen.
+     */
+    public int getProtocolHash() {
+        if (packetTypesById == null)
+            throw new IllegalStateException("network manager is not frozen");
+        return protocolHash;
+    }
+
     /**
      * Get a packet type by hash/ID if present.
      *
@@ -57,4 +215,43 @@ public class NetworkManager {
         return packetTypesByHash.get(id);
     }
 
+    /**
+     * Get a packet type by network ID if present.
+     *
+     * @param id The network ID.
+     * @return The packet type or null if absent.
+     * @throws IllegalStateException If this manager is not frozen.
+     */
+    public PacketType<?> getPacketType(int id) {
+        PacketType<?>[] byId = packetTypesById;
+        if (byId == null)
+            throw new IllegalStateException("network manager is not frozen");
+        if (id < 0 || id >= byId.length)
+            return null;
+        return byId[id];
+    }
+
+    /**
+     * Get the network ID of the given packet type.
+     *
+     * @param type The packet type.
+     * @return The network ID or -1 if not registered.
+     * @throws IllegalStateException If this manager is not frozen.
+     */
+    public int getNetworkID(PacketType<?> type) {
+        Map<PacketType<?>, Integer> ids = networkIds;
+        if (ids == null)
+            throw new IllegalStateException("network manager is not frozen");
+        Integer id = ids.get(type);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Get the amount of registered packet types.
+     */
+    public int getPacketTypeCount() {
+        PacketType<?>[] byId = packetTypesById;
+        return byId != null ? byId.length : packetTypesByHash.size();
+    }
+
 }
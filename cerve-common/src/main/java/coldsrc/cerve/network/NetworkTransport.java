@@ -0,0 +1,112 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves frames between the socket of a {@link NetworkHandler}
+ * and the handler itself. A transport may be shared by any
+ * amount of network handlers.
+ *
+ * A frame on the wire is a var int length prefix followed by
+ * the frame body, which is produced by {@link NetworkHandler#encodeFrame(PacketType, Object, coldsrc.cerve.security.SessionCipher)}
+ * and consumed by {@link NetworkHandler#receiveFrame(byte[], int, int)}.
+ * After writing queued bytes, transports call {@link NetworkHandler#onFlushed()}
+ * so the handler can pull more from its {@link BulkStream}s.
+ */
+public interface NetworkTransport {
+
+    /**
+     * The maximum size of a single frame body in bytes.
+     */
+    int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Start reading frames for the given network handler,
+     * calling {@link NetworkHandler#opened()} before the first.
+     *
+     * @param handler The network handler.
+     * @return If it was successfully started.
+     */
+    boolean open(NetworkHandler handler);
+
+    /**
+     * Stop reading frames for the given network handler
+     * and close its socket.
+     *
+     * @param handler The network handler.
+     */
+    void close(NetworkHandler handler);
+
+    /**
+     * Queue the given complete frame (including the length
+     * prefix) to be written to the socket of the given handler,
+     * flushed according to the {@link FlushPolicy} of the handler.
+     *
+     * The transport takes ownership of the frame and releases
+     * its backing array to {@link BufferPool#DEFAULT} once it
+     * has been written.
+     *
+     * @param handler The network handler.
+     * @param frame The frame, from its position to its limit.
+     */
+    void write(NetworkHandler handler, ByteBuffer frame) throws IOException;
+
+    /**
+     * Queue the given file region frame, written in order with the other
+     * frames. Transports write the file bytes with zero copy where possible,
+     * by default the region is copied into a regular frame.
+     *
+     * The transport takes ownership of the region.
+     *
+     * @param handler The network handler.
+     * @param region The region.
+     */
+    default void writeRegion(NetworkHandler handler, FileRegion region) throws IOException {
+        int length = (int) region.remaining();
+        byte[] frame = BufferPool.DEFAULT.acquireArray(length);
+        try {
+            int headerLength = region.header.remaining();
+            region.header.get(frame, 0, headerLength);
+            int off = headerLength;
+            while (off < length) {
+                int read = region.file.read(ByteBuffer.wrap(frame, off, length - off), region.position + off - headerLength);
+                if (read == -1)
+                    throw new IOException("file ended before the region");
+                off += read;
+            }
+        } catch (IOException e) {
+            BufferPool.DEFAULT.releaseArray(frame);
+            throw e;
+        } finally {
+            region.release();
+        }
+
+        write(handler, ByteBuffer.wrap(frame, 0, length));
+    }
+
+    /**
+     * Write all frames queued for the given handler.
+     *
+     * @param handler The network handler.
+     */
+    void flush(NetworkHandler handler) throws IOException;
+
+    /**
+     * Get the amount of bytes queued for the given
+     * handler which have not been written yet.
+     *
+     * @param handler The network handler.
+     * @return The amount of bytes.
+     */
+    long getPendingBytes(NetworkHandler handler);
+
+    /**
+     * Release all resources held by this transport,
+     * like shared I/O threads.
+     */
+    default void shutdown() { }
+
+}
@@ -5,6 +5,7 @@ public class NoSuchPacketException extends RuntimeException {
     private final int typeHash;
 
     public NoSuchPacketException(int typeHash) {
+        super("no packet type with ID " + typeHash);
         this.typeHash = typeHash;
     }
 
@@ -0,0 +1,479 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.buffer.BufferPool;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable binary buffer with separate reader and writer
+ * indices, used to encode and decode packet frames
+ * without Java serialization.
+ *
+ * Integers are big endian, var ints are unsigned
+ * LEB128 (7 bits per byte, low groups first).
+ */
+public class PacketBuffer {
+
+    /**
+     * Allocate a new empty buffer with the given
+     * initial capacity.
+     *
+     * @param capacity The initial capacity.
+     * @return The buffer.
+     */
+    public static PacketBuffer allocate(int capacity) {
+        return new PacketBuffer(new byte[capacity], 0, 0);
+    }
+
+    /**
+     * Allocate a new empty buffer with an array from the given
+     * pool. The buffer should be released with {@link #release()}
+     * once it is not used anymore.
+     *
+     * @param pool The pool to acquire arrays from.
+     * @param capacity The initial capacity.
+     * @return The buffer.
+     */
+    public static PacketBuffer allocate(BufferPool pool, int capacity) {
+        PacketBuffer buf = new PacketBuffer(pool.acquireArray(capacity), 0, 0);
+        buf.pool = pool;
+        return buf;
+    }
+
+    /**
+     * Wrap the given array for reading, the buffer
+     * will be readable from start to end.
+     *
+     * @param bytes The array.
+     * @return The buffer.
+     */
+    public static PacketBuffer wrap(byte[] bytes) {
+        return new PacketBuffer(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Wrap the given array region for reading.
+     *
+     * @param bytes The array.
+     * @param off The start of the readable region.
+     * @param len The length of the readable region.
+     * @return The buffer.
+     */
+    public static PacketBuffer wrap(byte[] bytes, int off, int len) {
+        return new PacketBuffer(bytes, off, off + len);
+    }
+
+    /**
+     * Get the amount of bytes the given value
+     * takes up when encoded as a var int.
+     *
+     * @param value The value.
+     * @return The size in bytes (1 to 5).
+     */
+    public static int varIntSize(int value) {
+        if ((value & 0xFFFFFF80) == 0) return 1;
+        if ((value & 0xFFFFC000) == 0) return 2;
+        if ((value & 0xFFE00000) == 0) return 3;
+        if ((value & 0xF0000000) == 0) return 4;
+        return 5;
+    }
+
+    /* -------------------------------------- */
+
+    // the backing array
+    private byte[] array;
+
+    // the index to read from next
+    private int readerIndex;
+    // the index to write to next
+    private int writerIndex;
+
+    // the pool the array was acquired from, or null
+    private BufferPool pool;
+
+    PacketBuffer(byte[] array, int readerIndex, int writerIndex) {
+        this.array = array;
+        this.readerIndex = readerIndex;
+        this.writerIndex = writerIndex;
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    public int readerIndex() {
+        return readerIndex;
+    }
+
+    public PacketBuffer readerIndex(int index) {
+        this.readerIndex = index;
+        return this;
+    }
+
+    public int writerIndex() {
+        return writerIndex;
+    }
+
+    public PacketBuffer writerIndex(int index) {
+        ensureCapacity(index);
+        this.writerIndex = index;
+        return this;
+    }
+
+    /**
+     * Get the amount of bytes left to read.
+     */
+    public int readableBytes() {
+        return writerIndex - readerIndex;
+    }
+
+    public boolean isReadable() {
+        return writerIndex > readerIndex;
+    }
+
+    /**
+     * Reset both indices to zero.
+     */
+    public PacketBuffer clear() {
+        readerIndex = 0;
+        writerIndex = 0;
+        return this;
+    }
+
+    /**
+     * Copy the readable bytes into a new array.
+     *
+     * @return The array.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(array, readerIndex, writerIndex);
+    }
+
+    /**
+     * Make sure the backing array is at least the given size,
+     * growing it if needed.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > array.length) {
+            int newCapacity = Math.max(capacity, array.length * 2);
+            if (pool != null) {
+                byte[] newArray = pool.acquireArray(newCapacity);
+                System.arraycopy(array, 0, newArray, 0, writerIndex);
+                pool.releaseArray(array);
+                array = newArray;
+            } else {
+                array = Arrays.copyOf(array, newCapacity);
+            }
+        }
+    }
+
+    /**
+     * Release the backing array to the pool it was acquired
+     * from, if any. The buffer must not be used afterwards.
+     */
+    public void release() {
+        if (pool != null) {
+            pool.releaseArray(array);
+            pool  = null;
+            array = null;
+        }
+    }
+
+    private void ensureWritable(int bytes) {
+        ensureCapacity(writerIndex + bytes);
+    }
+
+    private void checkReadable(int bytes) {
+        if (writerIndex - readerIndex < bytes)
+            throw new BufferUnderflowException();
+    }
+
+    /*
+        Writing
+     */
+
+    public PacketBuffer writeByte(int b) {
+        ensureWritable(1);
+        array[writerIndex++] = (byte) b;
+        return this;
+    }
+
+    public PacketBuffer writeBoolean(boolean b) {
+        return writeByte(b ? 1 : 0);
+    }
+
+    public PacketBuffer writeShort(int v) {
+        ensureWritable(2);
+        array[writerIndex++] = (byte) (v >>> 8);
+        array[writerIndex++] = (byte) v;
+        return this;
+    }
+
+    public PacketBuffer writeInt(int v) {
+        ensureWritable(4);
+        array[writerIndex++] = (byte) (v >>> 24);
+        array[writerIndex++] = (byte) (v >>> 16);
+        array[writerIndex++] = (byte) (v >>> 8);
+        array[writerIndex++] = (byte) v;
+        return this;
+    }
+
+    public PacketBuffer writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+        return this;
+    }
+
+    public PacketBuffer writeFloat(float v) {
+        return writeInt(Float.floatToIntBits(v));
+    }
+
+    public PacketBuffer writeDouble(double v) {
+        return writeLong(Double.doubleToLongBits(v));
+    }
+
+    public PacketBuffer writeVarInt(int v) {
+        ensureWritable(5);
+        while ((v & ~0x7F) != 0) {
+            array[writerIndex++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+
+        array[writerIndex++] = (byte) v;
+        return this;
+    }
+
+    public PacketBuffer writeVarLong(long v) {
+        ensureWritable(10);
+        while ((v & ~0x7FL) != 0) {
+            array[writerIndex++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+
+        array[writerIndex++] = (byte) v;
+        return this;
+    }
+
+    /**
+     * Write the given value as a var int at the given
+     * index, without moving the writer index.
+     *
+     * @param index The index to write at.
+     * @param v The value.
+     * @return The amount of bytes written.
+     */
+    public int setVarInt(int index, int v) {
+        ensureCapacity(index + 5);
+        int start = index;
+        while ((v & ~0x7F) != 0) {
+            array[index++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+
+        array[index++] = (byte) v;
+        return index - start;
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes, int off, int len) {
+        ensureWritable(len);
+        System.arraycopy(bytes, off, array, writerIndex, len);
+        writerIndex += len;
+        return this;
+    }
+
+    public PacketBuffer writeBytes(byte[] bytes) {
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write the given array prefixed by its
+     * length as a var int.
+     */
+    public PacketBuffer writeByteArray(byte[] bytes) {
+        writeVarInt(bytes.length);
+        return writeBytes(bytes);
+    }
+
+    /**
+     * Write the given string as UTF-8 prefixed by
+     * its encoded length as a var int.
+     */
+    public PacketBuffer writeUTF(String str) {
+        return writeByteArray(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+        Reading
+     */
+
+    public byte readByte() {
+        checkReadable(1);
+        return array[readerIndex++];
+    }
+
+    public int readUnsignedByte() {
+        return readByte() & 0xFF;
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public short readShort() {
+        checkReadable(2);
+        return (short) (((array[readerIndex++] & 0xFF) << 8) |
+                (array[readerIndex++] & 0xFF));
+    }
+
+    public int readInt() {
+        checkReadable(4);
+        return ((array[readerIndex++] & 0xFF) << 24) |
+                ((array[readerIndex++] & 0xFF) << 16) |
+                ((array[readerIndex++] & 0xFF) << 8) |
+                (array[readerIndex++] & 0xFF);
+    }
+
+    public long readLong() {
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IllegalStateException("var int is too long");
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IllegalStateException("var long is too long");
+    }
+
+    public PacketBuffer readBytes(byte[] dst, int off, int len) {
+        checkReadable(len);
+        System.arraycopy(array, readerIndex, dst, off, len);
+        readerIndex += len;
+        return this;
+    }
+
+    /**
+     * Read an array prefixed by its length as a var int.
+     */
+    public byte[] readByteArray() {
+        int len = readVarInt();
+        if (len < 0)
+            throw new IllegalStateException("negative array length " + len);
+        checkReadable(len);
+        byte[] bytes = new byte[len];
+        readBytes(bytes, 0, len);
+        return bytes;
+    }
+
+    /**
+     * Read a UTF-8 string prefixed by its encoded
+     * length as a var int.
+     */
+    public String readUTF() {
+        int len = readVarInt();
+        if (len < 0)
+            throw new IllegalStateException("negative string length " + len);
+        checkReadable(len);
+        String str = new String(array, readerIndex, len, StandardCharsets.UTF_8);
+        readerIndex += len;
+        return str;
+    }
+
+    /**
+     * Skip the given amount of bytes.
+     */
+    public PacketBuffer skip(int len) {
+        checkReadable(len);
+        readerIndex += len;
+        return this;
+    }
+
+    /*
+        Stream Views
+     */
+
+    /**
+     * Get an input stream reading from this buffer.
+     *
+     * @return The input stream.
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                if (!isReadable())
+                    return -1;
+                return readByte() & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                int available = readableBytes();
+                if (available <= 0)
+                    return -1;
+                len = Math.min(len, available);
+                readBytes(b, off, len);
+                return len;
+            }
+
+            @Override
+            public int available() {
+                return readableBytes();
+            }
+        };
+    }
+
+    /**
+     * Get an output stream writing to this buffer.
+     *
+     * @return The output stream.
+     */
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeBytes(b, off, len);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,261 @@
+package coldsrc.cerve.network;
+
+import coldsrc.cerve.util.Threads;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides where the callbacks for a received packet are called.
+ * Bound to packet types with {@link NetworkManager#bindDispatcher(PacketType, PacketDispatcher)},
+ * packet types without a dispatcher are handled {@link #INLINE}.
+ *
+ * Every dispatcher keeps counters of the packets it handled and
+ * how many are currently waiting, to spot handler backlogs.
+ */
+public abstract class PacketDispatcher {
+
+    /**
+     * Calls the packet callbacks directly on the thread which
+     * read the packet, blocking further reads on the connection.
+     */
+    public static final PacketDispatcher INLINE = new PacketDispatcher("inline") {
+        @Override
+        void dispatch(NetworkHandler handler, Runnable task) {
+            task.run();
+        }
+    };
+
+    /**
+     * The shared worker pool, sized to the available cores.
+     */
+    private static volatile ExecutorService workerPool;
+
+    /**
+     * Get the shared worker pool, creating it if needed.
+     *
+     * @return The worker pool.
+     */
+    public static ExecutorService sharedWorkerPool() {
+        ExecutorService pool = workerPool;
+        if (pool == null) {
+            synchronized (PacketDispatcher.class) {
+                pool = workerPool;
+                if (pool == null) {
+                    workerPool = pool = Executors.newFixedThreadPool(
+                            Runtime.getRuntime().availableProcessors(),
+                            Threads.platformThreadFactory("CervePacketWorker", true));
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Calls the packet callbacks on the given executor
+     * without any ordering guarantees.
+     *
+     * @param executor The executor.
+     * @return The dispatcher.
+     */
+    public static PacketDispatcher executor(final Executor executor) {
+        return new PacketDispatcher("executor") {
+            @Override
+            void dispatch(NetworkHandler handler, Runnable task) {
+                executor.execute(task);
+            }
+        };
+    }
+
+    /**
+     * Calls the packet callbacks on the given executor, one
+     * packet at a time per connection in the order they were
+     * received. Different connections are handled concurrently.
+     *
+     * @param executor The executor.
+     * @return The dispatcher.
+     */
+    public static PacketDispatcher serial(final Executor executor) {
+        return new PacketDispatcher("serial") {
+            @Override
+            void dispatch(NetworkHandler handler, Runnable task) {
+                handler.getSerialQueue(this, executor).add(task);
+            }
+        };
+    }
+
+    /**
+     * Calls the packet callbacks on the shared worker pool
+     * without any ordering guarantees.
+     *
+     * @return The dispatcher.
+     */
+    public static PacketDispatcher workerPool() {
+        return executor(sharedWorkerPool());
+    }
+
+    /**
+     * Calls the packet callbacks on the shared worker pool,
+     * in order per connection.
+     *
+     * @return The dispatcher.
+     */
+    public static PacketDispatcher serialWorkerPool() {
+        return serial(sharedWorkerPool());
+    }
+
+    /**
+     * Calls the packet callbacks of every packet on a new
+     * virtual thread, without any ordering guarantees.
+     *
+     * @return The dispatcher.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static PacketDispatcher virtualThreads() {
+        final ThreadFactory factory = Threads.virtualThreadFactory("CervePacketHandler");
+        return executor(task -> factory.newThread(task).start());
+    }
+
+    /**
+     * Calls the packet callbacks on virtual threads,
+     * in order per connection.
+     *
+     * @return The dispatcher.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static PacketDispatcher serialVirtualThreads() {
+        final ThreadFactory factory = Threads.virtualThreadFactory("CervePacketHandler");
+        return serial(task -> factory.newThread(task).start());
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The name, for debugging.
+     */
+    private final String name;
+
+    // counters
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    protected PacketDispatcher(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the total amount of packets submitted to this dispatcher.
+     */
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    /**
+     * Get the total amount of packets whose callbacks completed.
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /**
+     * Get the amount of packets currently waiting
+     * for or running their callbacks, across all connections.
+     */
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Get the highest queue depth observed.
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Submit the callbacks of a received packet.
+     *
+     * @param handler The network handler which received the packet.
+     * @param task The task calling the callbacks.
+     */
+    final void submit(NetworkHandler handler, Runnable task) {
+        submitted.increment();
+        long depth = queueDepth.incrementAndGet();
+        long max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+
+        dispatch(handler, () -> {
+            try {
+                task.run();
+            } finally {
+                queueDepth.decrementAndGet();
+                completed.increment();
+            }
+        });
+    }
+
+    /**
+     * Run the given task as defined by this dispatcher.
+     *
+     * @param handler The network handler which received the packet.
+     * @param task The task.
+     */
+    abstract void dispatch(NetworkHandler handler, Runnable task);
+
+    @Override
+    public String toString() {
+        return "PacketDispatcher(" + name + ")";
+    }
+
+    /**
+     * A queue of tasks for one connection, which runs
+     * at most one task at a time on an executor.
+     */
+    static final class SerialQueue implements Runnable {
+        final Executor executor;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        SerialQueue(Executor executor) {
+            this.executor = executor;
+        }
+
+        void add(Runnable task) {
+            tasks.add(task);
+            // schedule a drain if the queue was idle
+            if (size.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        @Override
+        public void run() {
+            do {
+                Runnable task = tasks.poll();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            } while (size.decrementAndGet() != 0);
+        }
+    }
+
+}
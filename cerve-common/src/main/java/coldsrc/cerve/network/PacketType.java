@@ -1,5 +1,6 @@
 package coldsrc.cerve.network;
 
+import java.io.ByteArrayInputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
@@ -13,16 +14,17 @@ public class PacketType<T> {
     }
 
     public static PacketType<byte[]> byteArrayValue(String name) {
-        return new PacketType<>(name,
+        return new PacketType<byte[]>(name,
                 (stream -> {
                     byte[] b = new byte[stream.readInt()];
-                    stream.read(b);
+                    stream.readFully(b);
                     return b;
                 }),
                 ((stream, value) -> {
                     stream.writeInt(value.length);
                     stream.write(value);
-                }));
+                }))
+                .withBufferSerialization(PacketBuffer::readByteArray, PacketBuffer::writeByteArray);
     }
 
     public static PacketType<Void> noValue(String name) {
@@ -51,6 +53,21 @@ public class PacketType<T> {
      */
     private final ValueSerializer<T> serializer;
 
+    /**
+     * The binary frame deserializer, optional.
+     */
+    private BufferDeserializer<T> bufferDeserializer;
+
+    /**
+     * The binary frame serializer, optional.
+     */
+    private BufferSerializer<T> bufferSerializer;
+
+    /**
+     * If packets of this type may be dropped for slow consumers.
+     */
+    private volatile boolean droppable;
+
     public PacketType(String name, ValueDeserializer<T> deserializer, ValueSerializer<T> serializer) {
         this.name = name;
         this.id = name.hashCode();
@@ -74,6 +91,54 @@ public class PacketType<T> {
         return serializer;
     }
 
+    public BufferDeserializer<T> getBufferDeserializer() {
+        return bufferDeserializer;
+    }
+
+    public BufferSerializer<T> getBufferSerializer() {
+        return bufferSerializer;
+    }
+
+    /**
+     * Set the serializers used to read and write the value
+     * directly from and to packet frames. Packet types without
+     * them fall back to Java serialization inside the frame.
+     *
+     * @param deserializer The deserializer.
+     * @param serializer The serializer.
+     * @return This.
+     */
+    public PacketType<T> withBufferSerialization(BufferDeserializer<T> deserializer, BufferSerializer<T> serializer) {
+        this.bufferDeserializer = deserializer;
+        this.bufferSerializer   = serializer;
+        return this;
+    }
+
+    /**
+     * Mark packets of this type as droppable, they are not sent to
+     * slow consumers with {@link NetworkHandler.SlowConsumerPolicy#DROP}.
+     * Fits packets which are superseded by the next one of their type,
+     * like status updates.
+     *
+     * @return This.
+     */
+    public PacketType<T> withDroppable() {
+        this.droppable = true;
+        return this;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    /**
+     * Check if this packet type can be read and written
+     * without Java serialization.
+     */
+    public boolean hasBufferSerialization() {
+        return bufferSerializer != null || serializer == null;
+    }
+
     public T deserialize(ObjectInputStream stream) throws Exception {
         if (deserializer == null)
             return null;
@@ -85,4 +150,42 @@ public class PacketType<T> {
             serializer.serialize(stream, value);
     }
 
+    /**
+     * Read the value from the given frame buffer.
+     *
+     * @param buf The buffer.
+     * @return The value.
+     */
+    public T read(PacketBuffer buf) throws Exception {
+        if (bufferDeserializer != null)
+            return bufferDeserializer.deserialize(buf);
+        if (deserializer == null)
+            return null;
+
+        // fall back to java serialization for
+        // the rest of the frame
+        ObjectInputStream stream = new ObjectInputStream(
+                new ByteArrayInputStream(buf.array(), buf.readerIndex(), buf.readableBytes()));
+        T value = deserializer.deserialize(stream);
+        buf.readerIndex(buf.writerIndex());
+        return value;
+    }
+
+    /**
+     * Write the given value into the given frame buffer.
+     *
+     * @param buf The buffer.
+     * @param value The value.
+     */
+    public void write(PacketBuffer buf, T value) throws Exception {
+        if (bufferSerializer != null) {
+            bufferSerializer.serialize(buf, value);
+        } else if (serializer != null) {
+            // fall back to java serialization
+            ObjectOutputStream stream = new ObjectOutputStream(buf.asOutputStream());
+            serializer.serialize(stream, value);
+            stream.flush();
+        }
+    }
+
 }
@@ -0,0 +1,18 @@
+package coldsrc.cerve.network;
+
+import java.util.List;
+
+/**
+ * A group of packet types which are registered together, static
+ * fields of this type are picked up by {@link NetworkManager#registerAll(Class)}.
+ */
+public interface PacketTypeGroup {
+
+    /**
+     * Get the packet types to register for this group.
+     *
+     * @return The packet types.
+     */
+    List<PacketType<?>> getPacketTypes();
+
+}
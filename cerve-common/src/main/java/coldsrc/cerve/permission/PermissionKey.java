@@ -1,55 +1,28 @@
 package coldsrc.cerve.permission;
 
-import java.util.HashSet;
 import java.util.Set;
-import java.util.StringJoiner;
 
 public interface PermissionKey {
 
+    /**
+     * Get the permission with the given name. Keys are interned,
+     * so every call with the same name returns the same key.
+     *
+     * @param name The permission name.
+     * @return The key.
+     */
     static PermissionKey single(String name) {
-        return new PermissionKey() {
-            @Override
-            public Set<PermissionKey> unwrap() {
-                return Set.of(this);
-            }
-
-            @Override
-            public String toString() {
-                return "permission(" + name + ")";
-            }
-
-            @Override
-            public int hashCode() {
-                return name.hashCode();
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                if (obj == null) return false;
-                if (!(obj instanceof PermissionKey key)) return false;
-                return obj.hashCode() == this.hashCode();
-            }
-        };
+        return PermissionKeys.intern(name);
     }
 
+    /**
+     * Get a key covering all permissions covered by the given keys.
+     *
+     * @param keys The keys.
+     * @return The key.
+     */
     static PermissionKey all(final PermissionKey... keys) {
-        return new PermissionKey() {
-            @Override
-            public Set<PermissionKey> unwrap() {
-                Set<PermissionKey> set = new HashSet<>();
-                for (PermissionKey key : keys)
-                    set.addAll(key.unwrap());
-                return set;
-            }
-
-            @Override
-            public String toString() {
-                StringJoiner joiner = new StringJoiner(", ");
-                for (PermissionKey key : keys)
-                    joiner.add(key.toString());
-                return "permissions(" + joiner + ")";
-            }
-        };
+        return new PermissionKeys.Compound(keys);
     }
 
     /**
@@ -0,0 +1,194 @@
+package coldsrc.cerve.permission;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns single permission keys to dense ordinals and
+ * provides the bit masks permissions are compiled to.
+ *
+ * Bit masks are plain {@code long[]} words indexed by ordinal,
+ * they are shared and must never be modified once published.
+ */
+final class PermissionKeys {
+
+    private PermissionKeys() { }
+
+    // all interned keys by name
+    private static final ConcurrentHashMap<String, Single> keysByName = new ConcurrentHashMap<>();
+    // the next ordinal to assign
+    private static final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    /**
+     * Get or create the interned key with the given name.
+     */
+    static Single intern(String name) {
+        Single key = keysByName.get(name);
+        if (key != null)
+            return key;
+        return keysByName.computeIfAbsent(name, __ -> new Single(name, nextOrdinal.getAndIncrement()));
+    }
+
+    /**
+     * Get the bit mask of all permissions covered by the given key.
+     *
+     * @param key The key.
+     * @return The mask or null if the key covers permissions which were not interned.
+     */
+    static long[] maskOf(PermissionKey key) {
+        if (key instanceof Single single)
+            return single.mask;
+        if (key instanceof Compound compound)
+            return compound.mask;
+
+        // unknown implementation, compile on the fly
+        return compile(key.unwrap());
+    }
+
+    static long[] compile(Set<PermissionKey> keys) {
+        long[] mask = new long[0];
+        for (PermissionKey key : keys) {
+            if (!(key instanceof Single single))
+                return null;
+            mask = set(mask, single.ordinal);
+        }
+
+        return mask;
+    }
+
+    /*
+        Bit Operations
+     */
+
+    static long[] set(long[] bits, int ordinal) {
+        int word = ordinal >>> 6;
+        if (word >= bits.length)
+            bits = Arrays.copyOf(bits, word + 1);
+        bits[word] |= 1L << ordinal;
+        return bits;
+    }
+
+    static boolean get(long[] bits, int ordinal) {
+        int word = ordinal >>> 6;
+        return word < bits.length && (bits[word] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * Check if all bits of the mask are set in the bits.
+     */
+    static boolean containsAll(long[] bits, long[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            long word = i < bits.length ? bits[i] : 0;
+            if ((word & mask[i]) != mask[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if any bit of the mask is set in the bits.
+     */
+    static boolean intersects(long[] bits, long[] mask) {
+        int len = Math.min(bits.length, mask.length);
+        for (int i = 0; i < len; i++)
+            if ((bits[i] & mask[i]) != 0)
+                return true;
+        return false;
+    }
+
+    /*
+        Key Implementations
+     */
+
+    /**
+     * A single interned permission.
+     */
+    static final class Single implements PermissionKey {
+        final String name;
+        final int ordinal;
+        final long[] mask;
+        final Set<PermissionKey> unwrapped;
+
+        Single(String name, int ordinal) {
+            this.name = name;
+            this.ordinal = ordinal;
+            this.mask = set(new long[0], ordinal);
+            this.unwrapped = Set.of(this);
+        }
+
+        @Override
+        public Set<PermissionKey> unwrap() {
+            return unwrapped;
+        }
+
+        @Override
+        public boolean contains(PermissionKey permission) {
+            return permission == this;
+        }
+
+        @Override
+        public String toString() {
+            return "permission(" + name + ")";
+        }
+
+        // interned, so there is exactly one key per name
+        // and names with colliding hashes stay apart
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj == this;
+        }
+    }
+
+    /**
+     * A set of permissions, flattened once on creation.
+     */
+    static final class Compound implements PermissionKey {
+        final PermissionKey[] keys;
+        final Set<PermissionKey> unwrapped;
+        // null if any covered permission is not interned
+        final long[] mask;
+
+        Compound(PermissionKey[] keys) {
+            this.keys = keys.clone();
+
+            Set<PermissionKey> set = new HashSet<>();
+            for (PermissionKey key : keys)
+                set.addAll(key.unwrap());
+            this.unwrapped = Collections.unmodifiableSet(set);
+            this.mask = compile(set);
+        }
+
+        @Override
+        public Set<PermissionKey> unwrap() {
+            return unwrapped;
+        }
+
+        @Override
+        public boolean contains(PermissionKey permission) {
+            if (mask != null && permission instanceof Single single)
+                return get(mask, single.ordinal);
+            return unwrapped.contains(permission);
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ");
+            for (PermissionKey key : keys)
+                joiner.add(key.toString());
+            return "permissions(" + joiner + ")";
+        }
+    }
+
+}
@@ -1,23 +1,71 @@
 package coldsrc.cerve.permission;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Permissions set for users by name.
+ *
+ * Every time a permission is set, the permissions of the user are
+ * compiled into allow and deny bitsets indexed by the interned key
+ * ordinals, so checks are a few word operations without locking
+ * or allocation. Setting permissions is comparatively expensive.
+ */
 public class PermissionNamespace {
 
     /**
      * The set permissions for all users.
      */
-    private final Map<String, Map<PermissionKey, Permit>> permissionMap = new HashMap<>();
+    private final Map<String, UserPermissions> permissionMap = new ConcurrentHashMap<>();
+
+    // the set permissions of one user
+    static final class UserPermissions {
+        // the set permissions, guarded by this
+        final Map<PermissionKey, Permit> permits = new HashMap<>();
+        // the read only view of the permits
+        final Map<PermissionKey, Permit> view = Collections.unmodifiableMap(permits);
+
+        // the compiled permits, republished on every change
+        volatile Compiled compiled = Compiled.EMPTY;
+
+        synchronized void recompile() {
+            long[] allow = new long[0];
+            long[] deny = new long[0];
+            for (Map.Entry<PermissionKey, Permit> entry : permits.entrySet()) {
+                if (!(entry.getKey() instanceof PermissionKeys.Single single))
+                    continue;
+                if (entry.getValue() == Permit.ALLOW) allow = PermissionKeys.set(allow, single.ordinal);
+                else if (entry.getValue() == Permit.DENY) deny = PermissionKeys.set(deny, single.ordinal);
+            }
+
+            compiled = new Compiled(allow, deny);
+        }
+    }
+
+    // the compiled permits of a user, never modified once published
+    record Compiled(long[] allow, long[] deny) {
+        static final Compiled EMPTY = new Compiled(new long[0], new long[0]);
+    }
+
+    private UserPermissions getOrCreate(String user) {
+        UserPermissions permissions = permissionMap.get(user);
+        if (permissions != null)
+            return permissions;
+        return permissionMap.computeIfAbsent(user, __ -> new UserPermissions());
+    }
 
     /**
      * Get all set permissions for the given user.
      *
      * @param user The user name.
-     * @return The mutable permission map.
+     * @return The read only permission map, permissions are changed
+     *         through {@link #setPermission(String, PermissionKey, Permit)}.
      */
     public Map<PermissionKey, Permit> getSetPermissions(String user) {
-        return permissionMap.computeIfAbsent(user, __ -> new HashMap<>());
+        UserPermissions permissions = permissionMap.get(user);
+        return permissions != null ? permissions.view : Map.of();
     }
 
     /**
@@ -29,18 +77,21 @@ public class PermissionNamespace {
      * @param permit The value.
      */
     public void setPermission(String user, PermissionKey key, Permit permit) {
-        var map = getSetPermissions(user);
+        UserPermissions permissions = getOrCreate(user);
 
-        if (permit == Permit.UNSET) {
-            for (PermissionKey k : key.unwrap()) {
-                map.remove(k);
+        synchronized (permissions) {
+            var map = permissions.permits;
+            if (permit == Permit.UNSET) {
+                for (PermissionKey k : key.unwrap()) {
+                    map.remove(k);
+                }
+            } else {
+                for (PermissionKey k : key.unwrap()) {
+                    map.put(k, permit);
+                }
             }
 
-            return;
-        }
-
-        for (PermissionKey k : key.unwrap()) {
-            map.put(k, permit);
+            permissions.recompile();
         }
     }
 
@@ -50,13 +101,45 @@ public class PermissionNamespace {
 
     /**
      * Get the set value for the given permission for the given user.
+     * For keys covering multiple permissions, this is {@link Permit#DENY}
+     * if any of them is denied, {@link Permit#ALLOW} if all of them are
+     * allowed and {@link Permit#UNSET} otherwise.
      *
      * @param user The user name.
      * @param key The key.
      * @return The value.
      */
     public Permit getPermission(String user, PermissionKey key) {
-        return getSetPermissions(user).getOrDefault(key, Permit.UNSET);
+        UserPermissions permissions = permissionMap.get(user);
+        if (permissions == null)
+            return Permit.UNSET;
+
+        // fast path
+        Compiled compiled = permissions.compiled;
+        if (key instanceof PermissionKeys.Single single) {
+            if (PermissionKeys.get(compiled.deny(), single.ordinal)) return Permit.DENY;
+            if (PermissionKeys.get(compiled.allow(), single.ordinal)) return Permit.ALLOW;
+            return Permit.UNSET;
+        }
+
+        long[] mask = PermissionKeys.maskOf(key);
+        if (mask != null) {
+            if (PermissionKeys.intersects(compiled.deny(), mask)) return Permit.DENY;
+            if (PermissionKeys.containsAll(compiled.allow(), mask)) return Permit.ALLOW;
+            return Permit.UNSET;
+        }
+
+        // keys which were not interned
+        synchronized (permissions) {
+            boolean allowed = true;
+            for (PermissionKey k : key.unwrap()) {
+                Permit permit = permissions.permits.getOrDefault(k, Permit.UNSET);
+                if (permit == Permit.DENY) return Permit.DENY;
+                allowed &= permit == Permit.ALLOW;
+            }
+
+            return allowed ? Permit.ALLOW : Permit.UNSET;
+        }
     }
 
     public Permit getPermission(PermissionUser user, PermissionKey key) {
@@ -65,7 +148,8 @@ public class PermissionNamespace {
 
     /**
      * Check if the given user has the given permission.
-     * Defaults to false when unset.
+     * Defaults to false when unset. For keys covering multiple
+     * permissions, the user needs to be allowed all of them.
      *
      * @param user The user name.
      * @param key The key.
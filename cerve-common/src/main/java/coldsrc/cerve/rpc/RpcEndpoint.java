@@ -0,0 +1,287 @@
+package coldsrc.cerve.rpc;
+
+import coldsrc.cerve.network.NetworkHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls and serves {@link RpcMethod}s on one connection. Installs
+ * the protocol handlers for the RPC packets on the network handler.
+ *
+ * Every call gets a correlation ID and completes a future once the
+ * response of its method with that ID arrives, so any amount of calls
+ * can be in flight at once and responses may arrive in any order. Calls time
+ * out after the given time, and calls which time out or are cancelled
+ * are cancelled on the peer, which stops waiting for its handler.
+ * All calls fail once the connection is closed.
+ *
+ * Handlers are called on the dispatcher bound to the request packet
+ * type of their method, see {@link coldsrc.cerve.network.NetworkManager#bindDispatcher}.
+ * Only the messages of {@link RpcException}s thrown by handlers are sent
+ * to the caller, other failures are reported to
+ * {@link NetworkHandler#onPacketReadError()} and the caller gets a generic error.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class RpcEndpoint {
+
+    /**
+     * The default call timeout.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * The message sent for failures which are not {@link RpcException}s.
+     */
+    public static final String INTERNAL_ERROR = "internal error";
+
+    /**
+     * Handles requests of a method.
+     */
+    @FunctionalInterface
+    public interface Handler<Q, R> {
+        R handle(Q request) throws Exception;
+    }
+
+    /**
+     * Handles requests of a method asynchronously.
+     */
+    @FunctionalInterface
+    public interface AsyncHandler<Q, R> {
+        CompletableFuture<R> handle(Q request) throws Exception;
+    }
+
+    // a call waiting for the response of its method
+    record PendingCall(RpcMethod<?, ?> method, CompletableFuture future) { }
+
+    /* -------------------------------------- */
+
+    /**
+     * The network handler.
+     */
+    private final NetworkHandler networkHandler;
+
+    // the next correlation ID
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * The calls waiting for a response by correlation ID.
+     */
+    private final Map<Integer, PendingCall> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The calls of the peer being handled by correlation ID.
+     */
+    private final Map<Integer, CompletableFuture<?>> serving = new ConcurrentHashMap<>();
+
+    /**
+     * The methods response handlers are installed for.
+     */
+    private final Set<RpcMethod<?, ?>> calledMethods = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The timeout of calls without an explicit timeout.
+     */
+    private volatile long defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    public RpcEndpoint(NetworkHandler networkHandler) {
+        this.networkHandler = networkHandler;
+
+        networkHandler.setPacketHandler(RpcProtocol.RPC_ERROR, packet -> {
+            PendingCall call = pending.remove(packet.value().id());
+            if (call != null) call.future().completeExceptionally(new RpcException(packet.value().message()));
+        });
+
+        networkHandler.setPacketHandler(RpcProtocol.RPC_CANCEL, packet -> {
+            CompletableFuture<?> future = serving.remove(packet.value());
+            if (future != null) future.cancel(false);
+        });
+
+        networkHandler.addDisconnectHandler(reason -> close(new IOException("connection closed: " + reason)));
+    }
+
+    public NetworkHandler getNetworkHandler() {
+        return networkHandler;
+    }
+
+    /**
+     * Set the timeout of calls without an explicit timeout.
+     *
+     * @param timeout The timeout.
+     * @param unit The unit of the timeout.
+     * @return This.
+     */
+    public RpcEndpoint withDefaultTimeout(long timeout, TimeUnit unit) {
+        this.defaultTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Get the amount of calls waiting for a response.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Call a method on the peer with the default timeout.
+     *
+     * @param method The method.
+     * @param request The request.
+     * @return The future completed with the response.
+     */
+    public <Q, R> CompletableFuture<R> call(RpcMethod<Q, R> method, Q request) {
+        return call(method, request, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Call a method on the peer.
+     *
+     * @param method The method.
+     * @param request The request.
+     * @param timeout The timeout, after which the future fails with a {@link java.util.concurrent.TimeoutException}.
+     * @param unit The unit of the timeout.
+     * @return The future completed with the response, cancelling it cancels the call.
+     */
+    public <Q, R> CompletableFuture<R> call(RpcMethod<Q, R> method, Q request, long timeout, TimeUnit unit) {
+        if (calledMethods.add(method)) {
+            networkHandler.setPacketHandler(method.getResponseType(), packet -> {
+                // a response of another method must not
+                // complete the call with a value of the wrong type
+                int id = packet.value().id();
+                PendingCall call = pending.get(id);
+                if (call != null && call.method() == method && pending.remove(id, call))
+                    call.future().complete(packet.value().value());
+            });
+        }
+
+        int id = nextId.getAndIncrement();
+        CompletableFuture<R> future = new CompletableFuture<>();
+        pending.put(id, new PendingCall(method, future));
+
+        // still pending when completed means it timed
+        // out or was cancelled here, tell the peer
+        future.orTimeout(timeout, unit).whenComplete((response, t) -> {
+            if (pending.remove(id) != null && networkHandler.isNetworkHandlerRunning())
+                trySend(() -> networkHandler.send(RpcProtocol.RPC_CANCEL, id));
+        });
+
+        try {
+            networkHandler.send(method.getRequestType(), new RpcMethod.Call<>(id, request));
+        } catch (Exception e) {
+            pending.remove(id);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Serve a method, replacing any handler of it.
+     *
+     * @param method The method.
+     * @param handler The handler, the messages of {@link RpcException}s are sent to the caller.
+     */
+    public <Q, R> void serve(RpcMethod<Q, R> method, Handler<Q, R> handler) {
+        serveAsync(method, request -> CompletableFuture.completedFuture(handler.handle(request)));
+    }
+
+    /**
+     * Serve a method, replacing any handler of it.
+     *
+     * @param method The method.
+     * @param handler The handler, the response is sent once the returned
+     *                future completes, which is cancelled if the caller cancels.
+     */
+    public <Q, R> void serveAsync(RpcMethod<Q, R> method, AsyncHandler<Q, R> handler) {
+        networkHandler.setPacketHandler(method.getRequestType(), packet -> {
+            int id = packet.value().id();
+
+            // an ID still in flight would make the
+            // calls indistinguishable, reject the second
+            CompletableFuture<R> future = new CompletableFuture<>();
+            if (serving.putIfAbsent(id, future) != null) {
+                trySend(() -> networkHandler.send(RpcProtocol.RPC_ERROR, new RpcProtocol.RpcError(id, "duplicate call ID")));
+                return;
+            }
+
+            CompletableFuture<R> result;
+            try {
+                result = handler.handle(packet.value().value());
+            } catch (Exception e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+
+            final CompletableFuture<R> handling = result;
+            handling.whenComplete((response, t) -> {
+                if (t == null) future.complete(response);
+                else future.completeExceptionally(t);
+            });
+
+            future.whenComplete((response, t) -> {
+                // cancelled by the caller
+                if (!serving.remove(id, future)) {
+                    handling.cancel(false);
+                    return;
+                }
+
+                if (t == null) {
+                    trySend(() -> networkHandler.send(method.getResponseType(), new RpcMethod.Call<>(id, response)));
+                } else {
+                    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                    String message;
+                    if (cause instanceof RpcException && cause.getMessage() != null) {
+                        message = cause.getMessage();
+                    } else {
+                        message = INTERNAL_ERROR;
+                        networkHandler.onPacketReadError().call(cause);
+                    }
+
+                    trySend(() -> networkHandler.send(RpcProtocol.RPC_ERROR, new RpcProtocol.RpcError(id, message)));
+                }
+            });
+        });
+    }
+
+    /**
+     * Stop serving a method.
+     *
+     * @param method The method.
+     */
+    public void stopServing(RpcMethod<?, ?> method) {
+        networkHandler.setPacketHandler(method.getRequestType(), null);
+    }
+
+    /**
+     * Fail all pending calls and cancel all calls being served.
+     *
+     * @param cause The failure.
+     */
+    public void close(Throwable cause) {
+        for (Integer id : pending.keySet()) {
+            PendingCall call = pending.remove(id);
+            if (call != null) call.future().completeExceptionally(cause);
+        }
+
+        for (Integer id : serving.keySet()) {
+            CompletableFuture<?> future = serving.remove(id);
+            if (future != null) future.cancel(false);
+        }
+    }
+
+    // the connection may close at any time
+    private void trySend(Runnable send) {
+        try {
+            send.run();
+        } catch (Exception e) {
+            // the calls are failed on disconnect
+        }
+    }
+
+}
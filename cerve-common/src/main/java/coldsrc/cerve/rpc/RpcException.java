@@ -0,0 +1,15 @@
+package coldsrc.cerve.rpc;
+
+/**
+ * Fails a call which the remote handler failed. Handlers throw
+ * it to fail a call with a message meant for the caller.
+ */
+public class RpcException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RpcException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,97 @@
+package coldsrc.cerve.rpc;
+
+import coldsrc.cerve.network.PacketType;
+import coldsrc.cerve.network.PacketTypeGroup;
+
+import java.util.List;
+
+/**
+ * A typed remote procedure, called through an {@link RpcEndpoint}.
+ *
+ * A method is carried by two packet types, one for requests and one
+ * for responses, whose values are prefixed with the correlation ID
+ * of the call. The given value packet types only provide the
+ * serialization of the request and response values. Methods declared
+ * as static fields are registered by {@link coldsrc.cerve.network.NetworkManager#registerAll(Class)}.
+ *
+ * @param <Q> The request type.
+ * @param <R> The response type.
+ */
+public final class RpcMethod<Q, R> implements PacketTypeGroup {
+
+    /**
+     * A request or response value with the correlation ID of its call.
+     *
+     * @param id The correlation ID.
+     * @param value The value.
+     */
+    public record Call<T>(int id, T value) { }
+
+    /**
+     * The name of the method.
+     */
+    private final String name;
+
+    // the packet types carrying calls
+    private final PacketType<Call<Q>> requestType;
+    private final PacketType<Call<R>> responseType;
+
+    /**
+     * Create a new method.
+     *
+     * @param name The name, unique among all methods and packet types.
+     * @param request The serialization of the request values.
+     * @param response The serialization of the response values.
+     */
+    public RpcMethod(String name, PacketType<Q> request, PacketType<R> response) {
+        this.name = name;
+        this.requestType = callType(name + "_request", request);
+        this.responseType = callType(name + "_response", response);
+    }
+
+    private static <T> PacketType<Call<T>> callType(String name, PacketType<T> value) {
+        // the ID is written first, as java serialization
+        // of the value consumes the rest of the frame
+        return new PacketType<Call<T>>(
+                name,
+                stream -> new Call<>(stream.readInt(), value.deserialize(stream)),
+                (stream, call) -> {
+                    stream.writeInt(call.id());
+                    value.serialize(stream, call.value());
+                }
+        ).withBufferSerialization(
+                buf -> new Call<>(buf.readVarInt(), value.read(buf)),
+                (buf, call) -> {
+                    buf.writeVarInt(call.id());
+                    value.write(buf, call.value());
+                }
+        );
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PacketType<Call<Q>> getRequestType() {
+        return requestType;
+    }
+
+    public PacketType<Call<R>> getResponseType() {
+        return responseType;
+    }
+
+    /**
+     * Get the packet types to register for this method,
+     * including the {@link RpcProtocol} packets shared by all.
+     */
+    @Override
+    public List<PacketType<?>> getPacketTypes() {
+        return List.of(requestType, responseType, RpcProtocol.RPC_ERROR, RpcProtocol.RPC_CANCEL);
+    }
+
+    @Override
+    public String toString() {
+        return "RpcMethod(" + name + ")";
+    }
+
+}
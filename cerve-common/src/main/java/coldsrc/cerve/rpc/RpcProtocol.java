@@ -0,0 +1,46 @@
+package coldsrc.cerve.rpc;
+
+import coldsrc.cerve.network.PacketType;
+
+/**
+ * Protocol specification for the packets shared by all
+ * {@link RpcMethod}s, registered along with every method.
+ */
+public class RpcProtocol {
+
+    /**
+     * The failure of a call.
+     *
+     * @param id The correlation ID.
+     * @param message The error message.
+     */
+    public record RpcError(int id, String message) { }
+
+    /**
+     * Both ways: Fails a call instead of a response.
+     */
+    public static final PacketType<RpcError> RPC_ERROR = new PacketType<RpcError>(
+            "rpc_error",
+            stream -> new RpcError(stream.readInt(), stream.readUTF()),
+            (stream, value) -> {
+                stream.writeInt(value.id());
+                stream.writeUTF(value.message());
+            }
+    ).withBufferSerialization(
+            buf -> new RpcError(buf.readVarInt(), buf.readUTF()),
+            (buf, value) -> buf.writeVarInt(value.id()).writeUTF(value.message())
+    );
+
+    /**
+     * Both ways: Cancels a call the caller is not waiting for anymore.
+     */
+    public static final PacketType<Integer> RPC_CANCEL = new PacketType<Integer>(
+            "rpc_cancel",
+            stream -> stream.readInt(),
+            (stream, value) -> stream.writeInt(value)
+    ).withBufferSerialization(
+            buf -> buf.readVarInt(),
+            (buf, value) -> buf.writeVarInt(value)
+    );
+
+}
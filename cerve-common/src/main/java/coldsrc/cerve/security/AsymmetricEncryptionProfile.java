@@ -1,12 +1,30 @@
 package coldsrc.cerve.security;
 
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Objects;
 
 public class AsymmetricEncryptionProfile extends EncryptionProfile {
 
+    /**
+     * Check if keys of the given algorithm are used for key
+     * agreement (ECDH, X25519) rather than encryption.
+     */
+    public static boolean isKeyAgreementAlgorithm(String keyAlgorithm) {
+        return switch (keyAlgorithm) {
+            case "X25519", "X448", "XDH", "EC" -> true;
+            default -> false;
+        };
+    }
+
+    // the salt of the session key derivation
+    private static final byte[] KEY_DERIVATION_SALT = "cerve key agreement".getBytes(StandardCharsets.UTF_8);
+
     public static KeyFactory getKeyFactorySafe(String name) {
         try {
             return KeyFactory.getInstance(name);
@@ -29,8 +47,8 @@ public class AsymmetricEncryptionProfile extends EncryptionProfile {
     public static final int PADDED_BLOCK_SIZE   = 128;
 
     // the key pair
-    private PublicKey  publicKey;
-    private PrivateKey privateKey;
+    private volatile PublicKey  publicKey;
+    private volatile PrivateKey privateKey;
 
     // the key algorithm
     private String     keyAlgorithm;
@@ -52,6 +70,21 @@ public class AsymmetricEncryptionProfile extends EncryptionProfile {
         this.keyLength = keyLength;
     }
 
+    /**
+     * Create a profile for key agreement, which has no cipher,
+     * see {@link #agree(PrivateKey, PublicKey, byte[], String, int)}.
+     *
+     * @param keyAlgorithm The key agreement algorithm, like X25519.
+     * @param keyLength The key length.
+     */
+    public AsymmetricEncryptionProfile(String keyAlgorithm, int keyLength) {
+        super(CipherType.ASYMMETRIC, 0, 0);
+        if (!isKeyAgreementAlgorithm(keyAlgorithm))
+            throw new IllegalArgumentException(keyAlgorithm + " is not a key agreement algorithm");
+        withKeyAlgorithm(keyAlgorithm);
+        this.keyLength = keyLength;
+    }
+
     public int getKeyLength() {
         return keyLength;
     }
@@ -126,6 +159,57 @@ public class AsymmetricEncryptionProfile extends EncryptionProfile {
         return generateKeys(keyLength);
     }
 
+    /**
+     * Check if this profile agrees on keys instead of encrypting.
+     */
+    public boolean isKeyAgreement() {
+        return keyAlgorithm != null && isKeyAgreementAlgorithm(keyAlgorithm);
+    }
+
+    /**
+     * Generate a new key pair without changing the keys of this
+     * profile, for example an ephemeral key pair for one handshake.
+     *
+     * @return The key pair.
+     */
+    public KeyPair generateKeyPair() {
+        KeyPairGenerator gen = getKeyPairGeneratorSafe(keyAlgorithm);
+        if (gen == null)
+            throw new IllegalStateException("no key pair generator for " + keyAlgorithm);
+        gen.initialize(keyLength);
+        return gen.generateKeyPair();
+    }
+
+    /**
+     * Agree on a secret key with a peer. The shared secret of the key
+     * agreement is not used directly, the key is derived from it and the given
+     * context with {@link KeyDerivation}, so both ends have to pass the same
+     * context, like the public keys of both in a fixed order.
+     *
+     * @param privateKey The private key of this end.
+     * @param peerKey The public key of the peer.
+     * @param context The context bound into the derived key.
+     * @param secretAlgorithm The algorithm of the derived key.
+     * @param secretLength The length of the derived key in bytes.
+     * @return The derived key.
+     */
+    public SecretKey agree(PrivateKey privateKey, PublicKey peerKey, byte[] context,
+                           String secretAlgorithm, int secretLength) throws GeneralSecurityException {
+        if (!isKeyAgreement())
+            throw new IllegalStateException(keyAlgorithm + " is not a key agreement algorithm");
+
+        KeyAgreement agreement = KeyAgreement.getInstance("EC".equals(keyAlgorithm) ? "ECDH" : keyAlgorithm);
+        agreement.init(privateKey);
+        agreement.doPhase(peerKey, true);
+        byte[] shared = agreement.generateSecret();
+
+        try {
+            return KeyDerivation.hkdf(KEY_DERIVATION_SALT, shared, context, secretAlgorithm, secretLength);
+        } finally {
+            Arrays.fill(shared, (byte) 0);
+        }
+    }
+
     @Override
     public Key getEncryptionKey() {
         return publicKey;
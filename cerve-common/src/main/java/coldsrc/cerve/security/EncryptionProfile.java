@@ -1,11 +1,15 @@
 package coldsrc.cerve.security;
 
+import coldsrc.cerve.buffer.BufferPool;
+
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.function.Supplier;
 
@@ -13,6 +17,9 @@ import java.util.function.Supplier;
  * General utility encryption handler, replacement
  * for the old LegacyEncryptionProfile, which was
  * horribly coded.
+ *
+ * Profiles are thread safe: the keys are shared, but every thread
+ * encrypts with its own cipher instance (see {@link #context()}).
  */
 @SuppressWarnings("rawtypes")
 public abstract class EncryptionProfile {
@@ -26,6 +33,10 @@ public abstract class EncryptionProfile {
 
         @Override public byte[] encrypt(byte[] bytes) { return bytes; }
         @Override public byte[] decrypt(byte[] bytes) { return bytes; }
+        @Override public byte[] encrypt(byte[] bytes, int off, int len) { return Arrays.copyOfRange(bytes, off, off + len); }
+        @Override public byte[] decrypt(byte[] bytes, int off, int len) { return Arrays.copyOfRange(bytes, off, off + len); }
+        @Override public int encrypt(byte[] in, int off, int len, byte[] out, int outOff) { System.arraycopy(in, off, out, outOff, len); return len; }
+        @Override public int decrypt(byte[] in, int off, int len, byte[] out, int outOff) { System.arraycopy(in, off, out, outOff, len); return len; }
     };
 
     public static Cipher getCipherSafe(String name) {
@@ -67,8 +78,14 @@ public abstract class EncryptionProfile {
     protected String mode;
     protected String padding;
 
-    // the instances
-    protected Cipher cipher;
+    // the cipher transformation and provider, shared by all contexts
+    protected volatile String transformation;
+    protected volatile Provider provider;
+
+    // the cipher context of every thread using this profile, cipher
+    // instances are not thread safe so they can not be shared, the
+    // contexts do not reference the profile so it can be collected
+    private final ThreadLocal<CipherContext> threadContext = new ThreadLocal<>();
 
     public EncryptionProfile(CipherType type, int unpaddedBlockSize, int paddedBlockSize) {
         this.cipherType = type;
@@ -88,6 +105,14 @@ public abstract class EncryptionProfile {
         return cipherType;
     }
 
+    public int getUnpaddedBlockSize() {
+        return unpaddedBlockSize;
+    }
+
+    public int getPaddedBlockSize() {
+        return paddedBlockSize;
+    }
+
     public String getAlgorithm() {
         return algorithm;
     }
@@ -100,8 +125,18 @@ public abstract class EncryptionProfile {
         return padding;
     }
 
+    public String getTransformation() {
+        return transformation;
+    }
+
+    /**
+     * Get the cipher instance of the calling thread.
+     *
+     * @return The cipher or null if no cipher is configured.
+     */
     public Cipher getCipher() {
-        return cipher;
+        CipherContext context = context();
+        return context != null ? context.cipher : null;
     }
 
     /*
@@ -112,8 +147,10 @@ public abstract class EncryptionProfile {
         // set properties
         this.algorithm = cipher.getAlgorithm();
 
-        // set cipher
-        this.cipher = cipher;
+        // only the transformation is kept, every
+        // thread creates its own instance from it
+        this.provider = cipher.getProvider();
+        this.transformation = cipher.getAlgorithm();
 
         // return
         return this;
@@ -125,8 +162,12 @@ public abstract class EncryptionProfile {
         this.mode      = mode;
         this.padding   = padding;
 
+        // validate the transformation, every thread
+        // creates its own instance from it
+        String transformation = algorithm + "/" + mode + "/" + padding;
         try {
-            cipher = Cipher.getInstance(algorithm + "/" + mode + "/" + padding);
+            this.provider = Cipher.getInstance(transformation).getProvider();
+            this.transformation = transformation;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -162,27 +203,39 @@ public abstract class EncryptionProfile {
      */
 
     public byte[] encrypt(byte[] bytes) {
-        if (cipher == null)
-            throw new IllegalStateException();
-        try {
-            cipher.init(Cipher.ENCRYPT_MODE, getEncryptionKey());
-            return cipher.doFinal(bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return encrypt(bytes, 0, bytes.length);
     }
 
     public byte[] decrypt(byte[] bytes) {
-        if (cipher == null)
-            throw new IllegalStateException();
-        try {
-            cipher.init(Cipher.DECRYPT_MODE, getDecryptionKey());
-            return cipher.doFinal(bytes);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return decrypt(bytes, 0, bytes.length);
+    }
+
+    public byte[] encrypt(byte[] bytes, int off, int len) {
+        return requireContext().encrypt(bytes, off, len);
+    }
+
+    public byte[] decrypt(byte[] bytes, int off, int len) {
+        return requireContext().decrypt(bytes, off, len);
+    }
+
+    /**
+     * Encrypt the given region into the given output array
+     * without allocating a result array.
+     *
+     * @return The amount of bytes written to the output, or -1 on failure.
+     */
+    public int encrypt(byte[] in, int off, int len, byte[] out, int outOff) {
+        return requireContext().encrypt(in, off, len, out, outOff);
+    }
+
+    /**
+     * Decrypt the given region into the given output array
+     * without allocating a result array.
+     *
+     * @return The amount of bytes written to the output, or -1 on failure.
+     */
+    public int decrypt(byte[] in, int off, int len, byte[] out, int outOff) {
+        return requireContext().decrypt(in, off, len, out, outOff);
     }
 
     public byte[] encryptUTF(String str) {
@@ -201,6 +254,126 @@ public abstract class EncryptionProfile {
         return decrypt(fromBase64(str));
     }
 
+    /*
+        Cipher Contexts
+     */
+
+    /**
+     * Create a new cipher context with its own cipher instance,
+     * using the current keys of this profile. Useful to give every
+     * connection its own context instead of relying on the
+     * per thread context, for example on virtual threads.
+     *
+     * @return The context or null if no cipher is configured.
+     */
+    public CipherContext newContext() {
+        String transformation = this.transformation;
+        if (transformation == null)
+            return null;
+
+        try {
+            Provider provider = this.provider;
+            Cipher cipher = provider != null ?
+                    Cipher.getInstance(transformation, provider) :
+                    Cipher.getInstance(transformation);
+            return new CipherContext(transformation, cipher, getEncryptionKey(), getDecryptionKey());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Get the cipher context of the calling thread,
+     * creating it if needed.
+     *
+     * @return The context or null if no cipher is configured.
+     */
+    public CipherContext context() {
+        CipherContext context = threadContext.get();
+        // recreate if the cipher or the keys were reconfigured
+        if (context == null || context.transformation != transformation ||
+                context.encryptionKey != getEncryptionKey() || context.decryptionKey != getDecryptionKey()) {
+            context = newContext();
+            threadContext.set(context);
+        }
+
+        return context;
+    }
+
+    private CipherContext requireContext() {
+        CipherContext context = context();
+        if (context == null)
+            throw new IllegalStateException();
+        return context;
+    }
+
+    /**
+     * A cipher instance with the keys of a profile at the time it was
+     * created. Not thread safe, a context must only be used by one
+     * thread at a time.
+     */
+    public static class CipherContext {
+        // the transformation this context was created for
+        final String transformation;
+        // the cipher instance
+        final Cipher cipher;
+        // the keys
+        final Key encryptionKey;
+        final Key decryptionKey;
+
+        CipherContext(String transformation, Cipher cipher, Key encryptionKey, Key decryptionKey) {
+            this.transformation = transformation;
+            this.cipher = cipher;
+            this.encryptionKey = encryptionKey;
+            this.decryptionKey = decryptionKey;
+        }
+
+        public Cipher getCipher() {
+            return cipher;
+        }
+
+        public byte[] encrypt(byte[] bytes, int off, int len) {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
+                return cipher.doFinal(bytes, off, len);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        public byte[] decrypt(byte[] bytes, int off, int len) {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, decryptionKey);
+                return cipher.doFinal(bytes, off, len);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        public int encrypt(byte[] in, int off, int len, byte[] out, int outOff) {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, encryptionKey);
+                return cipher.doFinal(in, off, len, out, outOff);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+
+        public int decrypt(byte[] in, int off, int len, byte[] out, int outOff) {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, decryptionKey);
+                return cipher.doFinal(in, off, len, out, outOff);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+    }
+
     /*
         Large Data Encryption and Decryption
      */
@@ -232,11 +405,17 @@ public abstract class EncryptionProfile {
             return this;
         }
 
-        // the encrypted data buffer
-        byte[] buf = new byte[blockSize];
+        // the plain data buffer, pooled and reused for every block
+        byte[] buf = BufferPool.DEFAULT.acquireArray(blockSize);
+        // the encrypted output buffer, reused for every block
+        byte[] out = BufferPool.DEFAULT.acquireArray(paddedBlockSize);
         // the index in the buffer to read to
         int bi = 0;
 
+        {
+            Arrays.fill(buf, 0, blockSize, (byte) 0);
+        }
+
         @Override
         public void write(int b) throws IOException {
             // put byte
@@ -245,11 +424,11 @@ public abstract class EncryptionProfile {
 
             // flush and write encrypted if
             // the buffer is full
-            if (bi >= buf.length) {
+            if (bi >= blockSize) {
                 flush();
 
-                // allocate new empty buffer
-                buf = new byte[blockSize];
+                // clear the buffer for reuse
+                Arrays.fill(buf, 0, blockSize, (byte) 0);
                 // reset buffer index
                 bi = 0;
             }
@@ -259,13 +438,23 @@ public abstract class EncryptionProfile {
         public void flush() throws IOException {
             if (encryptCheck == null || encryptCheck.get()) {
                 // encrypt and write buffer
-                byte[] encrypted = encrypt(buf);
-                stream.write(encrypted);
+                int len = encrypt(buf, 0, blockSize, out, 0);
+                if (len < 0)
+                    throw new IOException("failed to encrypt block");
+                stream.write(out, 0, len);
             } else {
-                stream.write(buf);
+                stream.write(buf, 0, blockSize);
             }
         }
 
+        @Override
+        public void close() throws IOException {
+            stream.close();
+            BufferPool.DEFAULT.releaseArray(buf);
+            BufferPool.DEFAULT.releaseArray(out);
+            buf = out = null;
+        }
+
         public DataOutputStream toDataStream() {
             return new DataOutputStream(this);
         }
@@ -289,8 +478,12 @@ public abstract class EncryptionProfile {
             this.stream = stream;
         }
 
-        // the decrypted data buffer
-        byte[] buf = new byte[blockSize];
+        // the encrypted block buffer, pooled and reused for every block
+        byte[] in = BufferPool.DEFAULT.acquireArray(blockSize);
+        // the decrypted data buffer, pooled and reused for every block
+        byte[] buf = BufferPool.DEFAULT.acquireArray(blockSize);
+        // the amount of valid bytes in the buffer
+        int available = 0;
         // the amount of indices read from the buffer
         int used = 0;
 
@@ -308,19 +501,34 @@ public abstract class EncryptionProfile {
         @Override
         public int read() throws IOException {
             // decrypt next block if used
-            if (used == 0 || used >= buf.length) {
+            if (used >= available) {
                 // read next encrypted block
-                byte[] encrypted = stream.readNBytes(blockSize);
+                int read = stream.readNBytes(in, 0, blockSize);
+                if (read < blockSize)
+                    return -1;
                 // decrypt and put in buffer
-                if (encryptCheck == null || encryptCheck.get()) buf = decrypt(encrypted);
-                else buf = encrypted;
+                if (encryptCheck == null || encryptCheck.get()) {
+                    available = decrypt(in, 0, blockSize, buf, 0);
+                    if (available < 0)
+                        throw new IOException("failed to decrypt block");
+                } else {
+                    System.arraycopy(in, 0, buf, 0, blockSize);
+                    available = blockSize;
+                }
+
+                used = 0;
             }
 
             // read decrypted byte
-            byte by = buf[used++];
+            return buf[used++] & 0xFF;
+        }
 
-            // return
-            return by;
+        @Override
+        public void close() throws IOException {
+            stream.close();
+            BufferPool.DEFAULT.releaseArray(in);
+            BufferPool.DEFAULT.releaseArray(buf);
+            in = buf = null;
         }
 
         public DataInputStream toDataStream() {
@@ -0,0 +1,51 @@
+package coldsrc.cerve.security;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Derives keys from shared secrets with HKDF-SHA256 (RFC 5869).
+ */
+public final class KeyDerivation {
+
+    /**
+     * The largest key which can be derived, one block of the expansion.
+     */
+    public static final int MAX_KEY_LENGTH = 32;
+
+    private KeyDerivation() { }
+
+    /**
+     * Derive a key from the given secret.
+     *
+     * @param salt The salt, a protocol constant or random value.
+     * @param secret The input secret.
+     * @param info The context bound into the key, both ends have to pass the same.
+     * @param algorithm The algorithm of the derived key.
+     * @param length The length of the derived key in bytes, at most {@link #MAX_KEY_LENGTH}.
+     * @return The derived key.
+     */
+    public static SecretKey hkdf(byte[] salt, byte[] secret, byte[] info,
+                                 String algorithm, int length) throws GeneralSecurityException {
+        if (length <= 0 || length > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("key length must be between 1 and " + MAX_KEY_LENGTH);
+
+        // extract and a single expand block
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update(info);
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        Arrays.fill(prk, (byte) 0);
+
+        SecretKey key = new SecretKeySpec(okm, 0, length, algorithm);
+        Arrays.fill(okm, (byte) 0);
+        return key;
+    }
+
+}
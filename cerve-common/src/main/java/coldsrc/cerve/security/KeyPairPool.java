@@ -0,0 +1,132 @@
+package coldsrc.cerve.security;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of key pairs generated ahead of time on a background
+ * thread, so handshakes only pay for the key agreement itself.
+ *
+ * Every key pair is handed out once, which keeps the keys of the
+ * handshakes ephemeral. If the pool runs dry during a burst of
+ * handshakes the key pair is generated on the calling thread.
+ */
+public class KeyPairPool implements AutoCloseable {
+
+    /**
+     * The default amount of key pairs kept ready.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * A snapshot of the pool counters.
+     *
+     * @param taken The amount of key pairs taken from the pool.
+     * @param missed The amount of key pairs generated on the calling thread.
+     * @param available The amount of key pairs ready.
+     */
+    public record Stats(long taken, long missed, int available) { }
+
+    /* -------------------------------------- */
+
+    // the profile generating the key pairs
+    private final AsymmetricEncryptionProfile profile;
+
+    // the ready key pairs
+    private final BlockingQueue<KeyPair> pool;
+
+    // the thread refilling the pool
+    private volatile Thread thread;
+
+    // the counters
+    final LongAdder taken  = new LongAdder();
+    final LongAdder missed = new LongAdder();
+
+    public KeyPairPool(AsymmetricEncryptionProfile profile) {
+        this(profile, DEFAULT_CAPACITY);
+    }
+
+    public KeyPairPool(AsymmetricEncryptionProfile profile, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.profile = profile;
+        this.pool = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public AsymmetricEncryptionProfile getProfile() {
+        return profile;
+    }
+
+    public Stats getStats() {
+        return new Stats(taken.sum(), missed.sum(), pool.size());
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Start the thread filling the pool, does
+     * nothing if it is already running.
+     *
+     * @return This.
+     */
+    public synchronized KeyPairPool start() {
+        if (thread != null)
+            return this;
+
+        Thread t = new Thread(this::refillLoop, "CerveKeyPairPool");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        thread = t;
+        t.start();
+        return this;
+    }
+
+    /**
+     * Stop the thread filling the pool and discard all ready key pairs.
+     */
+    @Override
+    public synchronized void close() {
+        Thread t = thread;
+        if (t == null)
+            return;
+        thread = null;
+        t.interrupt();
+        pool.clear();
+    }
+
+    /**
+     * Take a key pair, generating it on the calling thread if none is ready.
+     *
+     * @return The key pair, never handed out again.
+     */
+    public KeyPair take() {
+        KeyPair pair = pool.poll();
+        if (pair != null) {
+            taken.increment();
+            return pair;
+        }
+
+        missed.increment();
+        return profile.generateKeyPair();
+    }
+
+    private void refillLoop() {
+        Thread self = Thread.currentThread();
+        while (thread == self) {
+            try {
+                // blocks while the pool is full
+                pool.put(profile.generateKeyPair());
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package coldsrc.cerve.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts and authenticates whole frames of one connection with
+ * AES-GCM, replacing the block by block encryption of the
+ * {@link EncryptionProfile} streams on the frame path.
+ *
+ * The cipher instances are created once per connection. Every frame
+ * uses a fresh nonce made of a direction byte and a frame counter,
+ * so frames have to be decrypted in the order they were encrypted,
+ * which the transports guarantee. Frames are processed in place,
+ * an encrypted frame is {@link #TAG_LENGTH} bytes longer.
+ */
+public class SessionCipher {
+
+    /**
+     * The cipher transformation.
+     */
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The length of the authentication tag appended to every frame.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The length of the nonce.
+     */
+    public static final int NONCE_LENGTH = 12;
+
+    // direction bytes, so both peers never
+    // use the same nonce under the same key
+    static final byte CLIENT_TO_SERVER = 'C';
+    static final byte SERVER_TO_CLIENT = 'S';
+
+    /* -------------------------------------- */
+
+    // the session key
+    private final SecretKey key;
+
+    // the cipher per direction
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+
+    // the nonces per direction, the counter
+    // is stored in the last 8 bytes
+    private final byte[] encryptNonce = new byte[NONCE_LENGTH];
+    private final byte[] decryptNonce = new byte[NONCE_LENGTH];
+    private long encryptCounter;
+    private long decryptCounter;
+
+    /**
+     * Create a new session cipher.
+     *
+     * @param key The shared AES session key.
+     * @param clientSide If this is the client end of the connection.
+     */
+    public SessionCipher(SecretKey key, boolean clientSide) throws GeneralSecurityException {
+        this.key = key;
+        this.encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        this.decryptCipher = Cipher.getInstance(TRANSFORMATION);
+
+        encryptNonce[0] = clientSide ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+        decryptNonce[0] = clientSide ? SERVER_TO_CLIENT : CLIENT_TO_SERVER;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    // write the counter into the nonce
+    private static void setCounter(byte[] nonce, long counter) {
+        for (int i = NONCE_LENGTH - 1; i >= NONCE_LENGTH - 8; i--) {
+            nonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+    }
+
+    /**
+     * Encrypt the given frame in place, the array must have
+     * room for {@link #TAG_LENGTH} more bytes after the frame.
+     *
+     * @param buf The array.
+     * @param off The offset of the frame.
+     * @param len The length of the frame.
+     * @return The length of the encrypted frame.
+     */
+    public int encrypt(byte[] buf, int off, int len) throws GeneralSecurityException {
+        synchronized (encryptCipher) {
+            setCounter(encryptNonce, encryptCounter++);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, encryptNonce));
+            return encryptCipher.doFinal(buf, off, len, buf, off);
+        }
+    }
+
+    /**
+     * Decrypt and verify the given frame in place.
+     *
+     * @param buf The array.
+     * @param off The offset of the encrypted frame.
+     * @param len The length of the encrypted frame.
+     * @return The length of the decrypted frame.
+     * @throws GeneralSecurityException If the frame was tampered with or is out of order.
+     */
+    public int decrypt(byte[] buf, int off, int len) throws GeneralSecurityException {
+        synchronized (decryptCipher) {
+            setCounter(decryptNonce, decryptCounter++);
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, decryptNonce));
+            return decryptCipher.doFinal(buf, off, len, buf, off);
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package coldsrc.cerve.security;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A resumption ticket kept by a client, which lets it resume
+ * encryption on a new connection without a full handshake.
+ *
+ * @param ticket The ticket as issued by the server, opaque to the client.
+ * @param secret The resumption secret of the session the ticket was issued in.
+ */
+public record SessionTicket(byte[] ticket, SecretKey secret) { }
@@ -0,0 +1,274 @@
+package coldsrc.cerve.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Issues and opens the session resumption tickets of a server.
+ *
+ * After a handshake both ends derive a resumption secret from the session
+ * key. The server seals it into a ticket with a key only it knows and hands
+ * the ticket to the client, so it keeps no state per session. A reconnecting
+ * client sends the ticket back with a fresh random, the server opens it and
+ * both ends derive a new session key from the secret and the randoms of
+ * both, without any asymmetric crypto.
+ *
+ * The ticket key is rotated once per ticket lifetime, tickets sealed
+ * with the previous key are still accepted until they expire. Tickets
+ * issued in resumed sessions keep the expiry of the ticket resumed from,
+ * so a session can not be resumed past the lifetime of its full handshake.
+ */
+public class SessionTickets {
+
+    /**
+     * The default time a ticket can be used to resume.
+     */
+    public static final long DEFAULT_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /**
+     * The length of the randoms both ends contribute to a resumed session key.
+     */
+    public static final int RANDOM_LENGTH = 32;
+
+    // the ticket layout, the key id and nonce
+    // are followed by the sealed secret and expiry
+    static final int SECRET_LENGTH = StandardEncryption.AES_KEY_LENGTH / 8;
+    static final int HEADER_LENGTH = 4 + SessionCipher.NONCE_LENGTH;
+    static final int TICKET_LENGTH = HEADER_LENGTH + SECRET_LENGTH + 8 + SessionCipher.TAG_LENGTH;
+
+    // the salts of the key derivations
+    private static final byte[] RESUMPTION_SALT = "cerve resumption".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESUMED_KEY_SALT = "cerve resumed session".getBytes(StandardCharsets.UTF_8);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Derive the resumption secret of a session, on both ends.
+     *
+     * @param sessionKey The session key.
+     * @return The resumption secret.
+     */
+    public static SecretKey resumptionSecret(SecretKey sessionKey) throws GeneralSecurityException {
+        return KeyDerivation.hkdf(RESUMPTION_SALT, sessionKey.getEncoded(), new byte[0], "AES", SECRET_LENGTH);
+    }
+
+    /**
+     * Derive the session key of a resumed session, on both ends. The
+     * randoms make it fresh even if a ticket is used more than once.
+     *
+     * @param secret The resumption secret from the ticket.
+     * @param clientRandom The random of the client.
+     * @param serverRandom The random of the server.
+     * @return The session key.
+     */
+    public static SecretKey resumedSessionKey(SecretKey secret, byte[] clientRandom, byte[] serverRandom)
+            throws GeneralSecurityException {
+        byte[] info = new byte[clientRandom.length + serverRandom.length];
+        System.arraycopy(clientRandom, 0, info, 0, clientRandom.length);
+        System.arraycopy(serverRandom, 0, info, clientRandom.length, serverRandom.length);
+        return KeyDerivation.hkdf(RESUMED_KEY_SALT, secret.getEncoded(), info, "AES", SECRET_LENGTH);
+    }
+
+    /**
+     * Generate a random for a resumption.
+     *
+     * @return The random.
+     */
+    public static byte[] newRandom() {
+        byte[] random = new byte[RANDOM_LENGTH];
+        RANDOM.nextBytes(random);
+        return random;
+    }
+
+    /**
+     * A key tickets are sealed with.
+     */
+    record TicketKey(int id, SecretKey key, long createdAt) { }
+
+    /**
+     * A snapshot of the ticket counters.
+     *
+     * @param issued The amount of tickets issued.
+     * @param resumed The amount of tickets opened to resume.
+     * @param rejected The amount of tickets rejected as expired, unknown or invalid.
+     */
+    public record Stats(long issued, long resumed, long rejected) { }
+
+    /**
+     * An opened ticket.
+     *
+     * @param secret The resumption secret.
+     * @param expiresAt The time the ticket expires at, in epoch milliseconds.
+     */
+    public record Opened(SecretKey secret, long expiresAt) { }
+
+    /* -------------------------------------- */
+
+    // the ticket lifetime
+    private volatile long lifetimeMillis = DEFAULT_LIFETIME_MILLIS;
+
+    // the current and previous ticket key
+    private volatile TicketKey currentKey;
+    private volatile TicketKey previousKey;
+
+    // the counters
+    final LongAdder issued   = new LongAdder();
+    final LongAdder resumed  = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+
+    public SessionTickets() {
+        rotateKey();
+    }
+
+    /**
+     * Set the time a ticket can be used to resume, which is
+     * also the interval the ticket key is rotated in.
+     *
+     * @param lifetime The lifetime.
+     * @param unit The unit of the lifetime.
+     * @return This.
+     */
+    public SessionTickets withLifetime(long lifetime, TimeUnit unit) {
+        if (lifetime <= 0)
+            throw new IllegalArgumentException("lifetime must be positive");
+        this.lifetimeMillis = unit.toMillis(lifetime);
+        return this;
+    }
+
+    public long getLifetimeMillis() {
+        return lifetimeMillis;
+    }
+
+    public Stats getStats() {
+        return new Stats(issued.sum(), resumed.sum(), rejected.sum());
+    }
+
+    /**
+     * Replace the ticket key, tickets sealed with the
+     * previous key are still accepted until they expire.
+     */
+    public synchronized void rotateKey() {
+        KeyGenerator generator = SymmetricEncryptionProfile.getKeyGeneratorSafe("AES");
+        if (generator == null)
+            throw new IllegalStateException("no key generator for AES");
+        generator.init(StandardEncryption.AES_KEY_LENGTH);
+
+        TicketKey current = currentKey;
+        previousKey = current;
+        currentKey = new TicketKey(current != null ? current.id() + 1 : RANDOM.nextInt(),
+                generator.generateKey(), System.currentTimeMillis());
+    }
+
+    /**
+     * Issue a ticket for the given resumption secret,
+     * expiring after the ticket lifetime.
+     *
+     * @param secret The resumption secret.
+     * @return The ticket.
+     */
+    public byte[] issue(SecretKey secret) throws GeneralSecurityException {
+        return issue(secret, Long.MAX_VALUE);
+    }
+
+    /**
+     * Issue a ticket for the given resumption secret, expiring at the
+     * given time or after the ticket lifetime, whichever comes first.
+     * Used in resumed sessions with the expiry of the ticket resumed from.
+     *
+     * @param secret The resumption secret.
+     * @param expiresAt The latest expiry, in epoch milliseconds.
+     * @return The ticket.
+     */
+    public byte[] issue(SecretKey secret, long expiresAt) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        long lifetime = lifetimeMillis;
+
+        TicketKey key = currentKey;
+        if (now - key.createdAt() >= lifetime) {
+            synchronized (this) {
+                if (currentKey == key)
+                    rotateKey();
+                key = currentKey;
+            }
+        }
+
+        ByteBuffer ticket = ByteBuffer.allocate(TICKET_LENGTH);
+        byte[] nonce = new byte[SessionCipher.NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        ticket.putInt(key.id()).put(nonce);
+
+        byte[] sealed = ByteBuffer.allocate(SECRET_LENGTH + 8)
+                .put(secret.getEncoded())
+                .putLong(Math.min(expiresAt, now + lifetime))
+                .array();
+
+        Cipher cipher = Cipher.getInstance(SessionCipher.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key.key(), new GCMParameterSpec(SessionCipher.TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(ticket.array(), 0, HEADER_LENGTH);
+        cipher.doFinal(ByteBuffer.wrap(sealed), ticket);
+        Arrays.fill(sealed, (byte) 0);
+
+        issued.increment();
+        return ticket.array();
+    }
+
+    /**
+     * Open the given ticket.
+     *
+     * @param ticket The ticket sent by the client.
+     * @return The opened ticket, or null if the ticket is expired, unknown or invalid.
+     */
+    public Opened open(byte[] ticket) {
+        if (ticket == null || ticket.length != TICKET_LENGTH) {
+            rejected.increment();
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(ticket);
+        int id = buf.getInt();
+        TicketKey key = currentKey;
+        if (key.id() != id) {
+            key = previousKey;
+            if (key == null || key.id() != id) {
+                rejected.increment();
+                return null;
+            }
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance(SessionCipher.TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key.key(), new GCMParameterSpec(SessionCipher.TAG_LENGTH * 8,
+                    ticket, 4, SessionCipher.NONCE_LENGTH));
+            cipher.updateAAD(ticket, 0, HEADER_LENGTH);
+            byte[] opened = cipher.doFinal(ticket, HEADER_LENGTH, ticket.length - HEADER_LENGTH);
+
+            try {
+                long expiresAt = ByteBuffer.wrap(opened, SECRET_LENGTH, 8).getLong();
+                if (System.currentTimeMillis() >= expiresAt) {
+                    rejected.increment();
+                    return null;
+                }
+
+                resumed.increment();
+                return new Opened(new SecretKeySpec(opened, 0, SECRET_LENGTH, "AES"), expiresAt);
+            } finally {
+                Arrays.fill(opened, (byte) 0);
+            }
+        } catch (GeneralSecurityException e) {
+            // tampered with or sealed by another server
+            rejected.increment();
+            return null;
+        }
+    }
+
+}
@@ -1,5 +1,10 @@
 package coldsrc.cerve.security;
 
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
 /**
  * Constants for the standard encryption Cerve uses.
  */
@@ -8,6 +13,7 @@ public final class StandardEncryption {
     // key constants
     public static final int RSA_KEY_LENGTH = 1024;
     public static final int AES_KEY_LENGTH = 128;
+    public static final int X25519_KEY_LENGTH = 255;
 
     // encryption utility profiles
     public static final SymmetricEncryptionProfile  PROFILE_SYMMETRIC  = newSymmetricEncryptionProfile();
@@ -23,9 +29,46 @@ public final class StandardEncryption {
         return new AsymmetricEncryptionProfile("RSA", "ECB", "PKCS1Padding", "RSA", RSA_KEY_LENGTH);
     }
 
+    /**
+     * Creates a new key agreement profile following the general
+     * protocol standard, agreeing on session keys with X25519.
+     *
+     * @return The profile.
+     */
+    public static AsymmetricEncryptionProfile newKeyAgreementProfile() {
+        return new AsymmetricEncryptionProfile("X25519", X25519_KEY_LENGTH);
+    }
+
+    /**
+     * Agree on the AES session key of a connection.
+     *
+     * @param profile The key agreement profile.
+     * @param privateKey The ephemeral private key of this end.
+     * @param peerKey The ephemeral public key of the peer.
+     * @param context The context both ends bind into the key.
+     * @return The session key.
+     */
+    public static SecretKey agreeSessionKey(AsymmetricEncryptionProfile profile, PrivateKey privateKey,
+                                            PublicKey peerKey, byte[] context) throws GeneralSecurityException {
+        return profile.agree(privateKey, peerKey, context, "AES", AES_KEY_LENGTH / 8);
+    }
+
+    /**
+     * Creates a new session cipher for one end of a connection,
+     * encrypting whole frames with AES-GCM.
+     *
+     * @param profile The symmetric profile holding the shared secret key.
+     * @param clientSide If this is the client end of the connection.
+     * @return The session cipher.
+     */
+    public static SessionCipher newSessionCipher(SymmetricEncryptionProfile profile, boolean clientSide) {
+        return profile.newSessionCipher(clientSide);
+    }
+
     /**
      * Creates a new symmetric encryption profile following
-     * the general protocol standard.
+     * the general protocol standard. Used for the secret key
+     * exchange, frames are encrypted by a {@link SessionCipher}.
      *
      * @return The profile.
      */
@@ -3,6 +3,7 @@ package coldsrc.cerve.security;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 
@@ -22,7 +23,7 @@ public class SymmetricEncryptionProfile extends EncryptionProfile {
     public static final int PADDED_BLOCK_SIZE   = 128;
 
     // the secret key
-    private SecretKey secretKey;
+    private volatile SecretKey secretKey;
 
     // the key algorithm
     private String     keyAlgorithm;
@@ -90,6 +91,23 @@ public class SymmetricEncryptionProfile extends EncryptionProfile {
         return generateKeys(keyLength);
     }
 
+    /**
+     * Create a session cipher for one end of a connection
+     * using the secret key of this profile.
+     *
+     * @param clientSide If this is the client end of the connection.
+     * @return The session cipher.
+     */
+    public SessionCipher newSessionCipher(boolean clientSide) {
+        if (secretKey == null)
+            throw new IllegalStateException("no secret key");
+        try {
+            return new SessionCipher(secretKey, clientSide);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("failed to create session cipher", e);
+        }
+    }
+
     @Override
     public Key getEncryptionKey() {
         return secretKey;
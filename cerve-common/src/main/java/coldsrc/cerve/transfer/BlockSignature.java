@@ -0,0 +1,261 @@
+package coldsrc.cerve.transfer;
+
+import coldsrc.cerve.network.PacketBuffer;
+import coldsrc.cerve.util.Throwables;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * The checksums of the blocks of a version of a package, sent by a
+ * client to receive only the differences to a newer version, see
+ * {@link DeltaPatcher}.
+ *
+ * Every full block has a weak rolling checksum, which can be moved
+ * through the new version byte by byte to find candidate matches at
+ * any offset, and a strong checksum confirming them. A trailing
+ * partial block is not included.
+ *
+ * @param blockSize The size of the blocks.
+ * @param weak The rolling checksum of every block.
+ * @param strong The strong checksum of every block.
+ */
+public record BlockSignature(int blockSize, int[] weak, long[] strong) {
+
+    /**
+     * The smallest block size.
+     */
+    public static final int MIN_BLOCK_SIZE = 1024;
+
+    /**
+     * The largest block size.
+     */
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The most blocks a signature may have, keeping
+     * signatures well below the frame size limit.
+     */
+    public static final int MAX_BLOCKS = 256 * 1024;
+
+    /**
+     * The largest block size accepted from a peer, enough for
+     * versions of a terabyte within {@link #MAX_BLOCKS}.
+     */
+    public static final int MAX_ACCEPTED_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Check if the given block size may be used, a power
+     * of two between {@link #MIN_BLOCK_SIZE} and {@link #MAX_ACCEPTED_BLOCK_SIZE}.
+     *
+     * @param blockSize The block size.
+     * @return If it is valid.
+     */
+    public static boolean isValidBlockSize(int blockSize) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_ACCEPTED_BLOCK_SIZE
+                && Integer.bitCount(blockSize) == 1;
+    }
+
+    /**
+     * Reads bytes of a version.
+     */
+    @FunctionalInterface
+    public interface Source {
+
+        int read(long position, byte[] dst, int off, int len) throws IOException;
+
+        static Source of(FileChannel channel) {
+            return (position, dst, off, len) -> channel.read(ByteBuffer.wrap(dst, off, len), position);
+        }
+
+    }
+
+    /**
+     * Get the block size to use for a version of the given size, about
+     * the square root of the size, as the signature and the matches
+     * both grow with the amount of blocks.
+     *
+     * @param size The size of the version.
+     * @return The block size.
+     */
+    public static int blockSizeFor(long size) {
+        int blockSize = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(size)));
+        blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+
+        // very large versions need larger blocks
+        while (size / blockSize > MAX_BLOCKS)
+            blockSize <<= 1;
+        return blockSize;
+    }
+
+    /**
+     * Calculate the signature of a version.
+     *
+     * @param source The version.
+     * @param size The size of the version.
+     * @param blockSize The block size.
+     * @return The signature.
+     */
+    public static BlockSignature compute(Source source, long size, int blockSize) throws IOException {
+        long count = size / blockSize;
+        if (count > MAX_BLOCKS)
+            throw new IllegalArgumentException("block size " + blockSize + " is too small for " + size + " bytes");
+
+        int[] weak = new int[(int) count];
+        long[] strong = new long[(int) count];
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * blockSize;
+            int off = 0;
+            while (off < blockSize) {
+                int read = source.read(position + off, block, off, blockSize - off);
+                if (read == -1)
+                    throw new EOFException("version ended at " + (position + off) + " of " + size + " bytes");
+                off += read;
+            }
+
+            weak[i] = weakChecksum(block, 0, blockSize);
+            strong[i] = strongChecksum(digest, block, 0, blockSize);
+        }
+
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    /**
+     * Calculate the rolling checksum of the given bytes.
+     */
+    public static int weakChecksum(byte[] bytes, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            a += bytes[off + i] & 0xFF;
+            b += (len - i) * (bytes[off + i] & 0xFF);
+        }
+
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Move a rolling checksum one byte forward.
+     *
+     * @param weak The checksum of the current window.
+     * @param out The byte leaving the window.
+     * @param in The byte entering the window.
+     * @param len The length of the window.
+     * @return The checksum of the next window.
+     */
+    public static int roll(int weak, byte out, byte in, int len) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - len * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    /**
+     * Calculate the strong checksum of the given bytes,
+     * the first 8 bytes of their SHA-256 hash.
+     */
+    public static long strongChecksum(MessageDigest digest, byte[] bytes, int off, int len) {
+        digest.update(bytes, off, len);
+        byte[] hash = digest.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (hash[i] & 0xFF);
+        return value;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the amount of blocks.
+     */
+    public int blockCount() {
+        return weak.length;
+    }
+
+    /**
+     * Calculate a digest of this signature, identifying it
+     * when caching deltas calculated against it.
+     */
+    public long digest() {
+        MessageDigest digest = newDigest();
+        byte[] buf = new byte[12];
+        ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        wrapped.putInt(0, blockSize);
+        digest.update(buf, 0, 4);
+        for (int i = 0; i < weak.length; i++) {
+            wrapped.putInt(0, weak[i]).putLong(4, strong[i]);
+            digest.update(buf);
+        }
+
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /* Serialization */
+
+    public static BlockSignature read(DataInput stream) throws IOException {
+        int blockSize = stream.readInt();
+        if (!isValidBlockSize(blockSize))
+            throw new IOException("invalid block size " + blockSize);
+        int count = stream.readInt();
+        if (count < 0 || count > MAX_BLOCKS)
+            throw new IOException("invalid block count " + count);
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = stream.readInt();
+            strong[i] = stream.readLong();
+        }
+
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    public void write(DataOutput stream) throws IOException {
+        stream.writeInt(blockSize);
+        stream.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            stream.writeInt(weak[i]);
+            stream.writeLong(strong[i]);
+        }
+    }
+
+    public static BlockSignature read(PacketBuffer buf) {
+        int blockSize = buf.readVarInt();
+        if (!isValidBlockSize(blockSize))
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+        int count = buf.readVarInt();
+        if (count < 0 || count > MAX_BLOCKS || count * 12L > buf.readableBytes())
+            throw new IllegalArgumentException("invalid block count " + count);
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = buf.readInt();
+            strong[i] = buf.readLong();
+        }
+
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    public PacketBuffer write(PacketBuffer buf) {
+        buf.writeVarInt(blockSize).writeVarInt(weak.length);
+        buf.ensureCapacity(buf.writerIndex() + weak.length * 12);
+        for (int i = 0; i < weak.length; i++)
+            buf.writeInt(weak[i]).writeLong(strong[i]);
+        return buf;
+    }
+
+}
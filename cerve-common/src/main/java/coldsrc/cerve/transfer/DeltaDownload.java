@@ -0,0 +1,61 @@
+package coldsrc.cerve.transfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A delta being downloaded and applied to an old version,
+ * see {@link PackageClient#downloadDelta(String, String, String, FileChannel, FileChannel, FileChannel)}.
+ *
+ * The delta is downloaded into its own file like a package, so it
+ * can be resumed the same way, and applied once it is complete.
+ * {@link #getSize()} and {@link #getOffset()} refer to the delta,
+ * the future is completed with the size of the new version.
+ */
+public class DeltaDownload extends PackageDownload {
+
+    // the version the client has
+    private final String basisName;
+    private final BlockSignature signature;
+    private final FileChannel basis;
+
+    /**
+     * The file the new version is written to.
+     */
+    private final FileChannel target;
+
+    DeltaDownload(PackageClient client, int transferId, String service, String name,
+                  FileChannel delta, long offset, int window,
+                  String basisName, BlockSignature signature, FileChannel basis, FileChannel target) {
+        super(client, transferId, service, name, delta, offset, window);
+        this.basisName = basisName;
+        this.signature = signature;
+        this.basis = basis;
+        this.target = target;
+    }
+
+    public String getBasisName() {
+        return basisName;
+    }
+
+    @Override
+    void request() {
+        client.getNetworkHandler().send(PackageProtocol.SERVERBOUND_DELTA_REQUEST,
+                new PackageProtocol.DeltaRequest(transferId, service, name, basisName, signature, offset, window));
+    }
+
+    @Override
+    void complete() {
+        long size;
+        try {
+            size = DeltaPatcher.apply(basis, destination, target);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        client.remove(this);
+        future.complete(size);
+    }
+
+}
@@ -0,0 +1,127 @@
+package coldsrc.cerve.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Rebuilds a new version of a package from an old version and
+ * a delta, the differences the server found between the new
+ * version and the {@link BlockSignature} of the old version.
+ *
+ * A delta starts with the size of the new version and the block
+ * size, followed by operations: {@link #OP_COPY} copies a run of
+ * blocks of the old version, {@link #OP_LITERAL} contains bytes not
+ * found in the old version. It ends with {@link #OP_END} and the
+ * CRC32C of the whole new version, which is verified.
+ */
+public class DeltaPatcher {
+
+    /**
+     * Ends the delta, followed by an int checksum.
+     */
+    public static final byte OP_END = 0;
+
+    /**
+     * Copies blocks, followed by the int index of the
+     * first block and the int amount of blocks.
+     */
+    public static final byte OP_COPY = 1;
+
+    /**
+     * Literal bytes, followed by the int length and the bytes.
+     */
+    public static final byte OP_LITERAL = 2;
+
+    /**
+     * The length of the delta header.
+     */
+    public static final int HEADER_LENGTH = 12;
+
+    /**
+     * Apply a delta.
+     *
+     * @param basis The old version.
+     * @param delta The delta.
+     * @param destination The file to write the new version to, it is truncated to the new size.
+     * @return The size of the new version.
+     * @throws IOException If the delta is invalid or does not match the old version.
+     */
+    public static long apply(FileChannel basis, FileChannel delta, FileChannel destination) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(delta.position(0)), 64 * 1024));
+        long size = in.readLong();
+        int blockSize = in.readInt();
+        if (!BlockSignature.isValidBlockSize(blockSize))
+            throw new IOException("invalid block size " + blockSize);
+        long basisSize = basis.size();
+
+        CRC32C crc = new CRC32C();
+        byte[] buf = new byte[Math.max(blockSize, 64 * 1024)];
+        long position = 0;
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END)
+                break;
+
+            if (op == OP_COPY) {
+                long from = (long) in.readInt() * blockSize;
+                long len = (long) in.readInt() * blockSize;
+                if (from < 0 || len < 0 || from + len > basisSize)
+                    throw new IOException("delta copies blocks outside of the old version");
+
+                for (long copied = 0; copied < len; ) {
+                    int n = (int) Math.min(buf.length, len - copied);
+                    readFully(basis, from + copied, buf, n);
+                    crc.update(buf, 0, n);
+                    writeFully(destination, position, buf, n);
+                    position += n;
+                    copied += n;
+                }
+            } else if (op == OP_LITERAL) {
+                int len = in.readInt();
+                if (len < 0)
+                    throw new IOException("invalid literal length " + len);
+
+                for (int copied = 0; copied < len; ) {
+                    int n = Math.min(buf.length, len - copied);
+                    in.readFully(buf, 0, n);
+                    crc.update(buf, 0, n);
+                    writeFully(destination, position, buf, n);
+                    position += n;
+                    copied += n;
+                }
+            } else {
+                throw new IOException("invalid delta operation " + op);
+            }
+        }
+
+        int checksum = in.readInt();
+        if (position != size)
+            throw new IOException("delta produced " + position + " of " + size + " bytes");
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("checksum mismatch, the old version differs from the one the delta was made for");
+
+        destination.truncate(size);
+        return size;
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] buf, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1)
+                throw new EOFException("old version ended at " + (position + buffer.position()));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, long position, byte[] buf, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, len);
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+}
@@ -0,0 +1,129 @@
+package coldsrc.cerve.transfer;
+
+import coldsrc.cerve.network.NetworkHandler;
+import coldsrc.cerve.network.ReceivedPacket;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client end of the package protocol on one connection,
+ * see {@link PackageProtocol}. Installs the protocol handlers
+ * for the package responses on the network handler.
+ *
+ * Chunks are written to the destination on the thread the responses
+ * are dispatched on, bind {@link PackageProtocol#CLIENTBOUND_PACKAGE_CHUNK}
+ * to a serial dispatcher to keep file I/O off the network threads.
+ */
+public class PackageClient {
+
+    /**
+     * The network handler.
+     */
+    private final NetworkHandler networkHandler;
+
+    /**
+     * The running downloads by transfer ID.
+     */
+    private final Map<Integer, PackageDownload> downloads = new ConcurrentHashMap<>();
+
+    // the next transfer ID
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+
+    public PackageClient(NetworkHandler networkHandler) {
+        this.networkHandler = networkHandler;
+
+        networkHandler.setPacketHandler(PackageProtocol.CLIENTBOUND_PACKAGE_HEADER, packet -> {
+            PackageDownload download = downloads.get(packet.value().transferId());
+            if (download != null) download.onHeader(packet.value());
+        });
+
+        networkHandler.setPacketHandler(PackageProtocol.CLIENTBOUND_PACKAGE_CHUNK, packet -> {
+            PackageDownload download = downloads.get(packet.value().transferId());
+            if (download != null) download.onChunk(packet.value());
+        });
+
+        networkHandler.setPacketHandler(PackageProtocol.CLIENTBOUND_PACKAGE_ERROR, this::onError);
+    }
+
+    public NetworkHandler getNetworkHandler() {
+        return networkHandler;
+    }
+
+    private void onError(ReceivedPacket<PackageProtocol.PackageError> packet) {
+        PackageDownload download = downloads.get(packet.value().transferId());
+        if (download != null) download.fail(new IOException(packet.value().reason()));
+    }
+
+    /**
+     * Download a package into the given file. The download resumes
+     * after the bytes already in the file, so to continue a transfer
+     * after a reconnect, download into the same file again.
+     *
+     * @param service The name of the service.
+     * @param name The name of the package.
+     * @param destination The destination file, opened for writing.
+     * @return The download.
+     */
+    public PackageDownload download(String service, String name, FileChannel destination) throws IOException {
+        return download(service, name, destination, PackageProtocol.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Download a package into the given file.
+     *
+     * @param service The name of the service.
+     * @param name The name of the package.
+     * @param destination The destination file, opened for writing.
+     * @param window The maximum amount of unacknowledged chunks.
+     * @return The download.
+     */
+    public PackageDownload download(String service, String name, FileChannel destination, int window) throws IOException {
+        int transferId = nextTransferId.getAndIncrement();
+        PackageDownload download = new PackageDownload(this, transferId, service, name,
+                destination, destination.size(), window);
+        downloads.put(transferId, download);
+        download.request();
+        return download;
+    }
+
+    /**
+     * Download the new version of a package as the delta to a version
+     * the client has, see {@link DeltaPatcher}. The delta is downloaded
+     * into its own file and resumes like a package download.
+     *
+     * @param service The name of the service.
+     * @param name The name of the package.
+     * @param basisName The name of the version the client has if the server
+     *                  has it too, like {@code name@version}, otherwise null to
+     *                  send the signature of the old version instead.
+     * @param basis The version the client has.
+     * @param delta The file to download the delta into, opened for reading and writing.
+     * @param destination The file to write the new version to.
+     * @return The download, completed with the size of the new version.
+     */
+    public DeltaDownload downloadDelta(String service, String name, String basisName,
+                                       FileChannel basis, FileChannel delta, FileChannel destination) throws IOException {
+        BlockSignature signature = null;
+        if (basisName == null) {
+            long size = basis.size();
+            signature = BlockSignature.compute(BlockSignature.Source.of(basis), size, BlockSignature.blockSizeFor(size));
+        }
+
+        int transferId = nextTransferId.getAndIncrement();
+        DeltaDownload download = new DeltaDownload(this, transferId, service, name, delta, delta.size(),
+                PackageProtocol.DEFAULT_WINDOW, basisName, signature, basis, destination);
+        downloads.put(transferId, download);
+        download.request();
+        return download;
+    }
+
+    // called by the download once it is done
+    void remove(PackageDownload download) {
+        downloads.remove(download.getTransferId(), download);
+    }
+
+}
@@ -0,0 +1,170 @@
+package coldsrc.cerve.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A package being downloaded into a file, see {@link PackageClient}.
+ *
+ * Only verified chunks are written, strictly in order, so the
+ * size of the file is always the offset to resume at.
+ */
+public class PackageDownload {
+
+    /**
+     * The package client.
+     */
+    final PackageClient client;
+
+    /**
+     * The transfer ID.
+     */
+    final int transferId;
+
+    // the requested package
+    final String service;
+    final String name;
+
+    /**
+     * The destination file.
+     */
+    final FileChannel destination;
+
+    /**
+     * The maximum amount of unacknowledged chunks.
+     */
+    final int window;
+
+    // the total size, -1 until the header was received
+    private volatile long size = -1;
+    // the offset of the next expected chunk
+    volatile long offset;
+
+    // the amount of chunks which failed verification
+    private volatile int checksumFailures;
+
+    /**
+     * Completed with the size of the package once downloaded.
+     */
+    final CompletableFuture<Long> future = new CompletableFuture<>();
+
+    PackageDownload(PackageClient client, int transferId, String service, String name,
+                    FileChannel destination, long offset, int window) {
+        this.client = client;
+        this.transferId = transferId;
+        this.service = service;
+        this.name = name;
+        this.destination = destination;
+        this.offset = offset;
+        this.window = window;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the total size of the package.
+     *
+     * @return The size or -1 if not known yet.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the amount of bytes downloaded, including
+     * the bytes from earlier transfers.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getChecksumFailures() {
+        return checksumFailures;
+    }
+
+    /**
+     * Get the future completed with the size of the package once
+     * it is downloaded, or completed exceptionally on failure.
+     */
+    public CompletableFuture<Long> future() {
+        return future;
+    }
+
+    /**
+     * Cancel this download, the file keeps
+     * the bytes downloaded so far.
+     */
+    public void cancel() {
+        if (future.cancel(false)) {
+            client.remove(this);
+            client.getNetworkHandler().send(PackageProtocol.SERVERBOUND_PACKAGE_CANCEL, transferId);
+        }
+    }
+
+    // (re)request the package from the current offset
+    void request() {
+        client.getNetworkHandler().send(PackageProtocol.SERVERBOUND_PACKAGE_REQUEST,
+                new PackageProtocol.PackageRequest(transferId, service, name, offset, window));
+    }
+
+    void onHeader(PackageProtocol.PackageHeader header) {
+        if (header.offset() != offset)
+            return;
+        size = header.size();
+        if (offset >= size)
+            complete();
+    }
+
+    void onChunk(PackageProtocol.PackageChunk chunk) {
+        // chunks sent before the transfer was restarted
+        if (future.isDone() || chunk.offset() != offset)
+            return;
+
+        if (!chunk.verify()) {
+            // restart from the last good chunk
+            checksumFailures++;
+            request();
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk.data(), 0, chunk.length());
+            long position = chunk.offset();
+            while (buffer.hasRemaining())
+                position += destination.write(buffer, position);
+        } catch (IOException e) {
+            fail(e);
+            client.getNetworkHandler().send(PackageProtocol.SERVERBOUND_PACKAGE_CANCEL, transferId);
+            return;
+        }
+
+        offset += chunk.length();
+        client.getNetworkHandler().send(PackageProtocol.SERVERBOUND_PACKAGE_ACK,
+                new PackageProtocol.PackageAck(transferId, offset));
+        if (size != -1 && offset >= size)
+            complete();
+    }
+
+    void fail(Throwable t) {
+        client.remove(this);
+        future.completeExceptionally(t);
+    }
+
+    void complete() {
+        client.remove(this);
+        future.complete(size);
+    }
+
+}
@@ -0,0 +1,354 @@
+package coldsrc.cerve.transfer;
+
+import coldsrc.cerve.network.PacketType;
+import coldsrc.cerve.rpc.RpcMethod;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Protocol specification for streaming packages.
+ *
+ * The client requests a package from a service, starting at an offset
+ * to resume an earlier transfer. The server answers with a header and
+ * then streams the package in chunks of a fixed size, each carrying a
+ * CRC32C checksum. Chunks are aligned to multiples of the chunk size,
+ * so the first chunk after resuming at an offset may be shorter. The server keeps at most a window of chunks
+ * unacknowledged, so the memory used per transfer is bounded by the
+ * window times the chunk size no matter how large the package is.
+ * The client acknowledges chunks once it has stored them, and on a
+ * checksum mismatch or after reconnecting simply requests the package
+ * again from the first byte it is missing.
+ *
+ * Instead of a package, a client with an older version can request
+ * the delta to it, which is streamed exactly like a package.
+ */
+public class PackageProtocol {
+
+    /**
+     * The default size of a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The default amount of unacknowledged chunks.
+     */
+    public static final int DEFAULT_WINDOW = 8;
+
+    /**
+     * The maximum amount of unacknowledged chunks a client may request.
+     */
+    public static final int MAX_WINDOW = 64;
+
+    /**
+     * Calculate the checksum of a chunk.
+     *
+     * @param bytes The array.
+     * @param off The offset of the chunk.
+     * @param len The length of the chunk.
+     * @return The CRC32C checksum.
+     */
+    public static int checksum(byte[] bytes, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, off, len);
+        return (int) crc.getValue();
+    }
+
+    /*
+        Requests
+     */
+
+    /**
+     * Requests a package of a service.
+     *
+     * @param transferId The ID of the transfer, chosen by the client.
+     * @param service The name of the service.
+     * @param name The name of the package.
+     * @param offset The offset to start at, the amount of bytes the client already has.
+     * @param window The maximum amount of unacknowledged chunks.
+     */
+    public record PackageRequest(int transferId, String service, String name, long offset, int window) { }
+
+    /**
+     * Serverbound: Requests a package, restarting the transfer with the same ID if running.
+     */
+    public static final PacketType<PackageRequest> SERVERBOUND_PACKAGE_REQUEST = new PacketType<PackageRequest>(
+            "serverbound_package_request",
+            stream -> new PackageRequest(stream.readInt(), stream.readUTF(), stream.readUTF(), stream.readLong(), stream.readInt()),
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeUTF(value.service());
+                stream.writeUTF(value.name());
+                stream.writeLong(value.offset());
+                stream.writeInt(value.window());
+            }
+    ).withBufferSerialization(
+            buf -> new PackageRequest(buf.readVarInt(), buf.readUTF(), buf.readUTF(), buf.readVarLong(), buf.readVarInt()),
+            (buf, value) -> buf.writeVarInt(value.transferId())
+                    .writeUTF(value.service())
+                    .writeUTF(value.name())
+                    .writeVarLong(value.offset())
+                    .writeVarInt(value.window())
+    );
+
+    /**
+     * Requests the delta from a version the client has to a package,
+     * streamed like a package, see {@link DeltaPatcher}. Either the
+     * old version is referenced by name, if the server still has it,
+     * or its signature is sent along.
+     *
+     * @param transferId The ID of the transfer, chosen by the client.
+     * @param service The name of the service.
+     * @param name The name of the package.
+     * @param basis The name of the version the client has, or null.
+     * @param signature The signature of the version the client has, or null.
+     * @param offset The offset in the delta to start at.
+     * @param window The maximum amount of unacknowledged chunks.
+     */
+    public record DeltaRequest(int transferId, String service, String name, String basis,
+                               BlockSignature signature, long offset, int window) { }
+
+    /**
+     * Serverbound: Requests a delta, restarting the transfer with the same ID if running.
+     */
+    public static final PacketType<DeltaRequest> SERVERBOUND_DELTA_REQUEST = new PacketType<DeltaRequest>(
+            "serverbound_delta_request",
+            stream -> new DeltaRequest(stream.readInt(), stream.readUTF(), stream.readUTF(),
+                    stream.readBoolean() ? stream.readUTF() : null,
+                    stream.readBoolean() ? BlockSignature.read(stream) : null,
+                    stream.readLong(), stream.readInt()),
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeUTF(value.service());
+                stream.writeUTF(value.name());
+                stream.writeBoolean(value.basis() != null);
+                if (value.basis() != null)
+                    stream.writeUTF(value.basis());
+                stream.writeBoolean(value.signature() != null);
+                if (value.signature() != null)
+                    value.signature().write(stream);
+                stream.writeLong(value.offset());
+                stream.writeInt(value.window());
+            }
+    ).withBufferSerialization(
+            buf -> new DeltaRequest(buf.readVarInt(), buf.readUTF(), buf.readUTF(),
+                    buf.readBoolean() ? buf.readUTF() : null,
+                    buf.readBoolean() ? BlockSignature.read(buf) : null,
+                    buf.readVarLong(), buf.readVarInt()),
+            (buf, value) -> {
+                buf.writeVarInt(value.transferId())
+                        .writeUTF(value.service())
+                        .writeUTF(value.name())
+                        .writeBoolean(value.basis() != null);
+                if (value.basis() != null)
+                    buf.writeUTF(value.basis());
+                buf.writeBoolean(value.signature() != null);
+                if (value.signature() != null)
+                    value.signature().write(buf);
+                buf.writeVarLong(value.offset()).writeVarInt(value.window());
+            }
+    );
+
+    /**
+     * Acknowledges all bytes of a transfer before the given offset.
+     *
+     * @param transferId The ID of the transfer.
+     * @param offset The offset of the first byte not yet received.
+     */
+    public record PackageAck(int transferId, long offset) { }
+
+    /**
+     * Serverbound: Acknowledges received chunks, opening the window for more.
+     */
+    public static final PacketType<PackageAck> SERVERBOUND_PACKAGE_ACK = new PacketType<PackageAck>(
+            "serverbound_package_ack",
+            stream -> new PackageAck(stream.readInt(), stream.readLong()),
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeLong(value.offset());
+            }
+    ).withBufferSerialization(
+            buf -> new PackageAck(buf.readVarInt(), buf.readVarLong()),
+            (buf, value) -> buf.writeVarInt(value.transferId()).writeVarLong(value.offset())
+    );
+
+    /**
+     * Serverbound: Cancels a transfer.
+     */
+    public static final PacketType<Integer> SERVERBOUND_PACKAGE_CANCEL = new PacketType<Integer>(
+            "serverbound_package_cancel",
+            stream -> stream.readInt(),
+            (stream, value) -> stream.writeInt(value)
+    ).withBufferSerialization(
+            buf -> buf.readVarInt(),
+            (buf, value) -> buf.writeVarInt(value)
+    );
+
+    /*
+        Queries
+     */
+
+    /**
+     * Describes a package available for download.
+     *
+     * @param name The name to request it by.
+     * @param size The size in bytes.
+     */
+    public record PackageInfo(String name, long size) { }
+
+    /**
+     * Lists the packages of the service with the given name.
+     */
+    public static final RpcMethod<String, PackageInfo[]> QUERY_PACKAGES = new RpcMethod<>(
+            "query_packages",
+            new PacketType<String>(
+                    "service_name",
+                    stream -> stream.readUTF(),
+                    (stream, value) -> stream.writeUTF(value)
+            ).withBufferSerialization(
+                    buf -> buf.readUTF(),
+                    (buf, value) -> buf.writeUTF(value)
+            ),
+            new PacketType<PackageInfo[]>(
+                    "package_infos",
+                    stream -> {
+                        PackageInfo[] infos = new PackageInfo[stream.readInt()];
+                        for (int i = 0; i < infos.length; i++)
+                            infos[i] = new PackageInfo(stream.readUTF(), stream.readLong());
+                        return infos;
+                    },
+                    (stream, value) -> {
+                        stream.writeInt(value.length);
+                        for (PackageInfo info : value) {
+                            stream.writeUTF(info.name());
+                            stream.writeLong(info.size());
+                        }
+                    }
+            ).withBufferSerialization(
+                    buf -> {
+                        PackageInfo[] infos = new PackageInfo[buf.readVarInt()];
+                        for (int i = 0; i < infos.length; i++)
+                            infos[i] = new PackageInfo(buf.readUTF(), buf.readVarLong());
+                        return infos;
+                    },
+                    (buf, value) -> {
+                        buf.writeVarInt(value.length);
+                        for (PackageInfo info : value)
+                            buf.writeUTF(info.name()).writeVarLong(info.size());
+                    }
+            )
+    );
+
+    /*
+        Responses
+     */
+
+    /**
+     * Describes a package before its chunks are sent.
+     *
+     * @param transferId The ID of the transfer.
+     * @param size The total size of the package.
+     * @param chunkSize The size of the chunks, every chunk but the first and last is exactly this long.
+     * @param offset The offset the transfer starts at.
+     */
+    public record PackageHeader(int transferId, long size, int chunkSize, long offset) { }
+
+    /**
+     * Clientbound: Accepts a package request.
+     */
+    public static final PacketType<PackageHeader> CLIENTBOUND_PACKAGE_HEADER = new PacketType<PackageHeader>(
+            "clientbound_package_header",
+            stream -> new PackageHeader(stream.readInt(), stream.readLong(), stream.readInt(), stream.readLong()),
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeLong(value.size());
+                stream.writeInt(value.chunkSize());
+                stream.writeLong(value.offset());
+            }
+    ).withBufferSerialization(
+            buf -> new PackageHeader(buf.readVarInt(), buf.readVarLong(), buf.readVarInt(), buf.readVarLong()),
+            (buf, value) -> buf.writeVarInt(value.transferId())
+                    .writeVarLong(value.size())
+                    .writeVarInt(value.chunkSize())
+                    .writeVarLong(value.offset())
+    );
+
+    /**
+     * A chunk of a package. When sending, only the first
+     * {@code length} bytes of the data are written.
+     *
+     * @param transferId The ID of the transfer.
+     * @param offset The offset of the chunk in the package.
+     * @param checksum The {@link #checksum(byte[], int, int)} of the data.
+     * @param data The data.
+     * @param length The length of the data.
+     */
+    public record PackageChunk(int transferId, long offset, int checksum, byte[] data, int length) {
+
+        /**
+         * Check if the data matches the checksum.
+         */
+        public boolean verify() {
+            return PackageProtocol.checksum(data, 0, length) == checksum;
+        }
+
+    }
+
+    /**
+     * Clientbound: Sends a chunk of a package.
+     */
+    public static final PacketType<PackageChunk> CLIENTBOUND_PACKAGE_CHUNK = new PacketType<PackageChunk>(
+            "clientbound_package_chunk",
+            stream -> {
+                int transferId = stream.readInt();
+                long offset = stream.readLong();
+                int checksum = stream.readInt();
+                byte[] data = new byte[stream.readInt()];
+                stream.readFully(data);
+                return new PackageChunk(transferId, offset, checksum, data, data.length);
+            },
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeLong(value.offset());
+                stream.writeInt(value.checksum());
+                stream.writeInt(value.length());
+                stream.write(value.data(), 0, value.length());
+            }
+    ).withBufferSerialization(
+            buf -> {
+                int transferId = buf.readVarInt();
+                long offset = buf.readVarLong();
+                int checksum = buf.readInt();
+                byte[] data = buf.readByteArray();
+                return new PackageChunk(transferId, offset, checksum, data, data.length);
+            },
+            (buf, value) -> buf.writeVarInt(value.transferId())
+                    .writeVarLong(value.offset())
+                    .writeInt(value.checksum())
+                    .writeVarInt(value.length())
+                    .writeBytes(value.data(), 0, value.length())
+    );
+
+    /**
+     * Rejects or aborts a transfer.
+     *
+     * @param transferId The ID of the transfer.
+     * @param reason The reason.
+     */
+    public record PackageError(int transferId, String reason) { }
+
+    /**
+     * Clientbound: Rejects a package request or aborts a running transfer.
+     */
+    public static final PacketType<PackageError> CLIENTBOUND_PACKAGE_ERROR = new PacketType<PackageError>(
+            "clientbound_package_error",
+            stream -> new PackageError(stream.readInt(), stream.readUTF()),
+            (stream, value) -> {
+                stream.writeInt(value.transferId());
+                stream.writeUTF(value.reason());
+            }
+    ).withBufferSerialization(
+            buf -> new PackageError(buf.readVarInt(), buf.readUTF()),
+            (buf, value) -> buf.writeVarInt(value.transferId()).writeUTF(value.reason())
+    );
+
+}
@@ -0,0 +1,110 @@
+package coldsrc.cerve.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utilities for creating threads.
+ */
+public class Threads {
+
+    // static utility class
+    // no instantiating
+    private Threads() { }
+
+    /**
+     * The virtual thread builder factory method,
+     * or null if the runtime does not support virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * The method to check if a thread is virtual,
+     * or null if the runtime does not support virtual threads.
+     */
+    private static final Method IS_VIRTUAL;
+
+    static {
+        Method ofVirtual;
+        Method isVirtual;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            ofVirtual = null;
+            isVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    /**
+     * Check if the current runtime supports virtual threads.
+     *
+     * @return If virtual threads are supported.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Check if the given thread is a virtual thread.
+     *
+     * @param thread The thread.
+     * @return If it is virtual, always false if unsupported.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null)
+            return false;
+
+        try {
+            return (boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create a thread factory for platform threads with
+     * the given name prefix.
+     *
+     * @param name The thread name prefix.
+     * @param daemon If the threads should be daemon threads.
+     * @return The thread factory.
+     */
+    public static ThreadFactory platformThreadFactory(String name, boolean daemon) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+
+    /**
+     * Create a thread factory for virtual threads with
+     * the given name prefix. Resolved reflectively so this
+     * can be compiled against runtimes without virtual threads.
+     *
+     * @param name The thread name prefix.
+     * @return The thread factory.
+     * @throws UnsupportedOperationException If virtual threads are not supported.
+     */
+    public static ThreadFactory virtualThreadFactory(String name) {
+        if (OF_VIRTUAL == null)
+            throw new UnsupportedOperationException("virtual threads are not supported by this runtime");
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            Throwables.sneakyThrow(e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package coldsrc.cerve.compression;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static coldsrc.cerve.compression.LZCodecTest.compress;
+import static coldsrc.cerve.compression.LZCodecTest.decompress;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeflateCodecTest {
+
+    final DeflateCodec codec = new DeflateCodec(6);
+
+    @Test
+    void roundTrip() throws DataFormatException {
+        for (byte[] data : LZCodecTest.samples())
+            assertArrayEquals(data, decompress(codec, compress(codec, data), data.length), "length " + data.length);
+    }
+
+    @Test
+    void reusesState() throws DataFormatException {
+        CompressionCodec.Compressor compressor = codec.newCompressor();
+        CompressionCodec.Decompressor decompressor = codec.newDecompressor();
+        for (byte[] data : LZCodecTest.samples()) {
+            byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+            int len = compressor.compress(data, 0, data.length, compressed, 0, compressed.length);
+            byte[] out = new byte[data.length];
+            decompressor.decompress(compressed, 0, len, out, 0, data.length);
+            assertArrayEquals(data, out, "length " + data.length);
+        }
+    }
+
+    @Test
+    void compressRespectsMaxLength() {
+        byte[] data = LZCodecTest.samples()[4];
+        byte[] dst = new byte[data.length];
+        assertEquals(-1, codec.newCompressor().compress(data, 0, data.length, dst, 0, 100));
+    }
+
+    @Test
+    void rejectsWrongLength() {
+        for (byte[] data : LZCodecTest.samples()) {
+            byte[] compressed = compress(codec, data);
+            if (data.length > 0)
+                assertThrows(DataFormatException.class, () -> decompress(codec, compressed, data.length - 1));
+            assertThrows(DataFormatException.class, () -> decompress(codec, compressed, data.length + 1));
+        }
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        byte[] data = LZCodecTest.samples()[5];
+        byte[] compressed = compress(codec, data);
+        for (int len = 0; len < compressed.length; len++) {
+            byte[] truncated = Arrays.copyOf(compressed, len);
+            assertThrows(DataFormatException.class, () -> decompress(codec, truncated, data.length), "length " + len);
+        }
+    }
+
+    @Test
+    void rejectsRandomData() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            byte[] garbage = new byte[1 + random.nextInt(64)];
+            random.nextBytes(garbage);
+            try {
+                decompress(codec, garbage, 1024);
+            } catch (DataFormatException e) {
+                continue;
+            }
+
+            fail("decoded random data to the exact length");
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package coldsrc.cerve.compression;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LZCodecTest {
+
+    final LZCodec codec = new LZCodec();
+
+    static byte[] compress(CompressionCodec codec, byte[] data) {
+        byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+        int len = codec.newCompressor().compress(data, 0, data.length, compressed, 0, compressed.length);
+        assertTrue(len >= 0, "compressed length within the bound");
+        return Arrays.copyOf(compressed, len);
+    }
+
+    static byte[] decompress(CompressionCodec codec, byte[] compressed, int length) throws DataFormatException {
+        byte[] data = new byte[length];
+        codec.newDecompressor().decompress(compressed, 0, compressed.length, data, 0, length);
+        return data;
+    }
+
+    static byte[][] samples() {
+        Random random = new Random(42);
+        byte[] random64k = new byte[64 * 1024];
+        random.nextBytes(random64k);
+
+        // text like data with long repeats farther apart than the window
+        byte[] text = new byte[300 * 1024];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ("the quick brown fox ".charAt(i % 20) + (i / 100_000));
+
+        return new byte[][] { new byte[0], { 1 }, { 1, 2, 3, 4, 5 }, new byte[100_000], random64k, text };
+    }
+
+    @Test
+    void roundTrip() throws DataFormatException {
+        for (byte[] data : samples())
+            assertArrayEquals(data, decompress(codec, compress(codec, data), data.length), "length " + data.length);
+    }
+
+    @Test
+    void roundTripAtOffsets() throws DataFormatException {
+        byte[] data = samples()[5];
+        byte[] src = new byte[data.length + 7];
+        System.arraycopy(data, 0, src, 7, data.length);
+
+        byte[] dst = new byte[codec.maxCompressedLength(data.length) + 3];
+        int len = codec.newCompressor().compress(src, 7, data.length, dst, 3, dst.length - 3);
+        byte[] out = new byte[data.length + 5];
+        codec.newDecompressor().decompress(dst, 3, len, out, 5, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(out, 5, out.length));
+    }
+
+    @Test
+    void compressRespectsMaxLength() {
+        byte[] data = samples()[4];
+        byte[] dst = new byte[data.length];
+        assertEquals(-1, codec.newCompressor().compress(data, 0, data.length, dst, 0, 100));
+    }
+
+    @Test
+    void rejectsWrongLength() {
+        byte[] data = samples()[5];
+        byte[] compressed = compress(codec, data);
+        assertThrows(DataFormatException.class, () -> decompress(codec, compressed, data.length - 1));
+        assertThrows(DataFormatException.class, () -> decompress(codec, compressed, data.length + 1));
+    }
+
+    @Test
+    void rejectsTruncatedData() {
+        byte[] data = samples()[5];
+        byte[] compressed = compress(codec, data);
+        for (int len = 0; len < compressed.length; len += Math.max(1, compressed.length / 50)) {
+            byte[] truncated = Arrays.copyOf(compressed, len);
+            assertThrows(DataFormatException.class, () -> decompress(codec, truncated, data.length), "length " + len);
+        }
+    }
+
+    @Test
+    void rejectsTruncatedDataInLargerArray() {
+        byte[] data = samples()[5];
+        byte[] compressed = compress(codec, data);
+        for (int len = 1; len < compressed.length; len++) {
+            int cut = len;
+            assertThrows(DataFormatException.class, () -> codec.newDecompressor()
+                    .decompress(compressed, 0, cut, new byte[data.length], 0, data.length), "length " + cut);
+        }
+    }
+
+    @Test
+    void rejectsMatchBeforeStart() {
+        // no literals then a match 1 byte back
+        byte[] compressed = { 0x00, 0x01, 0x00, 0x00 };
+        assertThrows(DataFormatException.class, () -> decompress(codec, compressed, 4));
+    }
+
+    @Test
+    void rejectsRandomData() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            byte[] garbage = new byte[1 + random.nextInt(64)];
+            random.nextBytes(garbage);
+            try {
+                decompress(codec, garbage, 1024);
+            } catch (DataFormatException e) {
+                continue;
+            }
+
+            fail("decoded random data to the exact length");
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package coldsrc.cerve.security;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTicketsTest {
+
+    static SecretKey secret(int seed) {
+        byte[] bytes = new byte[SessionTickets.SECRET_LENGTH];
+        new Random(seed).nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    @Test
+    void issueAndOpen() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets();
+        SecretKey secret = secret(1);
+        long before = System.currentTimeMillis();
+        byte[] ticket = tickets.issue(secret);
+        assertEquals(SessionTickets.TICKET_LENGTH, ticket.length);
+
+        SessionTickets.Opened opened = tickets.open(ticket);
+        assertNotNull(opened);
+        assertArrayEquals(secret.getEncoded(), opened.secret().getEncoded());
+        assertTrue(opened.expiresAt() >= before + tickets.getLifetimeMillis());
+        assertTrue(opened.expiresAt() <= System.currentTimeMillis() + tickets.getLifetimeMillis());
+        assertEquals(new SessionTickets.Stats(1, 1, 0), tickets.getStats());
+    }
+
+    @Test
+    void issueKeepsEarlierExpiry() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        assertEquals(expiresAt, tickets.open(tickets.issue(secret(1), expiresAt)).expiresAt());
+
+        // never extended past the lifetime
+        long later = System.currentTimeMillis() + tickets.getLifetimeMillis() * 2;
+        assertTrue(tickets.open(tickets.issue(secret(1), later)).expiresAt() < later);
+    }
+
+    @Test
+    void rejectsExpired() throws Exception {
+        SessionTickets tickets = new SessionTickets().withLifetime(50, TimeUnit.MILLISECONDS);
+        byte[] ticket = tickets.issue(secret(1));
+        Thread.sleep(100);
+        assertNull(tickets.open(ticket));
+
+        assertNull(tickets.open(tickets.issue(secret(1), System.currentTimeMillis() - 1)));
+        assertEquals(2, tickets.getStats().rejected());
+    }
+
+    @Test
+    void rejectsTamperedAndForeign() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets();
+        byte[] ticket = tickets.issue(secret(1));
+
+        // every byte is covered by the tag, including the key id and nonce
+        for (int i = 0; i < ticket.length; i++) {
+            byte[] tampered = ticket.clone();
+            tampered[i] ^= 1;
+            assertNull(tickets.open(tampered), "byte " + i);
+        }
+
+        assertNull(tickets.open(null));
+        assertNull(tickets.open(new byte[ticket.length - 1]));
+        assertNull(new SessionTickets().open(ticket));
+        assertNotNull(tickets.open(ticket));
+    }
+
+    @Test
+    void rotation() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets();
+        byte[] first = tickets.issue(secret(1));
+
+        // the previous key is still accepted
+        tickets.rotateKey();
+        byte[] second = tickets.issue(secret(2));
+        assertNotNull(tickets.open(first));
+        assertArrayEquals(secret(2).getEncoded(), tickets.open(second).secret().getEncoded());
+
+        // but not the one before
+        tickets.rotateKey();
+        assertNull(tickets.open(first));
+        assertNotNull(tickets.open(second));
+    }
+
+    @Test
+    void rotatesOncePerLifetime() throws Exception {
+        SessionTickets tickets = new SessionTickets().withLifetime(200, TimeUnit.MILLISECONDS);
+        byte[] first = tickets.issue(secret(1));
+        Thread.sleep(250);
+
+        // issuing after a lifetime rotates the key
+        byte[] second = tickets.issue(secret(2));
+        assertNull(tickets.open(first));
+        assertNotNull(tickets.open(second));
+        assertNotEquals(keyId(first), keyId(second));
+    }
+
+    static int keyId(byte[] ticket) {
+        return (ticket[0] & 0xFF) << 24 | (ticket[1] & 0xFF) << 16 | (ticket[2] & 0xFF) << 8 | ticket[3] & 0xFF;
+    }
+
+    @Test
+    void resumedKeysMatchOnBothEnds() throws GeneralSecurityException {
+        SecretKey secret = SessionTickets.resumptionSecret(secret(1));
+        byte[] clientRandom = SessionTickets.newRandom();
+        byte[] serverRandom = SessionTickets.newRandom();
+
+        SecretKey key = SessionTickets.resumedSessionKey(secret, clientRandom, serverRandom);
+        assertArrayEquals(key.getEncoded(), SessionTickets.resumedSessionKey(secret, clientRandom, serverRandom).getEncoded());
+        assertFalse(Arrays.equals(key.getEncoded(),
+                SessionTickets.resumedSessionKey(secret, clientRandom, SessionTickets.newRandom()).getEncoded()));
+    }
+
+}
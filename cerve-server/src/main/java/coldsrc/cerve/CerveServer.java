@@ -1,20 +1,37 @@
 package coldsrc.cerve;
 
+import coldsrc.cerve.client.ClientAcceptor;
 import coldsrc.cerve.client.ServerClient;
 import coldsrc.cerve.logging.LoggerProvider;
 import coldsrc.cerve.logging.LoggerProxy;
+import coldsrc.cerve.network.BaseProtocol;
+import coldsrc.cerve.network.BlockingTransport;
 import coldsrc.cerve.network.NetworkManager;
+import coldsrc.cerve.network.NetworkTransport;
+import coldsrc.cerve.network.PacketDispatcher;
+import coldsrc.cerve.network.PacketType;
 import coldsrc.cerve.permission.PermissionNamespace;
 import coldsrc.cerve.security.AsymmetricEncryptionProfile;
 import coldsrc.cerve.security.EncryptionProfile;
+import coldsrc.cerve.security.KeyPairPool;
+import coldsrc.cerve.security.SessionTickets;
 import coldsrc.cerve.security.StandardEncryption;
 import coldsrc.cerve.service.ServerService;
+import coldsrc.cerve.store.PackageStore;
+import coldsrc.cerve.transfer.PackageProtocol;
 import coldsrc.cerve.user.ServerUser;
+import coldsrc.cerve.util.Threads;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
 
 /**
  * Main server class.
@@ -39,38 +56,121 @@ public class CerveServer {
     /**
      * All registered services.
      */
-    final Map<String, ServerService> serviceMap = new HashMap<>();
+    final Map<String, ServerService> serviceMap = new ConcurrentHashMap<>();
 
     /**
      * All registered users.
      */
-    final Map<String, ServerUser> userMap = new HashMap<>();
+    final Map<String, ServerUser> userMap = new ConcurrentHashMap<>();
 
     /**
-     * All connected clients.
+     * All connected clients. Copy on write, as clients connect
+     * and disconnect far less often than they are iterated.
      */
-    final List<ServerClient> clients = new ArrayList<>();
+    final List<ServerClient> clients = new CopyOnWriteArrayList<>();
+
+    /**
+     * The read only view of the clients.
+     */
+    final List<ServerClient> clientsView = Collections.unmodifiableList(clients);
 
     /**
      * The network manager.
      */
     final NetworkManager networkManager = new NetworkManager();
 
+    /**
+     * The transport used for client connections.
+     */
+    final NetworkTransport transport;
+
+    /**
+     * The workers handling the packets kept off the network threads,
+     * owned by the server so stopping it releases them.
+     */
+    final ExecutorService workerPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            Threads.platformThreadFactory("CerveServerWorker", true));
+
     /**
      * The servers encryption profile to initiate safe communication.
      */
     final AsymmetricEncryptionProfile serverEncryption = StandardEncryption.newAsymmetricEncryptionProfile();
 
+    /**
+     * The pool of ephemeral key pairs for key agreement handshakes.
+     */
+    final KeyPairPool keyPool = new KeyPairPool(StandardEncryption.newKeyAgreementProfile());
+
+    /**
+     * If handshakes agree on the session key with X25519
+     * instead of exchanging it with the RSA key of the server.
+     */
+    volatile boolean keyAgreement = true;
+
+    /**
+     * The tickets issued to resume sessions without a full
+     * handshake, null if resumption is not supported.
+     */
+    volatile SessionTickets sessionTickets = new SessionTickets();
+
+    /**
+     * Accepts client connections on the port.
+     */
+    final ClientAcceptor acceptor;
+
+    /**
+     * The store packages are looked up in when a service
+     * has no package registered under the requested name.
+     */
+    volatile PackageStore packageStore;
+
     public CerveServer(int port, LoggerProvider loggerProvider) {
+        this(port, loggerProvider, BlockingTransport.INSTANCE);
+    }
+
+    /**
+     * Creates a server which runs the read loop and packet
+     * callbacks of every client on a thread created by the
+     * given factory, for example one from {@link coldsrc.cerve.util.Threads#virtualThreadFactory(String)}.
+     *
+     * @param port The network port.
+     * @param loggerProvider The logger provider.
+     * @param networkThreadFactory The factory for the client network threads.
+     */
+    public CerveServer(int port, LoggerProvider loggerProvider, ThreadFactory networkThreadFactory) {
+        this(port, loggerProvider, new BlockingTransport(networkThreadFactory));
+    }
+
+    public CerveServer(int port, LoggerProvider loggerProvider, NetworkTransport transport) {
         this.port = port;
         this.loggerProvider = loggerProvider;
+        this.transport = transport;
 
         // loggers //
         this.clientLogger = loggerProvider.getLogger("ServerClient");
 
+        // packages are read from disk while handling
+        // these, so keep them off the network threads
+        networkManager.registerAll(PackageProtocol.class);
+        PacketDispatcher packageDispatcher = PacketDispatcher.serial(workerPool);
+        networkManager.bindDispatcher(PackageProtocol.SERVERBOUND_PACKAGE_REQUEST, packageDispatcher);
+        networkManager.bindDispatcher(PackageProtocol.SERVERBOUND_DELTA_REQUEST, packageDispatcher);
+        networkManager.bindDispatcher(PackageProtocol.QUERY_PACKAGES.getRequestType(), packageDispatcher);
+        networkManager.bindDispatcher(PackageProtocol.SERVERBOUND_PACKAGE_ACK, packageDispatcher);
+        networkManager.bindDispatcher(PackageProtocol.SERVERBOUND_PACKAGE_CANCEL, packageDispatcher);
+
+        // keys are decrypted and agreed on while handling these, so keep
+        // them off the network threads, resuming is cheap and stays inline
+        PacketDispatcher handshakeDispatcher = PacketDispatcher.serial(workerPool);
+        networkManager.bindDispatcher(BaseProtocol.SERVERBOUND_SECRET_KEY, handshakeDispatcher);
+        networkManager.bindDispatcher(BaseProtocol.SERVERBOUND_KEY_AGREEMENT, handshakeDispatcher);
+
         // generate public and private key
         // for the handshakes
         serverEncryption.generateKeys();
+
+        this.acceptor = new ClientAcceptor(this);
     }
 
     /* Loggers */
@@ -85,6 +185,38 @@ public class CerveServer {
         return port;
     }
 
+    /**
+     * Get the acceptor of client connections, configure
+     * it before starting the server.
+     *
+     * @return The acceptor.
+     */
+    public ClientAcceptor getAcceptor() {
+        return acceptor;
+    }
+
+    /**
+     * Start accepting clients on the port.
+     */
+    public void start() throws IOException {
+        if (keyAgreement)
+            keyPool.start();
+        acceptor.start();
+    }
+
+    /**
+     * Stop accepting clients, disconnect all connected clients and
+     * release the transport and the worker threads of the server.
+     */
+    public void stop() {
+        acceptor.stop();
+        for (ServerClient client : clients)
+            client.stopNetworkHandler();
+        transport.shutdown();
+        workerPool.shutdown();
+        keyPool.close();
+    }
+
     /**
      * Get the global network manager.
      *
@@ -94,6 +226,15 @@ public class CerveServer {
         return networkManager;
     }
 
+    /**
+     * Get the transport used for client connections.
+     *
+     * @return The network transport.
+     */
+    public NetworkTransport getTransport() {
+        return transport;
+    }
+
     /**
      * Get the server encryption profile.
      *
@@ -103,6 +244,54 @@ public class CerveServer {
         return serverEncryption;
     }
 
+    /**
+     * Set if encryption handshakes agree on the session key with
+     * ephemeral X25519 keys, which gives forward secrecy and is far
+     * cheaper for the server than decrypting it with its RSA key.
+     *
+     * @param keyAgreement If key agreement should be used, true by default.
+     * @return This.
+     */
+    public CerveServer withKeyAgreement(boolean keyAgreement) {
+        this.keyAgreement = keyAgreement;
+        return this;
+    }
+
+    public boolean isKeyAgreement() {
+        return keyAgreement;
+    }
+
+    /**
+     * Set the tickets issued after encryption handshakes, which let
+     * reconnecting clients resume their session in one round trip.
+     *
+     * @param sessionTickets The tickets, or null to always do a full handshake.
+     * @return This.
+     */
+    public CerveServer withSessionTickets(SessionTickets sessionTickets) {
+        this.sessionTickets = sessionTickets;
+        return this;
+    }
+
+    /**
+     * Get the tickets issued to resume sessions.
+     *
+     * @return The tickets or null if resumption is not supported.
+     */
+    public SessionTickets getSessionTickets() {
+        return sessionTickets;
+    }
+
+    /**
+     * Get the pool of ephemeral key pairs for key agreement
+     * handshakes, filled in the background once started.
+     *
+     * @return The key pool.
+     */
+    public KeyPairPool getKeyPool() {
+        return keyPool;
+    }
+
     /**
      * The permission namespace for general server permissions.
      *
@@ -121,6 +310,26 @@ public class CerveServer {
         return loggerProvider;
     }
 
+    /**
+     * Set the package store to serve packages from.
+     *
+     * @param packageStore The store, or null for none.
+     * @return This.
+     */
+    public CerveServer withPackageStore(PackageStore packageStore) {
+        this.packageStore = packageStore;
+        return this;
+    }
+
+    /**
+     * Get the package store if set.
+     *
+     * @return The store or null.
+     */
+    public PackageStore getPackageStore() {
+        return packageStore;
+    }
+
     public LoggerProxy getLogger(String name) {
         return loggerProvider.getLogger(name);
     }
@@ -160,11 +369,18 @@ public class CerveServer {
         return service;
     }
 
+    /**
+     * Get the service associated with the given name, atomically
+     * creating and registering it if absent.
+     *
+     * @param name The name of the service.
+     * @return The service.
+     */
     public ServerService getOrCreateService(String name) {
-        ServerService service = getService(name);
+        ServerService service = serviceMap.get(name);
         if (service != null)
             return service;
-        return createService(name);
+        return serviceMap.computeIfAbsent(name, __ -> new ServerService(this, name));
     }
 
     /**
@@ -200,18 +416,61 @@ public class CerveServer {
     }
 
     /**
-     * Get the list of connected clients.
+     * Get the list of connected clients. The list is read only,
+     * iterating it iterates a snapshot without locking.
      *
      * @return The clients.
      */
     public List<ServerClient> getClients() {
-        return clients;
+        return clientsView;
+    }
+
+    public void addClient(ServerClient client) {
+        clients.add(client);
     }
 
     public void removeClient(ServerClient client) {
-        synchronized (clients) {
-            clients.remove(client);
+        clients.remove(client);
+    }
+
+    /**
+     * Call the given action for every connected client, iterating
+     * a snapshot so clients can connect and disconnect meanwhile.
+     *
+     * @param action The action.
+     */
+    public void forEachClient(Consumer<ServerClient> action) {
+        for (ServerClient client : clients) {
+            action.accept(client);
+        }
+    }
+
+    /**
+     * Send the given packet to every connected client, iterating
+     * a snapshot so clients can connect and disconnect meanwhile.
+     * Failing to send to one client does not stop the broadcast. Clients
+     * which read too slowly are handled by their {@link coldsrc.cerve.network.NetworkHandler.SlowConsumerPolicy},
+     * mark packet types which may be skipped for them as droppable.
+     *
+     * @param type The packet type.
+     * @param value The packet value.
+     * @return The amount of clients the packet was sent to.
+     */
+    public <T> int broadcast(PacketType<T> type, T value) {
+        int sent = 0;
+        for (ServerClient client : clients) {
+            if (!client.isNetworkHandlerRunning())
+                continue;
+
+            try {
+                client.send(type, value);
+                sent++;
+            } catch (Exception e) {
+                clientLogger.warn("Failed to broadcast {} to client {}: {}", type.getName(), client.getSocket().getRemoteSocketAddress(), e);
+            }
         }
+
+        return sent;
     }
 
 }
@@ -0,0 +1,424 @@
+package coldsrc.cerve.client;
+
+import coldsrc.cerve.CerveServer;
+import coldsrc.cerve.logging.LoggerProxy;
+import coldsrc.cerve.network.NetworkHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Accepts client connections for a {@link CerveServer} on a
+ * dedicated thread and admits them as {@link ServerClient}s.
+ *
+ * Accepting is paced by a token bucket, so a reconnect storm waits
+ * in the listen backlog of the kernel instead of being admitted all at
+ * once, and the kernel pushes back on clients once the backlog is full.
+ * Connections beyond the connection limit, the limit per remote address
+ * or while the overload check reports overload are accepted only to be
+ * rejected right away with a {@link coldsrc.cerve.network.BaseProtocol#DISCONNECT},
+ * before anything is allocated for them.
+ */
+public class ClientAcceptor {
+
+    /**
+     * The default length of the listen backlog.
+     */
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    /**
+     * The default maximum amount of connected clients.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 10_000;
+
+    /**
+     * The default maximum amount of connections per remote address.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 64;
+
+    /**
+     * The default amount of connections accepted per second.
+     */
+    public static final int DEFAULT_ACCEPT_RATE = 1000;
+
+    // the time to wait after an accept failed, for
+    // example because the process ran out of descriptors
+    static final long ACCEPT_ERROR_BACKOFF_MILLIS = 100;
+
+    /**
+     * A snapshot of the acceptor counters.
+     *
+     * @param accepted The amount of connections admitted.
+     * @param rejectedFull The amount of connections rejected because of the connection limit.
+     * @param rejectedPerAddress The amount of connections rejected because of the limit per address.
+     * @param rejectedOverload The amount of connections rejected because of the overload check.
+     * @param throttled The amount of times accepting waited for the accept rate.
+     * @param connections The amount of connected clients.
+     */
+    public record Stats(long accepted, long rejectedFull, long rejectedPerAddress,
+                        long rejectedOverload, long throttled, int connections) {
+        public long rejected() {
+            return rejectedFull + rejectedPerAddress + rejectedOverload;
+        }
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The server.
+     */
+    private final CerveServer server;
+
+    /**
+     * The logger.
+     */
+    private final LoggerProxy logger;
+
+    // the settings
+    private volatile InetAddress bindAddress;
+    private volatile int backlog = DEFAULT_BACKLOG;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int maxConnectionsPerAddress = DEFAULT_MAX_CONNECTIONS_PER_ADDRESS;
+    private volatile int acceptRate = DEFAULT_ACCEPT_RATE;
+    private volatile BooleanSupplier overloadCheck;
+    private volatile Consumer<ServerClient> clientInitializer;
+
+    // the listening channel and the thread accepting on it
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Thread thread;
+
+    // the admitted connections, in total and per address
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Integer> connectionsPerAddress = new ConcurrentHashMap<>();
+
+    // the token bucket of the accept rate,
+    // only accessed on the accept thread
+    private double tokens;
+    private long lastRefill;
+
+    // the counters
+    final LongAdder accepted           = new LongAdder();
+    final LongAdder rejectedFull       = new LongAdder();
+    final LongAdder rejectedPerAddress = new LongAdder();
+    final LongAdder rejectedOverload   = new LongAdder();
+    final LongAdder throttled          = new LongAdder();
+
+    public ClientAcceptor(CerveServer server) {
+        this.server = server;
+        this.logger = server.getLogger("ClientAcceptor");
+    }
+
+    /**
+     * Set the address to listen on.
+     *
+     * @param bindAddress The address, or null for the wildcard address.
+     * @return This.
+     */
+    public ClientAcceptor withBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+        return this;
+    }
+
+    /**
+     * Set the length of the listen backlog, takes effect when started.
+     *
+     * @param backlog The amount of connections the kernel queues.
+     * @return This.
+     */
+    public ClientAcceptor withBacklog(int backlog) {
+        if (backlog <= 0)
+            throw new IllegalArgumentException("backlog must be positive");
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of connected clients.
+     *
+     * @param maxConnections The limit.
+     * @return This.
+     */
+    public ClientAcceptor withMaxConnections(int maxConnections) {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("connection limit must be positive");
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Set the maximum amount of connections from one remote address.
+     *
+     * @param maxConnectionsPerAddress The limit.
+     * @return This.
+     */
+    public ClientAcceptor withMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        if (maxConnectionsPerAddress <= 0)
+            throw new IllegalArgumentException("connection limit must be positive");
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        return this;
+    }
+
+    /**
+     * Set the amount of connections accepted per second, bursts
+     * of up to a second worth of connections are accepted at once.
+     *
+     * @param acceptRate The rate.
+     * @return This.
+     */
+    public ClientAcceptor withAcceptRate(int acceptRate) {
+        if (acceptRate <= 0)
+            throw new IllegalArgumentException("accept rate must be positive");
+        this.acceptRate = acceptRate;
+        return this;
+    }
+
+    /**
+     * Set the check which decides if the server is overloaded, new
+     * connections are rejected while it returns true. Called for every
+     * connection on the accept thread, so it should be cheap.
+     *
+     * @param overloadCheck The check, or null for none.
+     * @return This.
+     */
+    public ClientAcceptor withOverloadCheck(BooleanSupplier overloadCheck) {
+        this.overloadCheck = overloadCheck;
+        return this;
+    }
+
+    /**
+     * Set the initializer called for every admitted client before
+     * its network handler is started, to set up protocol handlers.
+     *
+     * @param clientInitializer The initializer, or null for none.
+     * @return This.
+     */
+    public ClientAcceptor withClientInitializer(Consumer<ServerClient> clientInitializer) {
+        this.clientInitializer = clientInitializer;
+        return this;
+    }
+
+    /**
+     * Get the amount of connected clients.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Get the amount of connected clients from the given address.
+     *
+     * @param address The remote address.
+     * @return The amount of connections.
+     */
+    public int getConnectionCount(InetAddress address) {
+        return connectionsPerAddress.getOrDefault(address, 0);
+    }
+
+    /**
+     * Get the port this acceptor listens on.
+     *
+     * @return The port or -1 if not running.
+     */
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    public boolean isRunning() {
+        return serverChannel != null;
+    }
+
+    public Stats getStats() {
+        return new Stats(accepted.sum(), rejectedFull.sum(), rejectedPerAddress.sum(),
+                rejectedOverload.sum(), throttled.sum(), connections.get());
+    }
+
+    /**
+     * Bind to the port of the server and start accepting.
+     *
+     * @throws IllegalStateException If already running.
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null)
+            throw new IllegalStateException("acceptor is already running");
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(bindAddress, server.getPort()), backlog);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        tokens = acceptRate;
+        lastRefill = System.nanoTime();
+        serverChannel = channel;
+        thread = new Thread(() -> acceptLoop(channel), "CerveAcceptor-" + getLocalPort());
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Accepting clients on {}", channel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * Stop accepting and close the listening socket, connected
+     * clients are not disconnected.
+     */
+    public synchronized void stop() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel == null)
+            return;
+        serverChannel = null;
+
+        try {
+            // unblocks the accept thread
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the server socket: {}", e);
+        }
+
+        thread.interrupt();
+        thread = null;
+    }
+
+    private void acceptLoop(ServerSocketChannel channel) {
+        while (serverChannel == channel) {
+            SocketChannel accepted;
+            try {
+                throttle();
+                accepted = channel.accept();
+            } catch (ClosedChannelException | InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                if (serverChannel != channel)
+                    break;
+
+                // do not spin while out of descriptors
+                logger.warn("Failed to accept client: {}", e);
+                try {
+                    Thread.sleep(ACCEPT_ERROR_BACKOFF_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+
+                continue;
+            }
+
+            try {
+                admit(accepted);
+            } catch (Exception e) {
+                logger.warn("Failed to admit client: {}", e);
+                try {
+                    accepted.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    // wait for a token of the accept rate
+    private void throttle() throws InterruptedException {
+        int rate = acceptRate;
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens--;
+            return;
+        }
+
+        // leave the connections in the backlog meanwhile
+        throttled.increment();
+        long waitNanos = (long) ((1 - tokens) * 1e9 / rate);
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        tokens = 0;
+        lastRefill = System.nanoTime();
+    }
+
+    private void admit(SocketChannel channel) throws IOException {
+        Socket socket = channel.socket();
+        InetAddress address = socket.getInetAddress();
+
+        BooleanSupplier check = overloadCheck;
+        if (check != null && check.getAsBoolean()) {
+            rejectedOverload.increment();
+            reject(socket, "server overloaded");
+            return;
+        }
+
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejectedFull.increment();
+            reject(socket, "server full");
+            return;
+        }
+
+        if (connectionsPerAddress.merge(address, 1, Integer::sum) > maxConnectionsPerAddress) {
+            release(address);
+            rejectedPerAddress.increment();
+            reject(socket, "too many connections from " + address.getHostAddress());
+            return;
+        }
+
+        // the client is forgotten once, either when it disconnects
+        // or here if starting it failed, whichever comes first
+        AtomicBoolean forgotten = new AtomicBoolean();
+        ServerClient client;
+        try {
+            socket.setTcpNoDelay(true);
+            client = new ServerClient(server, socket);
+            client.addDisconnectHandler(reason -> {
+                if (forgotten.compareAndSet(false, true)) {
+                    server.removeClient(client);
+                    release(address);
+                }
+            });
+
+            Consumer<ServerClient> initializer = clientInitializer;
+            if (initializer != null)
+                initializer.accept(client);
+        } catch (Exception e) {
+            release(address);
+            throw e;
+        }
+
+        server.addClient(client);
+        boolean started = false;
+        try {
+            started = client.startNetworkHandler();
+        } finally {
+            if (!started) {
+                if (forgotten.compareAndSet(false, true)) {
+                    server.removeClient(client);
+                    release(address);
+                }
+                socket.close();
+            }
+        }
+
+        if (started)
+            accepted.increment();
+    }
+
+    private void reject(Socket socket, String reason) {
+        NetworkHandler.reject(server.getNetworkManager(), socket, reason);
+    }
+
+    // release the slot of a closed connection
+    private void release(InetAddress address) {
+        connections.decrementAndGet();
+        connectionsPerAddress.computeIfPresent(address, (__, count) -> count > 1 ? count - 1 : null);
+    }
+
+}
@@ -2,9 +2,22 @@ package coldsrc.cerve.client;
 
 import coldsrc.cerve.CerveServer;
 import coldsrc.cerve.network.BaseProtocol;
+import coldsrc.cerve.network.EncryptionHandshake;
 import coldsrc.cerve.network.NetworkHandler;
 import coldsrc.cerve.network.NetworkManager;
+import coldsrc.cerve.rpc.RpcEndpoint;
+import coldsrc.cerve.rpc.RpcException;
 import coldsrc.cerve.security.EncryptionProfile;
+import coldsrc.cerve.service.DeltaPackage;
+import coldsrc.cerve.service.PackageTransfer;
+import coldsrc.cerve.service.ServerService;
+import coldsrc.cerve.service.ServicePackage;
+import coldsrc.cerve.service.ServicePermissions;
+import coldsrc.cerve.store.PackageKey;
+import coldsrc.cerve.store.PackageStore;
+import coldsrc.cerve.store.StoredPackage;
+import coldsrc.cerve.transfer.BlockSignature;
+import coldsrc.cerve.transfer.PackageProtocol;
 import coldsrc.cerve.user.ServerUser;
 import coldsrc.cerve.util.Throwables;
 
@@ -14,6 +27,8 @@ import java.net.URL;
 import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
@@ -24,6 +39,12 @@ import java.util.zip.ZipEntry;
  */
 public class ServerClient extends NetworkHandler {
 
+    /**
+     * The reason sent for transfers failing to read a package, the
+     * details stay in the log as they may contain server paths.
+     */
+    static final String READ_FAILED = "failed to read package";
+
     /**
      * The server.
      */
@@ -34,9 +55,36 @@ public class ServerClient extends NetworkHandler {
      */
     private volatile ServerUser loggedInUser;
 
+    /**
+     * The running package transfers by transfer ID.
+     */
+    private final Map<Integer, PackageTransfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * The RPC endpoint of this connection.
+     */
+    private final RpcEndpoint rpc;
+
     public ServerClient(CerveServer server, Socket socket) {
-        super(server.getNetworkManager(), socket);
+        super(server.getNetworkManager(), socket, server.getTransport());
         this.server = server;
+
+        // queries
+        this.rpc = new RpcEndpoint(this);
+        rpc.serve(PackageProtocol.QUERY_PACKAGES, this::onQueryPackages);
+
+        // package transfers
+        setPacketHandler(PackageProtocol.SERVERBOUND_PACKAGE_REQUEST, packet -> onPackageRequest(packet.value()));
+        setPacketHandler(PackageProtocol.SERVERBOUND_DELTA_REQUEST, packet -> onDeltaRequest(packet.value()));
+        setPacketHandler(PackageProtocol.SERVERBOUND_PACKAGE_ACK, packet -> onPackageAck(packet.value()));
+        setPacketHandler(PackageProtocol.SERVERBOUND_PACKAGE_CANCEL, packet -> {
+            PackageTransfer transfer = transfers.remove(packet.value());
+            if (transfer != null) transfer.close();
+        });
+    }
+
+    public CerveServer getServer() {
+        return server;
     }
 
     /**
@@ -49,4 +97,206 @@ public class ServerClient extends NetworkHandler {
         return loggedInUser;
     }
 
+    /**
+     * Set the user this client is logged into,
+     * once it has been authenticated.
+     *
+     * @param user The user or null to log out.
+     */
+    public void setLoggedInUser(ServerUser user) {
+        this.loggedInUser = user;
+    }
+
+    public RpcEndpoint getRpc() {
+        return rpc;
+    }
+
+    /**
+     * Initiate the encryption handshake with this client, agreeing
+     * on the session key if the server uses key agreement. The client
+     * may resume with a ticket issued by the server in an earlier session.
+     *
+     * @return The handshake.
+     */
+    public EncryptionHandshake startEncryptionHandshake() {
+        return EncryptionHandshake.server(this, server.getServerEncryption(),
+                server.isKeyAgreement() ? server.getKeyPool() : null)
+                .withTickets(server.getSessionTickets())
+                .start();
+    }
+
+    /**
+     * Get the amount of running package transfers.
+     */
+    public int getTransferCount() {
+        return transfers.size();
+    }
+
+    // resolve the service of a request if the user may read its packages
+    private ServerService authorize(int transferId, String serviceName) {
+        ServerService service = server.getService(serviceName);
+        if (service == null) {
+            rejectTransfer(transferId, "unknown service " + serviceName);
+            return null;
+        }
+
+        ServerUser user = loggedInUser;
+        if (user == null || !service.resourcePermissions().hasPermission(user, ServicePermissions.READ_PACKAGES)) {
+            rejectTransfer(transferId, "permission denied");
+            return null;
+        }
+
+        return service;
+    }
+
+    private PackageProtocol.PackageInfo[] onQueryPackages(String serviceName) throws IOException {
+        ServerService service = server.getService(serviceName);
+        if (service == null)
+            throw new RpcException("unknown service " + serviceName);
+        ServerUser user = loggedInUser;
+        if (user == null || !service.resourcePermissions().hasPermission(user, ServicePermissions.QUERY_RESOURCES))
+            throw new RpcException("permission denied");
+
+        List<PackageProtocol.PackageInfo> infos = new ArrayList<>();
+        for (ServicePackage servicePackage : service.getPackages())
+            infos.add(new PackageProtocol.PackageInfo(servicePackage.getName(), servicePackage.getSize()));
+
+        // all stored versions, requested as name@version, listing
+        // them must not load every version into the cache
+        PackageStore store = server.getPackageStore();
+        if (store != null) {
+            for (PackageKey key : store.list(serviceName)) {
+                StoredPackage storedPackage = store.peek(key);
+                if (storedPackage != null)
+                    infos.add(new PackageProtocol.PackageInfo(key.name() + "@" + key.version(), storedPackage.getSize()));
+            }
+        }
+
+        return infos.toArray(new PackageProtocol.PackageInfo[0]);
+    }
+
+    private void onPackageRequest(PackageProtocol.PackageRequest request) {
+        int transferId = request.transferId();
+        ServerService service = authorize(transferId, request.service());
+        if (service == null)
+            return;
+
+        ServicePackage servicePackage = service.getPackage(request.name());
+        if (servicePackage == null) {
+            rejectTransfer(transferId, "unknown package " + request.name());
+            return;
+        }
+
+        try {
+            startTransfer(transferId, servicePackage, request.offset(), request.window());
+        } catch (IOException e) {
+            rejectTransfer(transferId, READ_FAILED);
+            server.clientLogger.warn("Failed to read package {} of service {}: {}", request.name(), request.service(), e);
+        }
+    }
+
+    private void onDeltaRequest(PackageProtocol.DeltaRequest request) {
+        int transferId = request.transferId();
+        ServerService service = authorize(transferId, request.service());
+        if (service == null)
+            return;
+
+        ServicePackage servicePackage = service.getPackage(request.name());
+        if (servicePackage == null) {
+            rejectTransfer(transferId, "unknown package " + request.name());
+            return;
+        }
+
+        try {
+            // prefer the signature of the old version
+            // on the server, it is likely cached
+            BlockSignature signature = request.signature();
+            ServicePackage basis = request.basis() != null ? service.getPackage(request.basis()) : null;
+            if (basis != null)
+                signature = service.getSignature(basis);
+            if (signature == null) {
+                rejectTransfer(transferId, "unknown basis " + request.basis());
+                return;
+            }
+
+            DeltaPackage delta = service.getDelta(servicePackage, signature);
+            startTransfer(transferId, delta, request.offset(), request.window());
+        } catch (IOException e) {
+            rejectTransfer(transferId, READ_FAILED);
+            server.clientLogger.warn("Failed to calculate delta of package {} of service {}: {}", request.name(), request.service(), e);
+        } catch (RuntimeException e) {
+            // an invalid signature of the client
+            rejectTransfer(transferId, "invalid delta request");
+            server.clientLogger.warn("Invalid delta request for package {} of service {}: {}", request.name(), request.service(), e);
+        }
+    }
+
+    private void startTransfer(int transferId, ServicePackage servicePackage, long offset, int requestedWindow) throws IOException {
+        long size = servicePackage.getSize();
+        if (offset < 0 || offset > size) {
+            rejectTransfer(transferId, "invalid offset " + offset + " for package of " + size + " bytes");
+            return;
+        }
+
+        // a request for a running transfer restarts it
+        PackageTransfer previous = transfers.remove(transferId);
+        if (previous != null)
+            previous.close();
+        if (transfers.size() >= PackageTransfer.MAX_TRANSFERS_PER_CLIENT) {
+            rejectTransfer(transferId, "too many transfers");
+            return;
+        }
+
+        int window = Math.max(1, Math.min(requestedWindow, PackageProtocol.MAX_WINDOW));
+        PackageTransfer transfer = new PackageTransfer(this, servicePackage, transferId,
+                size, offset, PackageProtocol.DEFAULT_CHUNK_SIZE, window);
+        transfers.put(transferId, transfer);
+        try {
+            transfer.start();
+        } catch (Throwable t) {
+            // only forget the transfer inserted here
+            if (transfers.remove(transferId, transfer))
+                transfer.close();
+            throw t;
+        }
+
+        if (transfer.isComplete())
+            transfers.remove(transferId, transfer);
+    }
+
+    private void onPackageAck(PackageProtocol.PackageAck ack) {
+        PackageTransfer transfer = transfers.get(ack.transferId());
+        if (transfer == null)
+            return;
+
+        transfer.acknowledge(ack.offset());
+        if (transfer.isComplete())
+            transfers.remove(ack.transferId(), transfer);
+    }
+
+    /**
+     * Called by a transfer which failed to send a chunk.
+     *
+     * @param transfer The transfer, already closed.
+     * @param e The error.
+     */
+    public void transferFailed(PackageTransfer transfer, Exception e) {
+        if (!transfers.remove(transfer.getTransferId(), transfer))
+            return;
+        rejectTransfer(transfer.getTransferId(), READ_FAILED);
+        server.clientLogger.warn("Failed to read package {}: {}", transfer.getPackage().getName(), e);
+    }
+
+    private void rejectTransfer(int transferId, String reason) {
+        send(PackageProtocol.CLIENTBOUND_PACKAGE_ERROR, new PackageProtocol.PackageError(transferId, reason));
+    }
+
+    @Override
+    protected void handleDisconnect(DisconnectReason reason) {
+        // the client resumes with a new request after reconnecting
+        for (PackageTransfer transfer : transfers.values())
+            transfer.close();
+        transfers.clear();
+    }
+
 }
@@ -0,0 +1,392 @@
+package coldsrc.cerve.service;
+
+import coldsrc.cerve.transfer.BlockSignature;
+import coldsrc.cerve.transfer.DeltaPatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The delta from an old version of a package to the current one,
+ * streamed to clients like a package, see {@link DeltaPatcher}.
+ *
+ * Only the operations are held in memory, literal bytes are read
+ * from the package when sent, so a delta costs little memory no
+ * matter how much of the package changed and can be cached.
+ */
+public class DeltaPackage implements ServicePackage {
+
+    /**
+     * The largest literal operation.
+     */
+    static final int MAX_LITERAL = 1 << 30;
+
+    /**
+     * The most blocks compared with the window at one position.
+     * Honest signatures stay far below, longer chains only come
+     * from signatures built to slow down the scan.
+     */
+    static final int MAX_CANDIDATES = 32;
+
+    /**
+     * The most distinct blocks sharing one weak checksum.
+     */
+    static final int MAX_WEAK_DUPLICATES = 16;
+
+    /**
+     * Calculate the delta from the version with the
+     * given signature to the given package.
+     *
+     * @param target The package.
+     * @param signature The signature of the old version.
+     * @return The delta.
+     */
+    public static DeltaPackage compute(ServicePackage target, BlockSignature signature) throws IOException {
+        return new Encoder(target, signature).encode();
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The package.
+     */
+    private final ServicePackage target;
+
+    // the segments of the delta, either encoded
+    // operations or literal ranges of the package
+    private final long[] starts;
+    private final byte[][] encoded;
+    private final long[] literalOffsets;
+    private final int[] literalLengths;
+
+    /**
+     * The size of the delta.
+     */
+    private final long size;
+
+    /**
+     * The amount of bytes copied from the old version.
+     */
+    private final long copiedBytes;
+
+    DeltaPackage(ServicePackage target, long[] starts, byte[][] encoded, long[] literalOffsets,
+                 int[] literalLengths, long size, long copiedBytes) {
+        this.target = target;
+        this.starts = starts;
+        this.encoded = encoded;
+        this.literalOffsets = literalOffsets;
+        this.literalLengths = literalLengths;
+        this.size = size;
+        this.copiedBytes = copiedBytes;
+    }
+
+    public ServicePackage getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the amount of bytes of the package
+     * the client copies from its old version.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    @Override
+    public String getName() {
+        return target.getName();
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) throws IOException {
+        if (position >= size)
+            return -1;
+
+        int index = Arrays.binarySearch(starts, position);
+        if (index < 0)
+            index = -index - 2;
+
+        int inSegment = (int) (position - starts[index]);
+        if (encoded[index] != null) {
+            int n = Math.min(len, encoded[index].length - inSegment);
+            System.arraycopy(encoded[index], inSegment, dst, off, n);
+            return n;
+        }
+
+        int n = Math.min(len, literalLengths[index] - inSegment);
+        int read = target.read(literalOffsets[index] + inSegment, dst, off, n);
+        if (read == -1)
+            throw new EOFException("package " + target.getName() + " changed while sending a delta");
+        return read;
+    }
+
+    // finds the blocks of the old version in the package
+    static final class Encoder {
+
+        final ServicePackage target;
+        final BlockSignature signature;
+        final int blockSize;
+
+        // the block indices by weak checksum, chained
+        final int[] heads;
+        final int[] next;
+
+        // the window of the package being scanned
+        final byte[] buf;
+        long bufStart;
+        int bufLength;
+        final CRC32C crc = new CRC32C();
+
+        // the last window hashed and its strong checksum, reused while
+        // the window does not change, like in runs of a single byte
+        long hashedPosition = -1;
+        long hashedStrong;
+
+        // the segments
+        final List<long[]> segments = new ArrayList<>();
+        final List<byte[]> segmentBytes = new ArrayList<>();
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(pending);
+        long deltaSize;
+        long copiedBytes;
+
+        // the pending copy run
+        int copyFirst = -1;
+        int copyCount;
+
+        Encoder(ServicePackage target, BlockSignature signature) {
+            this.target = target;
+            this.signature = signature;
+            this.blockSize = signature.blockSize();
+            if (!BlockSignature.isValidBlockSize(blockSize))
+                throw new IllegalArgumentException("invalid block size " + blockSize);
+
+            int count = signature.blockCount();
+            int tableSize = Integer.highestOneBit(Math.max(count, 8) - 1) << 2;
+            this.heads = new int[tableSize];
+            this.next = new int[count];
+            Arrays.fill(heads, -1);
+            for (int i = 0; i < count; i++)
+                index(i);
+
+            this.buf = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+        }
+
+        // append the given block to its chain, unless an equal
+        // block is indexed already or the chain is full
+        void index(int block) {
+            int weak = signature.weak()[block];
+            long strong = signature.strong()[block];
+            int slot = slot(weak);
+
+            int last = -1;
+            int length = 0;
+            int sameWeak = 0;
+            for (int i = heads[slot]; i != -1; i = next[i]) {
+                if (signature.weak()[i] == weak) {
+                    if (signature.strong()[i] == strong)
+                        return;
+                    if (++sameWeak >= MAX_WEAK_DUPLICATES)
+                        throw new IllegalArgumentException("implausible signature, more than " +
+                                MAX_WEAK_DUPLICATES + " blocks share a weak checksum");
+                }
+
+                last = i;
+                length++;
+            }
+
+            // the block is sent as literal bytes instead
+            if (length >= MAX_CANDIDATES)
+                return;
+
+            next[block] = -1;
+            if (last == -1) heads[slot] = block;
+            else next[last] = block;
+        }
+
+        int slot(int weak) {
+            int hash = weak * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (heads.length - 1);
+        }
+
+        DeltaPackage encode() throws IOException {
+            long size = target.getSize();
+            out.writeLong(size);
+            out.writeInt(blockSize);
+
+            MessageDigest digest = BlockSignature.newDigest();
+            long position = 0;
+            long literalStart = 0;
+            int weak = 0;
+            boolean rolling = false;
+            while (position + blockSize <= size) {
+                ensure(position, blockSize + 1, size);
+                int off = (int) (position - bufStart);
+                if (!rolling) {
+                    weak = BlockSignature.weakChecksum(buf, off, blockSize);
+                    rolling = true;
+                }
+
+                int block = find(weak, digest, off);
+                if (block != -1) {
+                    literal(literalStart, position - literalStart);
+                    copy(block);
+                    position += blockSize;
+                    literalStart = position;
+                    rolling = false;
+                    continue;
+                }
+
+                if (position + blockSize < size)
+                    weak = BlockSignature.roll(weak, buf[off], buf[off + blockSize], blockSize);
+                position++;
+            }
+
+            // checksum the rest of the package
+            while (bufStart + bufLength < size)
+                ensure(bufStart + bufLength, buf.length, size);
+            literal(literalStart, size - literalStart);
+            flushCopy();
+            out.writeByte(DeltaPatcher.OP_END);
+            out.writeInt((int) crc.getValue());
+            flushPending();
+
+            int count = segments.size();
+            long[] starts = new long[count];
+            byte[][] encoded = new byte[count][];
+            long[] literalOffsets = new long[count];
+            int[] literalLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                long[] segment = segments.get(i);
+                starts[i] = segment[0];
+                encoded[i] = segmentBytes.get(i);
+                literalOffsets[i] = segment[1];
+                literalLengths[i] = (int) segment[2];
+            }
+
+            return new DeltaPackage(target, starts, encoded, literalOffsets, literalLengths, deltaSize, copiedBytes);
+        }
+
+        // find the block matching the window at the given offset
+        int find(int weak, MessageDigest digest, int off) {
+            boolean hashed = false;
+            long strong = 0;
+            int candidates = 0;
+            for (int i = heads[slot(weak)]; i != -1 && candidates++ < MAX_CANDIDATES; i = next[i]) {
+                if (signature.weak()[i] != weak)
+                    continue;
+                if (!hashed) {
+                    strong = strongChecksum(digest, off);
+                    hashed = true;
+                }
+
+                if (signature.strong()[i] == strong) {
+                    // prefer continuing the current run
+                    if (copyFirst != -1 && i != copyFirst + copyCount) {
+                        int expected = copyFirst + copyCount;
+                        if (expected < next.length && signature.weak()[expected] == weak && signature.strong()[expected] == strong)
+                            return expected;
+                    }
+
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        // get the strong checksum of the window at the given offset
+        long strongChecksum(MessageDigest digest, int off) {
+            int last = (int) (hashedPosition - bufStart);
+            if (hashedPosition == -1 || last < 0 || !Arrays.equals(buf, last, last + blockSize, buf, off, off + blockSize))
+                hashedStrong = BlockSignature.strongChecksum(digest, buf, off, blockSize);
+            hashedPosition = bufStart + off;
+            return hashedStrong;
+        }
+
+        // make the given range of the package available in the
+        // window, loading up to the end as far as needed
+        void ensure(long position, int len, long size) throws IOException {
+            long end = Math.min(position + len, size);
+            if (end <= bufStart + bufLength)
+                return;
+
+            // keep the bytes from the position on
+            int keep = (int) Math.max(0, bufStart + bufLength - position);
+            System.arraycopy(buf, bufLength - keep, buf, 0, keep);
+            bufStart = bufStart + bufLength - keep;
+            bufLength = keep;
+
+            long wanted = Math.min(buf.length, size - bufStart);
+            while (bufLength < wanted) {
+                int read = target.read(bufStart + bufLength, buf, bufLength, (int) (wanted - bufLength));
+                if (read == -1)
+                    throw new EOFException("package " + target.getName() + " ended at " + (bufStart + bufLength));
+                crc.update(buf, bufLength, read);
+                bufLength += read;
+            }
+        }
+
+        void copy(int block) throws IOException {
+            if (copyFirst != -1 && block == copyFirst + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyFirst = block;
+                copyCount = 1;
+            }
+
+            copiedBytes += blockSize;
+        }
+
+        void flushCopy() throws IOException {
+            if (copyFirst == -1)
+                return;
+            out.writeByte(DeltaPatcher.OP_COPY);
+            out.writeInt(copyFirst);
+            out.writeInt(copyCount);
+            copyFirst = -1;
+        }
+
+        void literal(long offset, long len) throws IOException {
+            while (len > 0) {
+                int n = (int) Math.min(len, MAX_LITERAL);
+                flushCopy();
+                out.writeByte(DeltaPatcher.OP_LITERAL);
+                out.writeInt(n);
+                flushPending();
+
+                segments.add(new long[] { deltaSize, offset, n });
+                segmentBytes.add(null);
+                deltaSize += n;
+                offset += n;
+                len -= n;
+            }
+        }
+
+        void flushPending() throws IOException {
+            out.flush();
+            if (pending.size() == 0)
+                return;
+            byte[] bytes = pending.toByteArray();
+            pending.reset();
+            segments.add(new long[] { deltaSize, -1, 0 });
+            segmentBytes.add(bytes);
+            deltaSize += bytes.length;
+        }
+
+    }
+
+}
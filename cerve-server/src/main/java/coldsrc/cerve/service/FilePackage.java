@@ -0,0 +1,184 @@
+package coldsrc.cerve.service;
+
+import coldsrc.cerve.transfer.PackageProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+/**
+ * A package backed by a file. The file is opened and mapped on
+ * first use and read through the mapped segments, which does not
+ * need any locking between transfers. The file must not change
+ * while it is registered.
+ *
+ * Checksums are calculated from the memory mapped file, so sending
+ * the package to unencrypted connections never copies it into the
+ * heap, and are cached per chunk as chunks are aligned.
+ */
+public class FilePackage implements ServicePackage {
+
+    /**
+     * The name of the package.
+     */
+    private final String name;
+
+    /**
+     * The path to the file.
+     */
+    private final Path path;
+
+    /**
+     * The size of the mapped segments.
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    // the file, opened lazily
+    private volatile FileChannel channel;
+
+    // the mapped segments of the file, mapped lazily
+    private volatile MappedByteBuffer[] segments;
+
+    // the checksums of the aligned chunks, with bit
+    // 32 set once calculated, created lazily
+    private volatile AtomicLongArray chunkChecksums;
+
+    public FilePackage(String name, Path path) {
+        this.name = name;
+        this.path = path;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the open file channel, opening it if needed.
+     *
+     * @return The channel.
+     */
+    public FileChannel getChannel() throws IOException {
+        FileChannel channel = this.channel;
+        if (channel != null)
+            return channel;
+
+        synchronized (this) {
+            if (this.channel == null)
+                this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            return this.channel;
+        }
+    }
+
+    @Override
+    public FileChannel getFileChannel() throws IOException {
+        return getChannel();
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return getChannel().size();
+    }
+
+    @Override
+    public int checksum(long position, int len) throws IOException {
+        final int chunkSize = PackageProtocol.DEFAULT_CHUNK_SIZE;
+        long size = getSize();
+        boolean aligned = position % chunkSize == 0 &&
+                (len == chunkSize || position + len == size);
+        if (!aligned)
+            return calculateChecksum(position, len);
+
+        AtomicLongArray checksums = chunkChecksums;
+        if (checksums == null) {
+            synchronized (this) {
+                if ((checksums = chunkChecksums) == null)
+                    chunkChecksums = checksums = new AtomicLongArray((int) ((size + chunkSize - 1) / chunkSize));
+            }
+        }
+
+        int chunk = (int) (position / chunkSize);
+        long cached = checksums.get(chunk);
+        if ((cached & (1L << 32)) != 0)
+            return (int) cached;
+
+        int checksum = calculateChecksum(position, len);
+        checksums.set(chunk, (checksum & 0xFFFFFFFFL) | (1L << 32));
+        return checksum;
+    }
+
+    private int calculateChecksum(long position, int len) throws IOException {
+        CRC32C crc = new CRC32C();
+        while (len > 0) {
+            MappedByteBuffer segment = segment((int) (position / SEGMENT_SIZE));
+            int off = (int) (position % SEGMENT_SIZE);
+            int n = Math.min(len, segment.capacity() - off);
+            if (n <= 0)
+                throw new EOFException("package " + name + " ended at " + position);
+            crc.update(segment.slice(off, n));
+            position += n;
+            len -= n;
+        }
+
+        return (int) crc.getValue();
+    }
+
+    // get the mapped segment with the given index
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments == null || segments[index] == null) {
+            synchronized (this) {
+                FileChannel channel = getChannel();
+                segments = this.segments != null ? this.segments.clone() :
+                        new MappedByteBuffer[(int) ((channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE) + 1];
+                if (segments[index] == null) {
+                    long start = (long) index * SEGMENT_SIZE;
+                    segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(SEGMENT_SIZE, channel.size() - start));
+                }
+
+                // republish a copy, so the segments are never
+                // read from an array which is being modified
+                this.segments = segments;
+            }
+        }
+
+        return segments[index];
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) throws IOException {
+        long size = getSize();
+        if (position >= size)
+            return -1;
+
+        // read from the mapped segment, without a system call
+        MappedByteBuffer segment = segment((int) (position / SEGMENT_SIZE));
+        int segmentOffset = (int) (position % SEGMENT_SIZE);
+        int n = (int) Math.min(Math.min(len, size - position), segment.capacity() - segmentOffset);
+        segment.get(segmentOffset, dst, off, n);
+        return n;
+    }
+
+    /**
+     * Close the file, it is reopened on the next read.
+     */
+    public synchronized void close() throws IOException {
+        segments = null;
+        chunkChecksums = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+}
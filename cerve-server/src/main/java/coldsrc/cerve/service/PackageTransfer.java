@@ -0,0 +1,208 @@
+package coldsrc.cerve.service;
+
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.client.ServerClient;
+import coldsrc.cerve.network.BulkStream;
+import coldsrc.cerve.transfer.PackageProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A package being streamed to a client, see {@link PackageProtocol}.
+ *
+ * At most {@code window} chunks are sent ahead of the acknowledged
+ * offset. Chunks of file backed packages are sent to unencrypted
+ * connections with zero copy, otherwise every chunk is read into a
+ * pooled buffer which is released as soon as the chunk is queued, so
+ * a transfer holds at most a window of chunks in memory.
+ *
+ * Chunks are pulled by the client as a {@link BulkStream}, so running
+ * transfers are interleaved chunk by chunk and never hold back queries
+ * or acknowledgements.
+ */
+public class PackageTransfer implements BulkStream {
+
+    /**
+     * The maximum amount of transfers running on one client.
+     */
+    public static final int MAX_TRANSFERS_PER_CLIENT = 16;
+
+    /**
+     * The client.
+     */
+    private final ServerClient client;
+
+    /**
+     * The package.
+     */
+    private final ServicePackage servicePackage;
+
+    /**
+     * The transfer ID chosen by the client.
+     */
+    private final int transferId;
+
+    // the transfer parameters
+    private final long size;
+    private final int chunkSize;
+    private final int window;
+
+    // the offset of the next chunk to send
+    private long sendOffset;
+    // the offset up to which the client acknowledged
+    private long ackedOffset;
+    // if the transfer was closed
+    private boolean closed;
+
+    public PackageTransfer(ServerClient client, ServicePackage servicePackage, int transferId,
+                           long size, long offset, int chunkSize, int window) {
+        this.client = client;
+        this.servicePackage = servicePackage;
+        this.transferId = transferId;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.sendOffset = offset;
+        this.ackedOffset = offset;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public ServicePackage getPackage() {
+        return servicePackage;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public synchronized long getAcknowledgedOffset() {
+        return ackedOffset;
+    }
+
+    /**
+     * Check if the client acknowledged the whole package.
+     */
+    public synchronized boolean isComplete() {
+        return ackedOffset >= size;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Send the header and schedule the first window of chunks.
+     */
+    public void start() {
+        synchronized (this) {
+            client.send(PackageProtocol.CLIENTBOUND_PACKAGE_HEADER,
+                    new PackageProtocol.PackageHeader(transferId, size, chunkSize, sendOffset));
+        }
+
+        client.schedule(this);
+    }
+
+    /**
+     * Handle an acknowledgement from the client,
+     * scheduling chunks as the window opens.
+     *
+     * @param offset The offset up to which the client received the package.
+     */
+    public void acknowledge(long offset) {
+        synchronized (this) {
+            if (closed || offset <= ackedOffset || offset > sendOffset)
+                return;
+            ackedOffset = offset;
+        }
+
+        client.schedule(this);
+    }
+
+    /**
+     * Stop sending chunks.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    // if the window allows sending the chunk at the send offset
+    private boolean canSend() {
+        return !closed && sendOffset < size && sendOffset - ackedOffset < (long) window * chunkSize;
+    }
+
+    /**
+     * Send the chunk at the send offset.
+     *
+     * @return If the window allows sending another chunk.
+     */
+    @Override
+    public synchronized boolean sendNext() throws IOException {
+        if (!canSend())
+            return false;
+
+        // chunks are aligned to the chunk size, so the
+        // first chunk after resuming may be shorter
+        int len = (int) Math.min(chunkSize - sendOffset % chunkSize, size - sendOffset);
+
+        // file backed packages are sent to unencrypted
+        // connections without copying them into the heap
+        FileChannel file = servicePackage.getFileChannel();
+        if (file != null && sendFileChunk(file, len)) {
+            sendOffset += len;
+            return canSend();
+        }
+
+        byte[] buf = BufferPool.DEFAULT.acquireArray(chunkSize);
+        try {
+            readFully(sendOffset, buf, len);
+
+            // the chunk is copied into the frame,
+            // so the buffer can be released right away
+            client.send(PackageProtocol.CLIENTBOUND_PACKAGE_CHUNK, new PackageProtocol.PackageChunk(
+                    transferId, sendOffset, PackageProtocol.checksum(buf, 0, len), buf, len));
+            sendOffset += len;
+        } finally {
+            BufferPool.DEFAULT.releaseArray(buf);
+        }
+
+        return canSend();
+    }
+
+    @Override
+    public void failed(Exception e) {
+        close();
+        client.transferFailed(this, e);
+    }
+
+    // send the chunk at the send offset as a file region,
+    // laid out exactly like CLIENTBOUND_PACKAGE_CHUNK
+    private boolean sendFileChunk(FileChannel file, int len) throws IOException {
+        if (client.isCurrentlyEncrypted())
+            return false;
+
+        final long offset = sendOffset;
+        final int checksum = servicePackage.checksum(offset, len);
+        return client.sendFileRegion(PackageProtocol.CLIENTBOUND_PACKAGE_CHUNK,
+                (buf, __) -> buf.writeVarInt(transferId)
+                        .writeVarLong(offset)
+                        .writeInt(checksum)
+                        .writeVarInt(len),
+                file, offset, len);
+    }
+
+    private void readFully(long position, byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int read = servicePackage.read(position + off, buf, off, len - off);
+            if (read == -1)
+                throw new EOFException("package " + servicePackage.getName() + " ended at " + (position + off) + " of " + size + " bytes");
+            off += read;
+        }
+    }
+
+}
@@ -2,6 +2,17 @@ package coldsrc.cerve.service;
 
 import coldsrc.cerve.CerveServer;
 import coldsrc.cerve.permission.PermissionNamespace;
+import coldsrc.cerve.store.PackageKey;
+import coldsrc.cerve.store.PackageStore;
+import coldsrc.cerve.store.StoredPackage;
+import coldsrc.cerve.transfer.BlockSignature;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a service on the server providing resources to clients.
@@ -23,6 +34,23 @@ public class ServerService {
      */
     final PermissionNamespace resourcePermissions = new PermissionNamespace();
 
+    /**
+     * The amount of deltas and signatures cached per service.
+     */
+    public static final int DELTA_CACHE_SIZE = 32;
+
+    /**
+     * All packages provided by this service.
+     */
+    final Map<String, ServicePackage> packages = new ConcurrentHashMap<>();
+
+    // recently calculated deltas and signatures, usually
+    // many clients update from the same old version
+    record DeltaKey(Object content, long signature) { }
+    record SignatureKey(Object content, int blockSize) { }
+    final Map<DeltaKey, DeltaPackage> deltas = lruCache(DELTA_CACHE_SIZE);
+    final Map<SignatureKey, BlockSignature> signatures = lruCache(DELTA_CACHE_SIZE);
+
     public ServerService(CerveServer server, String name) {
         this.server = server;
         this.name = name;
@@ -36,4 +64,94 @@ public class ServerService {
         return resourcePermissions;
     }
 
+    /**
+     * Register the given package, replacing any
+     * package with the same name.
+     *
+     * @param servicePackage The package.
+     * @return This.
+     */
+    public ServerService withPackage(ServicePackage servicePackage) {
+        packages.put(servicePackage.getName(), servicePackage);
+        return this;
+    }
+
+    /**
+     * Get a package by name if present. Packages not registered
+     * with this service are looked up in the package store of the
+     * server, where the name may be suffixed with {@code @version}.
+     *
+     * @param name The package name.
+     * @return The package or null if absent.
+     */
+    public ServicePackage getPackage(String name) {
+        ServicePackage servicePackage = packages.get(name);
+        if (servicePackage != null)
+            return servicePackage;
+
+        PackageStore store = server.getPackageStore();
+        return store != null ? store.get(PackageKey.parse(this.name, name)) : null;
+    }
+
+    public ServicePackage removePackage(String name) {
+        return packages.remove(name);
+    }
+
+    public Collection<ServicePackage> getPackages() {
+        return Collections.unmodifiableCollection(packages.values());
+    }
+
+    /**
+     * Get the delta from the version with the given signature
+     * to the given package, calculating it if not cached.
+     *
+     * @param target The package.
+     * @param signature The signature of the old version.
+     * @return The delta.
+     */
+    public DeltaPackage getDelta(ServicePackage target, BlockSignature signature) throws IOException {
+        DeltaKey key = new DeltaKey(contentKey(target), signature.digest());
+        DeltaPackage delta = deltas.get(key);
+        if (delta == null) {
+            delta = DeltaPackage.compute(target, signature);
+            deltas.put(key, delta);
+        }
+
+        return delta;
+    }
+
+    /**
+     * Get the signature of the given package, calculating it if
+     * not cached, to calculate deltas from it for clients which
+     * name it as their old version.
+     *
+     * @param servicePackage The package.
+     * @return The signature.
+     */
+    public BlockSignature getSignature(ServicePackage servicePackage) throws IOException {
+        long size = servicePackage.getSize();
+        SignatureKey key = new SignatureKey(contentKey(servicePackage), BlockSignature.blockSizeFor(size));
+        BlockSignature signature = signatures.get(key);
+        if (signature == null) {
+            signature = BlockSignature.compute(servicePackage::read, size, key.blockSize());
+            signatures.put(key, signature);
+        }
+
+        return signature;
+    }
+
+    // stored packages are identified by their content
+    private static Object contentKey(ServicePackage servicePackage) {
+        return servicePackage instanceof StoredPackage stored ? stored.getHash() : servicePackage;
+    }
+
+    private static <K, V> Map<K, V> lruCache(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
 }
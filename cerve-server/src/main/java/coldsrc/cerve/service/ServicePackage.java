@@ -0,0 +1,76 @@
+package coldsrc.cerve.service;
+
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.transfer.PackageProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A package provided by a service, streamed to clients in chunks.
+ */
+public interface ServicePackage {
+
+    /**
+     * Get the name of the package.
+     *
+     * @return The name.
+     */
+    String getName();
+
+    /**
+     * Get the size of the package in bytes.
+     *
+     * @return The size.
+     */
+    long getSize() throws IOException;
+
+    /**
+     * Read bytes of the package at the given position. Must be
+     * thread safe, multiple transfers may read concurrently.
+     *
+     * @param position The position in the package.
+     * @param dst The array to read into.
+     * @param off The offset in the array.
+     * @param len The maximum amount of bytes to read.
+     * @return The amount of bytes read, or -1 at the end of the package.
+     */
+    int read(long position, byte[] dst, int off, int len) throws IOException;
+
+    /**
+     * Get the file containing exactly this package, allowing
+     * it to be sent to unencrypted connections without copying.
+     *
+     * @return The file or null if this package is not file backed.
+     */
+    default FileChannel getFileChannel() throws IOException {
+        return null;
+    }
+
+    /**
+     * Calculate the {@link PackageProtocol#checksum(byte[], int, int)}
+     * of the given range of this package.
+     *
+     * @param position The position in the package.
+     * @param len The length of the range.
+     * @return The checksum.
+     */
+    default int checksum(long position, int len) throws IOException {
+        byte[] buf = BufferPool.DEFAULT.acquireArray(len);
+        try {
+            int off = 0;
+            while (off < len) {
+                int read = read(position + off, buf, off, len - off);
+                if (read == -1)
+                    throw new EOFException("package " + getName() + " ended at " + (position + off));
+                off += read;
+            }
+
+            return PackageProtocol.checksum(buf, 0, len);
+        } finally {
+            BufferPool.DEFAULT.releaseArray(buf);
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package coldsrc.cerve.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stored package whose content is held in memory
+ * by a {@link CachingPackageStore}.
+ */
+public class CachedPackage extends StoredPackage {
+
+    /**
+     * The content, off heap and read only.
+     */
+    private final ByteBuffer data;
+
+    CachedPackage(StoredPackage storedPackage, ByteBuffer data) {
+        super(storedPackage.getKey(), storedPackage.getHash(), storedPackage.getBlob());
+        this.data = data;
+    }
+
+    @Override
+    public long getSize() {
+        return data.capacity();
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) {
+        if (position >= data.capacity())
+            return -1;
+        int n = (int) Math.min(len, data.capacity() - position);
+        data.get((int) position, dst, off, n);
+        return n;
+    }
+
+}
@@ -0,0 +1,394 @@
+package coldsrc.cerve.store;
+
+import coldsrc.cerve.buffer.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the content of frequently requested packages of another
+ * store in off heap memory, bounded by the total amount of bytes.
+ *
+ * Entries are kept per content hash, so versions with the same
+ * content share one entry. Eviction is a segmented LRU: new entries
+ * start in the probation segment and move to the protected segment
+ * when hit again. A new entry is only admitted if it was requested
+ * more often recently than the entries it would evict (TinyLFU),
+ * so a scan over many cold packages does not flush the cache.
+ *
+ * Every entry is charged to the service it was first loaded for,
+ * and services can be limited to a quota of cached bytes. File
+ * backed packages are still sent from their file to unencrypted
+ * connections, the cached content serves all other reads.
+ */
+public class CachingPackageStore implements PackageStore {
+
+    /**
+     * The share of the cache reserved for the protected segment.
+     */
+    public static final double PROTECTED_SHARE = 0.8;
+
+    /**
+     * A snapshot of the cache counters.
+     *
+     * @param hits The amount of lookups served from memory.
+     * @param misses The amount of lookups served from the store.
+     * @param admissions The amount of entries added.
+     * @param rejections The amount of entries not added because colder than their victims or too large.
+     * @param evictions The amount of entries evicted.
+     * @param bytes The amount of cached bytes.
+     * @param entries The amount of cached entries.
+     */
+    public record Stats(long hits, long misses, long admissions, long rejections,
+                        long evictions, long bytes, int entries) {
+        public double hitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    // a cached content
+    static final class Entry {
+        final String hash;
+        final String service;
+        final ByteBuffer data;
+        boolean protectedSegment;
+
+        Entry(String hash, String service, ByteBuffer data) {
+            this.hash = hash;
+            this.service = service;
+            this.data = data;
+        }
+
+        int size() {
+            return data.capacity();
+        }
+    }
+
+    /* -------------------------------------- */
+
+    /**
+     * The store to cache.
+     */
+    private final PackageStore store;
+
+    // the byte limits
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+    private volatile int maxEntryBytes;
+
+    /**
+     * The quotas by service name.
+     */
+    private final Map<String, Long> quotas = new ConcurrentHashMap<>();
+
+    // the segments in LRU order, guarded by this
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> serviceBytes = new HashMap<>();
+    private final Set<String> loading = new HashSet<>();
+    private final FrequencySketch sketch;
+    private long probationBytes;
+    private long protectedBytes;
+
+    // counters
+    final LongAdder hits       = new LongAdder();
+    final LongAdder misses     = new LongAdder();
+    final LongAdder admissions = new LongAdder();
+    final LongAdder rejections = new LongAdder();
+    final LongAdder evictions  = new LongAdder();
+
+    /**
+     * Create a new cache in front of the given store.
+     *
+     * @param store The store.
+     * @param maxBytes The maximum amount of bytes to cache.
+     */
+    public CachingPackageStore(PackageStore store, long maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("cache size must be positive");
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+        this.maxEntryBytes = (int) Math.min(Integer.MAX_VALUE, maxBytes / 4);
+
+        // assume entries of about 64K on average
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes >> 16)));
+    }
+
+    public PackageStore getStore() {
+        return store;
+    }
+
+    /**
+     * Set the size of the largest package to cache.
+     *
+     * @param maxEntryBytes The size in bytes.
+     * @return This.
+     */
+    public CachingPackageStore withMaxEntrySize(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        return this;
+    }
+
+    /**
+     * Limit the amount of bytes cached for the given service.
+     *
+     * @param service The service name.
+     * @param maxBytes The quota in bytes, or a negative value for no quota.
+     * @return This.
+     */
+    public CachingPackageStore withQuota(String service, long maxBytes) {
+        if (maxBytes < 0) quotas.remove(service);
+        else quotas.put(service, maxBytes);
+        return this;
+    }
+
+    /**
+     * Get a snapshot of the counters.
+     *
+     * @return The stats.
+     */
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), admissions.sum(), rejections.sum(), evictions.sum(),
+                probationBytes + protectedBytes, probation.size() + protectedEntries.size());
+    }
+
+    /**
+     * Get the amount of bytes cached for the given service.
+     */
+    public synchronized long getCachedBytes(String service) {
+        return serviceBytes.getOrDefault(service, 0L);
+    }
+
+    @Override
+    public StoredPackage put(PackageKey key, InputStream data) throws IOException {
+        return store.put(key, data);
+    }
+
+    @Override
+    public StoredPackage get(PackageKey key) {
+        StoredPackage storedPackage = store.get(key);
+        if (storedPackage == null)
+            return null;
+
+        String hash = storedPackage.getHash();
+        long size;
+        synchronized (this) {
+            sketch.increment(hash);
+            Entry entry = lookup(hash);
+            if (entry != null) {
+                hits.increment();
+                return new CachedPackage(storedPackage, entry.data);
+            }
+
+            misses.increment();
+            try {
+                size = storedPackage.getSize();
+            } catch (IOException e) {
+                return storedPackage;
+            }
+
+            // check if it would be admitted before reading it
+            if (loading.contains(hash))
+                return storedPackage;
+            if (!makeRoom(key.service(), size, sketch.frequency(hash), false)) {
+                rejections.increment();
+                return storedPackage;
+            }
+
+            loading.add(hash);
+        }
+
+        // read the content outside the lock
+        ByteBuffer data = null;
+        try {
+            data = load(storedPackage, (int) size);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (this) {
+            loading.remove(hash);
+            if (data == null)
+                return storedPackage;
+
+            if (!makeRoom(key.service(), size, sketch.frequency(hash), true)) {
+                rejections.increment();
+                return storedPackage;
+            }
+
+            Entry entry = new Entry(hash, key.service(), data.asReadOnlyBuffer());
+            probation.put(hash, entry);
+            probationBytes += size;
+            serviceBytes.merge(entry.service, size, Long::sum);
+            admissions.increment();
+            return new CachedPackage(storedPackage, entry.data);
+        }
+    }
+
+    @Override
+    public StoredPackage peek(PackageKey key) {
+        return store.peek(key);
+    }
+
+    @Override
+    public boolean remove(PackageKey key) throws IOException {
+        return store.remove(key);
+    }
+
+    @Override
+    public List<PackageKey> list(String service) {
+        return store.list(service);
+    }
+
+    /**
+     * Drop all cached entries.
+     */
+    public synchronized void clear() {
+        probation.clear();
+        protectedEntries.clear();
+        serviceBytes.clear();
+        probationBytes = 0;
+        protectedBytes = 0;
+    }
+
+    // read the whole package into a direct buffer
+    private static ByteBuffer load(StoredPackage storedPackage, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(size);
+        FileChannel channel = storedPackage.getFileChannel();
+        if (channel != null) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) == -1)
+                    throw new EOFException("package " + storedPackage + " ended at " + data.position());
+            }
+        } else {
+            byte[] buf = BufferPool.DEFAULT.acquireArray(64 * 1024);
+            try {
+                while (data.hasRemaining()) {
+                    int read = storedPackage.read(data.position(), buf, 0, Math.min(buf.length, data.remaining()));
+                    if (read == -1)
+                        throw new EOFException("package " + storedPackage + " ended at " + data.position());
+                    data.put(buf, 0, read);
+                }
+            } finally {
+                BufferPool.DEFAULT.releaseArray(buf);
+            }
+        }
+
+        return data.flip();
+    }
+
+    // find a cached entry, promoting it on a hit
+    private Entry lookup(String hash) {
+        Entry entry = protectedEntries.get(hash);
+        if (entry != null)
+            return entry;
+
+        entry = probation.remove(hash);
+        if (entry == null)
+            return null;
+
+        // hit again, move to the protected segment
+        probationBytes -= entry.size();
+        protectedEntries.put(hash, entry);
+        protectedBytes += entry.size();
+        entry.protectedSegment = true;
+
+        // demote the least recently used protected
+        // entries back into probation if it is too large
+        Iterator<Entry> iterator = protectedEntries.values().iterator();
+        while (protectedBytes > maxProtectedBytes && iterator.hasNext()) {
+            Entry demoted = iterator.next();
+            if (demoted == entry)
+                break;
+            iterator.remove();
+            protectedBytes -= demoted.size();
+            demoted.protectedSegment = false;
+            probation.put(demoted.hash, demoted);
+            probationBytes += demoted.size();
+        }
+
+        return entry;
+    }
+
+    /*
+     * Check if a new entry of the given size fits, evicting the least
+     * recently used entries which were requested less often than the
+     * new one if needed. With evict false nothing is changed.
+     */
+    private boolean makeRoom(String service, long size, int frequency, boolean evict) {
+        if (size > maxEntryBytes)
+            return false;
+
+        // make room in the quota of the service
+        Long quota = quotas.get(service);
+        long serviceNeeded = 0;
+        if (quota != null) {
+            if (size > quota)
+                return false;
+            serviceNeeded = serviceBytes.getOrDefault(service, 0L) + size - quota;
+        }
+
+        long needed = probationBytes + protectedBytes + size - maxBytes;
+        if (needed <= 0 && serviceNeeded <= 0)
+            return true;
+
+        // collect victims, probation first
+        List<Entry> victims = new ArrayList<>();
+        for (Map<String, Entry> segment : List.of(probation, protectedEntries)) {
+            for (Entry victim : segment.values()) {
+                if (needed <= 0 && serviceNeeded <= 0)
+                    break;
+
+                // while over quota only evict entries of the service
+                if (serviceNeeded > 0 && !victim.service.equals(service))
+                    continue;
+                if (sketch.frequency(victim.hash) >= frequency)
+                    return false;
+
+                victims.add(victim);
+                needed -= victim.size();
+                if (victim.service.equals(service))
+                    serviceNeeded -= victim.size();
+            }
+        }
+
+        if (needed > 0 || serviceNeeded > 0)
+            return false;
+
+        if (evict) {
+            for (Entry victim : victims)
+                evict(victim);
+        }
+
+        return true;
+    }
+
+    private void evict(Entry entry) {
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.hash);
+            protectedBytes -= entry.size();
+        } else {
+            probation.remove(entry.hash);
+            probationBytes -= entry.size();
+        }
+
+        serviceBytes.computeIfPresent(entry.service, (__, bytes) -> bytes == entry.size() ? null : bytes - entry.size());
+        evictions.increment();
+    }
+
+}
@@ -0,0 +1,329 @@
+package coldsrc.cerve.store;
+
+import coldsrc.cerve.buffer.BufferPool;
+import coldsrc.cerve.service.FilePackage;
+import coldsrc.cerve.util.Throwables;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Package store on disk, storing every distinct content once as a
+ * blob named by its SHA-256 hash, so identical package versions of
+ * any services share one file.
+ *
+ * The index of all versions is kept in memory and persisted as an
+ * append only log, which is replayed on open and compacted by
+ * {@link #collectGarbage()}. Blobs are read through memory mapped
+ * segments, see {@link FilePackage}.
+ *
+ * Layout: {@code index.log}, {@code blobs/<first 2 hash chars>/<hash>}
+ * and {@code tmp/} for uploads in progress.
+ */
+public class DiskPackageStore implements PackageStore {
+
+    static final String INDEX_FILE = "index.log";
+    static final String BLOB_DIRECTORY = "blobs";
+    static final String TEMP_DIRECTORY = "tmp";
+
+    // index log operations
+    static final String OP_PUT = "+";
+    static final String OP_REMOVE = "-";
+
+    /**
+     * Open or create the store in the given directory.
+     *
+     * @param root The directory.
+     * @return The store.
+     */
+    public static DiskPackageStore open(Path root) throws IOException {
+        DiskPackageStore store = new DiskPackageStore(root);
+        store.load();
+        return store;
+    }
+
+    /* -------------------------------------- */
+
+    // a version in the index, the sequence
+    // orders versions by the time they were put
+    record Entry(StoredPackage storedPackage, long sequence) { }
+
+    /**
+     * The store directory.
+     */
+    private final Path root;
+
+    /**
+     * All versions by key.
+     */
+    private final Map<PackageKey, Entry> versions = new ConcurrentHashMap<>();
+
+    /**
+     * The latest version of every package, by version-less key.
+     */
+    private final Map<PackageKey, Entry> latest = new ConcurrentHashMap<>();
+
+    /**
+     * The blobs by hash, shared by all versions with that content.
+     */
+    private final Map<String, FilePackage> blobs = new ConcurrentHashMap<>();
+
+    // guards the index log and modifications
+    private final Object writeLock = new Object();
+    private BufferedWriter indexWriter;
+    private long nextSequence;
+
+    DiskPackageStore(Path root) {
+        this.root = root;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    private Path blobPath(String hash) {
+        return root.resolve(BLOB_DIRECTORY).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private FilePackage blob(String hash) {
+        return blobs.computeIfAbsent(hash, __ -> new FilePackage(hash, blobPath(hash)));
+    }
+
+    // replay the index log
+    private void load() throws IOException {
+        Files.createDirectories(root.resolve(BLOB_DIRECTORY));
+        Files.createDirectories(root.resolve(TEMP_DIRECTORY));
+
+        // clean up interrupted uploads
+        try (Stream<Path> temp = Files.list(root.resolve(TEMP_DIRECTORY))) {
+            for (Path path : (Iterable<Path>) temp::iterator)
+                Files.deleteIfExists(path);
+        }
+
+        Path indexFile = root.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", -1);
+                    // skip lines torn by a crash
+                    if (parts.length < 4)
+                        continue;
+
+                    PackageKey key = new PackageKey(parts[1], parts[2], parts[3]);
+                    if (OP_PUT.equals(parts[0]) && parts.length == 5 && Files.exists(blobPath(parts[4]))) {
+                        index(key, parts[4]);
+                    } else if (OP_REMOVE.equals(parts[0])) {
+                        unindex(key);
+                    }
+                }
+            }
+        }
+
+        indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private StoredPackage index(PackageKey key, String hash) {
+        Entry entry = new Entry(new StoredPackage(key, hash, blob(hash)), nextSequence++);
+        versions.put(key, entry);
+        latest.put(key.latest(), entry);
+        return entry.storedPackage();
+    }
+
+    private boolean unindex(PackageKey key) {
+        Entry removed = versions.remove(key);
+        if (removed == null)
+            return false;
+
+        // fall back to the most recently put remaining version
+        PackageKey latestKey = key.latest();
+        if (latest.get(latestKey) == removed) {
+            Entry next = null;
+            for (Entry entry : versions.values()) {
+                if (entry.storedPackage().getKey().latest().equals(latestKey) &&
+                        (next == null || entry.sequence() > next.sequence()))
+                    next = entry;
+            }
+
+            if (next != null) latest.put(latestKey, next);
+            else latest.remove(latestKey);
+        }
+
+        return true;
+    }
+
+    private void appendIndex(String op, PackageKey key, String hash) throws IOException {
+        indexWriter.write(op + "\t" + key.service() + "\t" + key.name() + "\t" + key.version() +
+                (hash != null ? "\t" + hash : "") + "\n");
+        indexWriter.flush();
+    }
+
+    private static void validate(PackageKey key) {
+        if (key.version() == null)
+            throw new IllegalArgumentException("package key " + key + " has no version");
+        for (String part : new String[] { key.service(), key.name(), key.version() }) {
+            if (part.isEmpty() || part.indexOf('\t') != -1 || part.indexOf('\n') != -1 || part.indexOf('\r') != -1)
+                throw new IllegalArgumentException("invalid package key " + key);
+        }
+    }
+
+    @Override
+    public StoredPackage put(PackageKey key, InputStream data) throws IOException {
+        validate(key);
+
+        // write to a temporary file while hashing
+        Path temp = Files.createTempFile(root.resolve(TEMP_DIRECTORY), "upload", ".tmp");
+        String hash;
+        byte[] buf = BufferPool.DEFAULT.acquireArray(64 * 1024);
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            int read;
+            while ((read = data.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+                out.write(buf, 0, read);
+            }
+
+            hash = HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            Files.deleteIfExists(temp);
+            Throwables.sneakyThrow(e);
+            return null;
+        } finally {
+            BufferPool.DEFAULT.releaseArray(buf);
+        }
+
+        synchronized (writeLock) {
+            Path blobPath = blobPath(hash);
+            if (Files.exists(blobPath)) {
+                // identical content is already stored
+                Files.delete(temp);
+            } else {
+                Files.createDirectories(blobPath.getParent());
+                Files.move(temp, blobPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            appendIndex(OP_PUT, key, hash);
+            return index(key, hash);
+        }
+    }
+
+    @Override
+    public StoredPackage get(PackageKey key) {
+        Entry entry = key.version() == null ? latest.get(key) : versions.get(key);
+        return entry != null ? entry.storedPackage() : null;
+    }
+
+    @Override
+    public boolean remove(PackageKey key) throws IOException {
+        validate(key);
+        synchronized (writeLock) {
+            if (!versions.containsKey(key))
+                return false;
+            appendIndex(OP_REMOVE, key, null);
+            return unindex(key);
+        }
+    }
+
+    @Override
+    public List<PackageKey> list(String service) {
+        List<PackageKey> list = new ArrayList<>();
+        for (PackageKey key : versions.keySet())
+            if (key.service().equals(service))
+                list.add(key);
+        return list;
+    }
+
+    /**
+     * Get the amount of distinct blobs referenced by the index.
+     */
+    public int getBlobCount() {
+        Set<String> hashes = new HashSet<>();
+        for (Entry entry : versions.values())
+            hashes.add(entry.storedPackage().getHash());
+        return hashes.size();
+    }
+
+    /**
+     * Delete all blobs no version refers to anymore and compact
+     * the index log. Removed versions must not be transferred
+     * anymore when this is called.
+     *
+     * @return The amount of deleted blobs.
+     */
+    public int collectGarbage() throws IOException {
+        synchronized (writeLock) {
+            Set<String> referenced = new HashSet<>();
+            List<Entry> entries = new ArrayList<>(versions.values());
+            entries.sort((a, b) -> Long.compare(a.sequence(), b.sequence()));
+            for (Entry entry : entries)
+                referenced.add(entry.storedPackage().getHash());
+
+            // rewrite the index with the live versions only,
+            // in order so the latest versions stay the same
+            Path indexFile = root.resolve(INDEX_FILE);
+            Path compacted = root.resolve(TEMP_DIRECTORY).resolve(INDEX_FILE);
+            try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (Entry entry : entries) {
+                    PackageKey key = entry.storedPackage().getKey();
+                    writer.write(OP_PUT + "\t" + key.service() + "\t" + key.name() + "\t" + key.version() +
+                            "\t" + entry.storedPackage().getHash() + "\n");
+                }
+            }
+
+            indexWriter.close();
+            Files.move(compacted, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexWriter = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+            // delete unreferenced blobs
+            int deleted = 0;
+            try (Stream<Path> files = Files.walk(root.resolve(BLOB_DIRECTORY))) {
+                for (Path path : (Iterable<Path>) files::iterator) {
+                    if (!Files.isRegularFile(path))
+                        continue;
+                    String hash = path.getFileName().toString();
+                    if (referenced.contains(hash))
+                        continue;
+
+                    FilePackage blob = blobs.remove(hash);
+                    if (blob != null)
+                        blob.close();
+                    Files.delete(path);
+                    deleted++;
+                }
+            }
+
+            return deleted;
+        }
+    }
+
+    /**
+     * Close the index log and all blobs.
+     */
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            indexWriter.close();
+            for (FilePackage blob : blobs.values())
+                blob.close();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package coldsrc.cerve.store;
+
+/**
+ * Approximates how often keys were accessed recently, used to decide
+ * if a new cache entry is worth evicting another one (TinyLFU).
+ *
+ * A count-min sketch of 4 bit counters, 16 packed into each long.
+ * Every key maps to one counter in each of 4 rows and its frequency
+ * is the minimum of them. Once the amount of recorded accesses
+ * reaches the sample size all counters are halved, so the sketch
+ * forgets old popularity. Not thread safe.
+ */
+final class FrequencySketch {
+
+    // the mask to halve all counters in a long
+    static final long RESET_MASK = 0x7777777777777777L;
+
+    // the seeds of the rows
+    static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /* -------------------------------------- */
+
+    // the counters
+    private final long[] table;
+    private final int tableMask;
+
+    // the amount of accesses before halving
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * Create a new sketch.
+     *
+     * @param expectedEntries The amount of entries expected to be tracked.
+     */
+    FrequencySketch(int expectedEntries) {
+        int length = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    // the table index of the counter for the given row
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    // the bit offset of the counter for the given row in its long
+    private static int offsetOf(int hash, int row) {
+        return (((hash >>> (row << 3)) & 3) << 2 | row) << 2;
+    }
+
+    /**
+     * Record an access to the given key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            int offset = offsetOf(hash, row);
+            if (((table[index] >>> offset) & 0xF) != 0xF) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    /**
+     * Get the estimated access frequency of the given key, 0 to 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = 0xF;
+        for (int row = 0; row < 4; row++) {
+            int count = (int) (table[indexOf(hash, row)] >>> offsetOf(hash, row)) & 0xF;
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    // halve all counters
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size >>>= 1;
+    }
+
+}
@@ -0,0 +1,40 @@
+package coldsrc.cerve.store;
+
+/**
+ * Identifies a version of a package of a service.
+ *
+ * @param service The name of the service.
+ * @param name The name of the package.
+ * @param version The version, or null to refer to the latest version.
+ */
+public record PackageKey(String service, String name, String version) {
+
+    /**
+     * Parse a package reference as used in package requests,
+     * either {@code name@version} or just {@code name} for
+     * the latest version.
+     *
+     * @param service The name of the service.
+     * @param reference The package reference.
+     * @return The key.
+     */
+    public static PackageKey parse(String service, String reference) {
+        int index = reference.lastIndexOf('@');
+        if (index == -1)
+            return new PackageKey(service, reference, null);
+        return new PackageKey(service, reference.substring(0, index), reference.substring(index + 1));
+    }
+
+    /**
+     * Get the key referring to the latest version of this package.
+     */
+    public PackageKey latest() {
+        return version == null ? this : new PackageKey(service, name, null);
+    }
+
+    @Override
+    public String toString() {
+        return service + ":" + name + (version != null ? "@" + version : "");
+    }
+
+}
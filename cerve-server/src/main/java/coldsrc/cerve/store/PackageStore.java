@@ -0,0 +1,67 @@
+package coldsrc.cerve.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Stores the package versions of all services.
+ */
+public interface PackageStore {
+
+    /**
+     * Store the given data as a package version, replacing
+     * the version if it already exists. The new version
+     * becomes the latest version of the package.
+     *
+     * @param key The key, including the version.
+     * @param data The package data, read until the end.
+     * @return The stored package.
+     */
+    StoredPackage put(PackageKey key, InputStream data) throws IOException;
+
+    default StoredPackage put(PackageKey key, Path file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file)) {
+            return put(key, stream);
+        }
+    }
+
+    /**
+     * Get a stored package version.
+     *
+     * @param key The key, without a version for the latest version.
+     * @return The package or null if absent.
+     */
+    StoredPackage get(PackageKey key);
+
+    /**
+     * Get a stored package version to read its metadata, like the
+     * size. Unlike {@link #get(PackageKey)} it does not count as a
+     * request, caches neither record it nor load the content.
+     *
+     * @param key The key, without a version for the latest version.
+     * @return The package or null if absent.
+     */
+    default StoredPackage peek(PackageKey key) {
+        return get(key);
+    }
+
+    /**
+     * Remove a stored package version.
+     *
+     * @param key The key, including the version.
+     * @return If the version was present.
+     */
+    boolean remove(PackageKey key) throws IOException;
+
+    /**
+     * List all stored package versions of a service.
+     *
+     * @param service The name of the service.
+     * @return The keys.
+     */
+    List<PackageKey> list(String service);
+
+}
@@ -0,0 +1,79 @@
+package coldsrc.cerve.store;
+
+import coldsrc.cerve.service.FilePackage;
+import coldsrc.cerve.service.ServicePackage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A package version in a {@link PackageStore}. Versions with the
+ * same content share one blob, and with it one file mapping
+ * and one checksum cache.
+ */
+public class StoredPackage implements ServicePackage {
+
+    /**
+     * The key of the version.
+     */
+    private final PackageKey key;
+
+    /**
+     * The hex encoded SHA-256 hash of the content.
+     */
+    private final String hash;
+
+    /**
+     * The blob holding the content.
+     */
+    private final FilePackage blob;
+
+    public StoredPackage(PackageKey key, String hash, FilePackage blob) {
+        this.key = key;
+        this.hash = hash;
+        this.blob = blob;
+    }
+
+    public PackageKey getKey() {
+        return key;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public FilePackage getBlob() {
+        return blob;
+    }
+
+    @Override
+    public String getName() {
+        return key.name();
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return blob.getSize();
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int off, int len) throws IOException {
+        return blob.read(position, dst, off, len);
+    }
+
+    @Override
+    public FileChannel getFileChannel() throws IOException {
+        return blob.getFileChannel();
+    }
+
+    @Override
+    public int checksum(long position, int len) throws IOException {
+        return blob.checksum(position, len);
+    }
+
+    @Override
+    public String toString() {
+        return key + " (" + hash + ")";
+    }
+
+}
@@ -0,0 +1,160 @@
+package coldsrc.cerve.service;
+
+import coldsrc.cerve.transfer.BlockSignature;
+import coldsrc.cerve.transfer.DeltaPatcher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaPackageTest {
+
+    @TempDir
+    Path dir;
+
+    record BytesPackage(byte[] bytes) implements ServicePackage {
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public long getSize() {
+            return bytes.length;
+        }
+
+        @Override
+        public int read(long position, byte[] dst, int off, int len) {
+            if (position >= bytes.length)
+                return -1;
+            int n = (int) Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, (int) position, dst, off, n);
+            return n;
+        }
+    }
+
+    static BlockSignature signature(byte[] bytes) throws IOException {
+        BytesPackage pkg = new BytesPackage(bytes);
+        return BlockSignature.compute(pkg::read, bytes.length, BlockSignature.blockSizeFor(bytes.length));
+    }
+
+    static byte[] bytes(ServicePackage pkg) throws IOException {
+        byte[] bytes = new byte[(int) pkg.getSize()];
+        for (int position = 0; position < bytes.length; )
+            position += pkg.read(position, bytes, position, bytes.length - position);
+        return bytes;
+    }
+
+    // encodes the delta from old to new and applies it to old
+    byte[] roundTrip(byte[] oldVersion, byte[] newVersion) throws IOException {
+        DeltaPackage delta = DeltaPackage.compute(new BytesPackage(newVersion), signature(oldVersion));
+        Files.write(dir.resolve("old"), oldVersion);
+        Files.write(dir.resolve("delta"), bytes(delta));
+
+        try (FileChannel basis = FileChannel.open(dir.resolve("old"));
+             FileChannel deltaChannel = FileChannel.open(dir.resolve("delta"));
+             FileChannel destination = FileChannel.open(dir.resolve("new"), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            assertEquals(newVersion.length, DeltaPatcher.apply(basis, deltaChannel, destination));
+        }
+
+        return Files.readAllBytes(dir.resolve("new"));
+    }
+
+    static byte[] random(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void roundTripWithEdits() throws IOException {
+        Random random = new Random(1);
+        byte[] oldVersion = random(random, 3 << 20);
+        Arrays.fill(oldVersion, 0, 500_000, (byte) 0);
+
+        // flip some bytes, insert a range and drop another
+        byte[] edited = oldVersion.clone();
+        for (int i = 0; i < 50; i++)
+            edited[random.nextInt(edited.length)] ^= 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(edited, 0, 1 << 20);
+        out.write(random(random, 777));
+        out.write(edited, (1 << 20) + 5000, edited.length - (1 << 20) - 5000);
+        byte[] newVersion = out.toByteArray();
+
+        assertArrayEquals(newVersion, roundTrip(oldVersion, newVersion));
+    }
+
+    @Test
+    void roundTripUnchanged() throws IOException {
+        byte[] version = random(new Random(2), 1 << 20);
+        DeltaPackage delta = DeltaPackage.compute(new BytesPackage(version), signature(version));
+        assertEquals(version.length, delta.getCopiedBytes());
+        assertArrayEquals(version, roundTrip(version, version));
+    }
+
+    @Test
+    void roundTripUnrelatedAndEmpty() throws IOException {
+        Random random = new Random(3);
+        byte[] oldVersion = random(random, 100_000);
+        byte[] newVersion = random(random, 123_457);
+        assertArrayEquals(newVersion, roundTrip(oldVersion, newVersion));
+        assertArrayEquals(new byte[0], roundTrip(oldVersion, new byte[0]));
+        assertArrayEquals(newVersion, roundTrip(new byte[0], newVersion));
+    }
+
+    @Test
+    void patchRejectsOtherBasis() throws IOException {
+        Random random = new Random(4);
+        byte[] oldVersion = random(random, 1 << 20);
+        byte[] newVersion = oldVersion.clone();
+        newVersion[1000] ^= 1;
+
+        DeltaPackage delta = DeltaPackage.compute(new BytesPackage(newVersion), signature(oldVersion));
+        oldVersion[500_000] ^= 1;
+        Files.write(dir.resolve("old"), oldVersion);
+        Files.write(dir.resolve("delta"), bytes(delta));
+
+        try (FileChannel basis = FileChannel.open(dir.resolve("old"));
+             FileChannel deltaChannel = FileChannel.open(dir.resolve("delta"));
+             FileChannel destination = FileChannel.open(dir.resolve("new"), StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            assertThrows(IOException.class, () -> DeltaPatcher.apply(basis, deltaChannel, destination));
+        }
+    }
+
+    @Test
+    void rejectsImplausibleSignature() {
+        byte[] zeros = new byte[1 << 20];
+        int blockSize = BlockSignature.MIN_BLOCK_SIZE;
+        int blocks = DeltaPackage.MAX_WEAK_DUPLICATES + 1;
+
+        // distinct blocks which all claim the checksum of zeros
+        int[] weak = new int[blocks];
+        long[] strong = new long[blocks];
+        Arrays.fill(weak, BlockSignature.weakChecksum(zeros, 0, blockSize));
+        for (int i = 0; i < blocks; i++)
+            strong[i] = i;
+
+        assertThrows(IllegalArgumentException.class, () ->
+                DeltaPackage.compute(new BytesPackage(zeros), new BlockSignature(blockSize, weak, strong)));
+    }
+
+    @Test
+    void collapsesIdenticalBlocks() throws IOException {
+        byte[] oldVersion = new byte[4 << 20];
+        byte[] newVersion = new byte[(4 << 20) + 100];
+        assertArrayEquals(newVersion, roundTrip(oldVersion, newVersion));
+    }
+
+}